@@ -0,0 +1,580 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * The properties of a POJO class, determined with the same rules that the Firestore client applies
+ * when it inspects the class with reflection.
+ */
+final class BeanProperties {
+  static final String DOCUMENT_ID = "com.google.cloud.firestore.annotation.DocumentId";
+  static final String EXCLUDE = "com.google.cloud.firestore.annotation.Exclude";
+  static final String PROPERTY_NAME = "com.google.cloud.firestore.annotation.PropertyName";
+  static final String SERVER_TIMESTAMP = "com.google.cloud.firestore.annotation.ServerTimestamp";
+  static final String IGNORE_EXTRA_PROPERTIES =
+      "com.google.cloud.firestore.annotation.IgnoreExtraProperties";
+  static final String THROW_ON_EXTRA_PROPERTIES =
+      "com.google.cloud.firestore.annotation.ThrowOnExtraProperties";
+
+  private static final String DATE = "java.util.Date";
+  private static final String TIMESTAMP = "com.google.cloud.Timestamp";
+  private static final String STRING = "java.lang.String";
+  private static final String DOCUMENT_REFERENCE = "com.google.cloud.firestore.DocumentReference";
+
+  /** Thrown when generated code cannot map a class exactly like the reflective mapper. */
+  static final class UnsupportedClassException extends Exception {
+    UnsupportedClassException(String message) {
+      super(message);
+    }
+  }
+
+  /** A property of the class. */
+  static final class Property {
+    final String name;
+    // The getter or field that the property is read from.
+    final Element reader;
+    // The setter or field that the property is written to, or null if the property is read-only.
+    final Element writer;
+    final boolean serverTimestamp;
+    final boolean documentId;
+
+    Property(
+        String name, Element reader, Element writer, boolean serverTimestamp, boolean documentId) {
+      this.name = name;
+      this.reader = reader;
+      this.writer = writer;
+      this.serverTimestamp = serverTimestamp;
+      this.documentId = documentId;
+    }
+
+    /** Returns the declared type of the setter parameter or field that the property is set to. */
+    TypeMirror getWriteType() {
+      return writer instanceof ExecutableElement
+          ? ((ExecutableElement) writer).getParameters().get(0).asType()
+          : writer.asType();
+    }
+  }
+
+  private final TypeElement type;
+  private final Elements elements;
+  private final Types types;
+
+  // Case insensitive mapping of properties to their case sensitive versions, in the order in which
+  // they were found.
+  private final Map<String, String> properties = new LinkedHashMap<>();
+  private final Map<String, ExecutableElement> getters = new HashMap<>();
+  private final Map<String, ExecutableElement> setters = new HashMap<>();
+  private final Map<String, VariableElement> fields = new HashMap<>();
+  private final Set<String> serverTimestamps = new HashSet<>();
+  private final Set<String> documentIdPropertyNames = new HashSet<>();
+
+  private BeanProperties(TypeElement type, Elements elements, Types types) {
+    this.type = type;
+    this.elements = elements;
+    this.types = types;
+  }
+
+  /**
+   * Returns the properties of a class.
+   *
+   * @throws UnsupportedClassException if generated code cannot create instances of the class or
+   *     access its properties in the same way as the reflective mapper.
+   */
+  static List<Property> of(TypeElement type, Elements elements, Types types)
+      throws UnsupportedClassException {
+    BeanProperties beanProperties = new BeanProperties(type, elements, types);
+    beanProperties.checkInstantiable();
+    beanProperties.findProperties();
+    return beanProperties.resolveProperties();
+  }
+
+  static boolean hasAnnotation(Element element, String annotation) {
+    return getAnnotation(element, annotation) != null;
+  }
+
+  private static AnnotationMirror getAnnotation(Element element, String annotation) {
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+      if (annotationType.getQualifiedName().contentEquals(annotation)) {
+        return mirror;
+      }
+    }
+    return null;
+  }
+
+  private void checkInstantiable() throws UnsupportedClassException {
+    if (type.getKind() != ElementKind.CLASS) {
+      throw new UnsupportedClassException("it is not a class");
+    }
+    if (!type.getTypeParameters().isEmpty()) {
+      throw new UnsupportedClassException("it has type parameters");
+    }
+    if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+      throw new UnsupportedClassException("it is abstract");
+    }
+    for (Element element = type;
+        element instanceof TypeElement;
+        element = element.getEnclosingElement()) {
+      TypeElement enclosingType = (TypeElement) element;
+      if (enclosingType.getNestingKind() != NestingKind.TOP_LEVEL
+          && enclosingType.getNestingKind() != NestingKind.MEMBER) {
+        throw new UnsupportedClassException("it is a local or anonymous class");
+      }
+      if (enclosingType.getModifiers().contains(Modifier.PRIVATE)) {
+        throw new UnsupportedClassException("it is not accessible from its package");
+      }
+      if (enclosingType.getNestingKind() == NestingKind.MEMBER
+          && !enclosingType.getModifiers().contains(Modifier.STATIC)
+          && enclosingType.getEnclosingElement().getKind().isClass()) {
+        throw new UnsupportedClassException("it is an inner class");
+      }
+    }
+
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()) {
+        if (!isAccessible(constructor)) {
+          throw new UnsupportedClassException("its constructor is not accessible");
+        }
+        if (!constructor.getThrownTypes().isEmpty()) {
+          throw new UnsupportedClassException("its constructor throws checked exceptions");
+        }
+        return;
+      }
+    }
+    throw new UnsupportedClassException("it has no constructor without arguments");
+  }
+
+  private void findProperties() throws UnsupportedClassException {
+    // Add any public getters to properties (including isXyz())
+    for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+      if (shouldIncludeGetter(method)) {
+        String propertyName = propertyName(method);
+        addProperty(propertyName);
+        ExecutableElement existingGetter = getters.get(propertyName);
+        if (existingGetter == null || elements.overrides(method, existingGetter, type)) {
+          getters.put(propertyName, method);
+        } else if (!elements.overrides(existingGetter, method, type)) {
+          throw new UnsupportedClassException(
+              "it has conflicting getters for name " + method.getSimpleName());
+        }
+      }
+    }
+    // Only the annotations of the getters that are called apply, not those of overridden methods
+    for (ExecutableElement getter : getters.values()) {
+      applyGetterAnnotations(getter);
+    }
+
+    // Add any public fields to properties
+    for (VariableElement field : ElementFilter.fieldsIn(elements.getAllMembers(type))) {
+      if (shouldIncludeField(field)) {
+        addProperty(propertyName(field));
+        applyFieldAnnotations(field);
+      }
+    }
+
+    // Setters and fields of any visibility are used for the properties that were found, starting
+    // with the members that are declared on the class itself.
+    TypeElement currentType = type;
+    while (currentType != null
+        && !currentType.getQualifiedName().contentEquals(Object.class.getName())) {
+      for (ExecutableElement method : ElementFilter.methodsIn(currentType.getEnclosedElements())) {
+        if (shouldIncludeSetter(method)) {
+          String propertyName = propertyName(method);
+          String existingPropertyName = properties.get(propertyName.toLowerCase(Locale.US));
+          if (existingPropertyName != null) {
+            if (!existingPropertyName.equals(propertyName)) {
+              throw new UnsupportedClassException(
+                  "it has a setter with an invalid case-sensitive name: " + method.getSimpleName());
+            }
+            ExecutableElement existingSetter = setters.get(propertyName);
+            if (existingSetter == null) {
+              setters.put(propertyName, method);
+              applySetterAnnotations(method);
+            } else if (!isSetterOverride(method, existingSetter)) {
+              throw new UnsupportedClassException(
+                  "it has conflicting setters with name " + method.getSimpleName());
+            }
+          }
+        }
+      }
+
+      for (VariableElement field : ElementFilter.fieldsIn(currentType.getEnclosedElements())) {
+        String propertyName = propertyName(field);
+        // Fields are only added if they don't exist on a subclass
+        if (properties.containsKey(propertyName.toLowerCase(Locale.US))
+            && !fields.containsKey(propertyName)) {
+          fields.put(propertyName, field);
+          applyFieldAnnotations(field);
+        }
+      }
+
+      TypeMirror superclass = currentType.getSuperclass();
+      currentType =
+          superclass.getKind() == TypeKind.DECLARED
+              ? (TypeElement) types.asElement(superclass)
+              : null;
+    }
+
+    if (properties.isEmpty()) {
+      throw new UnsupportedClassException("it has no properties");
+    }
+
+    for (String documentIdProperty : documentIdPropertyNames) {
+      if (!setters.containsKey(documentIdProperty) && !fields.containsKey(documentIdProperty)) {
+        throw new UnsupportedClassException(
+            "@DocumentId property " + documentIdProperty + " cannot be written");
+      }
+    }
+  }
+
+  private List<Property> resolveProperties() throws UnsupportedClassException {
+    List<Property> result = new ArrayList<>();
+    for (String propertyName : properties.values()) {
+      Element reader = getters.get(propertyName);
+      if (reader == null) {
+        reader = fields.get(propertyName);
+      }
+      if (reader == null) {
+        throw new UnsupportedClassException("property " + propertyName + " cannot be read");
+      }
+      checkAccessible(propertyName, reader);
+
+      Element writer = setters.get(propertyName);
+      if (writer == null) {
+        writer = fields.get(propertyName);
+      }
+      if (writer != null) {
+        checkAccessible(propertyName, writer);
+        if (writer.getModifiers().contains(Modifier.FINAL)) {
+          throw new UnsupportedClassException("property " + propertyName + " is final");
+        }
+      }
+
+      Property property =
+          new Property(
+              propertyName,
+              reader,
+              writer,
+              serverTimestamps.contains(propertyName),
+              documentIdPropertyNames.contains(propertyName));
+      if (writer != null && !isSupportedType(property.getWriteType())) {
+        throw new UnsupportedClassException(
+            "property " + propertyName + " has the unsupported type " + property.getWriteType());
+      }
+      result.add(property);
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  private void addProperty(String property) throws UnsupportedClassException {
+    String oldValue = properties.put(property.toLowerCase(Locale.US), property);
+    if (oldValue != null && !property.equals(oldValue)) {
+      throw new UnsupportedClassException(
+          "it has two getters or fields with conflicting case sensitivity for property: "
+              + property.toLowerCase(Locale.US));
+    }
+  }
+
+  private void applyFieldAnnotations(VariableElement field) throws UnsupportedClassException {
+    if (hasAnnotation(field, SERVER_TIMESTAMP)) {
+      if (!isClass(field.asType(), DATE) && !isClass(field.asType(), TIMESTAMP)) {
+        throw new UnsupportedClassException(
+            "field "
+                + field.getSimpleName()
+                + " is annotated with @ServerTimestamp but is not a"
+                + " Date or Timestamp");
+      }
+      serverTimestamps.add(propertyName(field));
+    }
+
+    if (hasAnnotation(field, DOCUMENT_ID)) {
+      checkDocumentIdType(field, field.asType());
+      documentIdPropertyNames.add(propertyName(field));
+    }
+  }
+
+  private void applyGetterAnnotations(ExecutableElement method) throws UnsupportedClassException {
+    if (hasAnnotation(method, SERVER_TIMESTAMP)) {
+      if (!isClass(method.getReturnType(), DATE) && !isClass(method.getReturnType(), TIMESTAMP)) {
+        throw new UnsupportedClassException(
+            "method "
+                + method.getSimpleName()
+                + " is annotated with @ServerTimestamp but does"
+                + " not return a Date or Timestamp");
+      }
+      serverTimestamps.add(propertyName(method));
+    }
+
+    if (hasAnnotation(method, DOCUMENT_ID)) {
+      checkDocumentIdType(method, method.getReturnType());
+      documentIdPropertyNames.add(propertyName(method));
+    }
+  }
+
+  private void applySetterAnnotations(ExecutableElement method) throws UnsupportedClassException {
+    if (hasAnnotation(method, SERVER_TIMESTAMP)) {
+      throw new UnsupportedClassException(
+          "setter " + method.getSimpleName() + " is annotated with @ServerTimestamp");
+    }
+
+    if (hasAnnotation(method, DOCUMENT_ID)) {
+      checkDocumentIdType(method, method.getParameters().get(0).asType());
+      documentIdPropertyNames.add(propertyName(method));
+    }
+  }
+
+  private void checkDocumentIdType(Element element, TypeMirror type)
+      throws UnsupportedClassException {
+    if (!isClass(type, STRING) && !isClass(type, DOCUMENT_REFERENCE)) {
+      throw new UnsupportedClassException(
+          element.getSimpleName()
+              + " is annotated with @DocumentId but is not a String or"
+              + " DocumentReference");
+    }
+  }
+
+  private boolean isClass(TypeMirror type, String className) {
+    TypeMirror erasure = types.erasure(type);
+    return erasure.getKind() == TypeKind.DECLARED
+        && ((TypeElement) types.asElement(erasure)).getQualifiedName().contentEquals(className);
+  }
+
+  private void checkAccessible(String propertyName, Element member)
+      throws UnsupportedClassException {
+    if (!isAccessible(member)) {
+      throw new UnsupportedClassException(
+          "property "
+              + propertyName
+              + " is accessed through "
+              + member.getSimpleName()
+              + ", which is not accessible from its package");
+    }
+    if (member.getModifiers().contains(Modifier.STATIC)) {
+      throw new UnsupportedClassException(
+          "property "
+              + propertyName
+              + " is accessed through the static member "
+              + member.getSimpleName());
+    }
+  }
+
+  /** Returns whether generated code in the package of the class can access a member. */
+  private boolean isAccessible(Element member) {
+    Set<Modifier> modifiers = member.getModifiers();
+    if (modifiers.contains(Modifier.PUBLIC)) {
+      return true;
+    }
+    return !modifiers.contains(Modifier.PRIVATE)
+        && elements.getPackageOf(member).equals(elements.getPackageOf(type));
+  }
+
+  /**
+   * Returns whether a type can be described by the generated code, which only supports types that
+   * do not depend on type variables.
+   */
+  private static boolean isSupportedType(TypeMirror type) {
+    switch (type.getKind()) {
+      case BOOLEAN:
+      case BYTE:
+      case SHORT:
+      case INT:
+      case LONG:
+      case CHAR:
+      case FLOAT:
+      case DOUBLE:
+        return true;
+      case ARRAY:
+        TypeMirror componentType = ((ArrayType) type).getComponentType();
+        return componentType.getKind().isPrimitive()
+            || (componentType.getKind() == TypeKind.DECLARED
+                && ((DeclaredType) componentType).getTypeArguments().isEmpty()
+                && isSupportedType(componentType))
+            || (componentType.getKind() == TypeKind.ARRAY && isSupportedType(componentType));
+      case DECLARED:
+        DeclaredType declaredType = (DeclaredType) type;
+        TypeMirror enclosingType = declaredType.getEnclosingType();
+        if (enclosingType.getKind() == TypeKind.DECLARED
+            && !((DeclaredType) enclosingType).getTypeArguments().isEmpty()) {
+          return false;
+        }
+        for (TypeMirror typeArgument : declaredType.getTypeArguments()) {
+          if (!isSupportedType(typeArgument)) {
+            return false;
+          }
+        }
+        return true;
+      case WILDCARD:
+        WildcardType wildcardType = (WildcardType) type;
+        return wildcardType.getSuperBound() == null
+            && (wildcardType.getExtendsBound() == null
+                || isSupportedType(wildcardType.getExtendsBound()));
+      default:
+        return false;
+    }
+  }
+
+  private static boolean shouldIncludeGetter(ExecutableElement method) {
+    String name = method.getSimpleName().toString();
+    if (!name.startsWith("get") && !name.startsWith("is")) {
+      return false;
+    }
+    // Exclude methods from Object.class
+    if (isDeclaredOnObject(method)) {
+      return false;
+    }
+    // Non-public methods
+    if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+      return false;
+    }
+    // Static methods
+    if (method.getModifiers().contains(Modifier.STATIC)) {
+      return false;
+    }
+    // No return type
+    if (method.getReturnType().getKind() == TypeKind.VOID) {
+      return false;
+    }
+    // Non-zero parameters
+    if (!method.getParameters().isEmpty()) {
+      return false;
+    }
+    // Excluded methods
+    return !hasAnnotation(method, EXCLUDE);
+  }
+
+  private static boolean shouldIncludeSetter(ExecutableElement method) {
+    if (!method.getSimpleName().toString().startsWith("set")) {
+      return false;
+    }
+    // Static methods
+    if (method.getModifiers().contains(Modifier.STATIC)) {
+      return false;
+    }
+    // Has a return type
+    if (method.getReturnType().getKind() != TypeKind.VOID) {
+      return false;
+    }
+    // Methods without exactly one parameters
+    if (method.getParameters().size() != 1) {
+      return false;
+    }
+    // Excluded methods
+    return !hasAnnotation(method, EXCLUDE);
+  }
+
+  private static boolean shouldIncludeField(VariableElement field) {
+    // Exclude fields from Object.class
+    if (isDeclaredOnObject(field)) {
+      return false;
+    }
+    Set<Modifier> modifiers = field.getModifiers();
+    // Non-public, static and transient fields
+    if (!modifiers.contains(Modifier.PUBLIC)
+        || modifiers.contains(Modifier.STATIC)
+        || modifiers.contains(Modifier.TRANSIENT)) {
+      return false;
+    }
+    // Excluded fields
+    return !hasAnnotation(field, EXCLUDE);
+  }
+
+  private static boolean isDeclaredOnObject(Element member) {
+    return ((TypeElement) member.getEnclosingElement())
+        .getQualifiedName()
+        .contentEquals(Object.class.getName());
+  }
+
+  private boolean isSetterOverride(ExecutableElement base, ExecutableElement override) {
+    return base.getSimpleName().contentEquals(override.getSimpleName())
+        && types.isSameType(
+            types.erasure(base.getParameters().get(0).asType()),
+            types.erasure(override.getParameters().get(0).asType()));
+  }
+
+  private static String propertyName(VariableElement field) {
+    String annotatedName = annotatedName(field);
+    return annotatedName != null ? annotatedName : field.getSimpleName().toString();
+  }
+
+  private static String propertyName(ExecutableElement method) {
+    String annotatedName = annotatedName(method);
+    return annotatedName != null
+        ? annotatedName
+        : serializedName(method.getSimpleName().toString());
+  }
+
+  private static String annotatedName(Element element) {
+    AnnotationMirror annotation = getAnnotation(element, PROPERTY_NAME);
+    if (annotation == null) {
+      return null;
+    }
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+        annotation.getElementValues().entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals("value")) {
+        return (String) entry.getValue().getValue();
+      }
+    }
+    return null;
+  }
+
+  private static String serializedName(String methodName) {
+    String[] prefixes = new String[] {"get", "set", "is"};
+    String methodPrefix = null;
+    for (String prefix : prefixes) {
+      if (methodName.startsWith(prefix)) {
+        methodPrefix = prefix;
+      }
+    }
+    String strippedName = methodName.substring(methodPrefix.length());
+
+    // Make sure the first word or upper-case prefix is converted to lower-case
+    char[] chars = strippedName.toCharArray();
+    int pos = 0;
+    while (pos < chars.length && Character.isUpperCase(chars[pos])) {
+      chars[pos] = Character.toLowerCase(chars[pos]);
+      pos++;
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore.processor;
+
+import com.google.cloud.firestore.processor.BeanProperties.Property;
+import com.google.cloud.firestore.processor.BeanProperties.UnsupportedClassException;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * An annotation processor that generates mappers for the POJO classes that are converted to and
+ * from Cloud Firestore documents.
+ *
+ * <p>A mapper is generated for every class that declares members annotated with {@code DocumentId},
+ * {@code PropertyName}, {@code ServerTimestamp} or {@code Exclude}, or that is annotated with
+ * {@code IgnoreExtraProperties} or {@code ThrowOnExtraProperties}. The client uses a generated
+ * mapper instead of inspecting the class with reflection, which reduces the time that it takes to
+ * convert the first instance of the class and allows the class to be used without reflection
+ * configuration in native images.
+ *
+ * <p>Generated mappers follow the same rules for finding properties as the reflective mapper. If
+ * generated code cannot access the members of a class in the same way, for example because a
+ * property is only writable through a private field, no mapper is generated, and the class
+ * continues to be mapped with reflection.
+ *
+ * <p>To use the processor, add this artifact to the annotation processor path of the compiler.
+ */
+public final class FirestoreMapperProcessor extends AbstractProcessor {
+  private static final String GENERATED_MAPPER = "com.google.cloud.firestore.GeneratedMapper";
+  private static final String MAPPER_SUFFIX = "_FirestoreMapper";
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return new HashSet<>(
+        Arrays.asList(
+            BeanProperties.DOCUMENT_ID,
+            BeanProperties.EXCLUDE,
+            BeanProperties.PROPERTY_NAME,
+            BeanProperties.SERVER_TIMESTAMP,
+            BeanProperties.IGNORE_EXTRA_PROPERTIES,
+            BeanProperties.THROW_ON_EXTRA_PROPERTIES));
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    Set<TypeElement> classes = new LinkedHashSet<>();
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        Element mappedClass =
+            element.getKind() == ElementKind.FIELD || element.getKind() == ElementKind.METHOD
+                ? element.getEnclosingElement()
+                : element;
+        if (mappedClass.getKind() == ElementKind.CLASS) {
+          classes.add((TypeElement) mappedClass);
+        }
+      }
+    }
+
+    for (TypeElement mappedClass : classes) {
+      try {
+        List<Property> properties =
+            BeanProperties.of(
+                mappedClass, processingEnv.getElementUtils(), processingEnv.getTypeUtils());
+        writeMapper(mappedClass, properties);
+      } catch (UnsupportedClassException e) {
+        processingEnv
+            .getMessager()
+            .printMessage(
+                Diagnostic.Kind.NOTE,
+                "No Firestore mapper is generated for "
+                    + mappedClass.getQualifiedName()
+                    + " because "
+                    + e.getMessage()
+                    + ". The class is mapped with reflection.",
+                mappedClass);
+      } catch (IOException e) {
+        processingEnv
+            .getMessager()
+            .printMessage(
+                Diagnostic.Kind.ERROR,
+                "Failed to write the Firestore mapper for "
+                    + mappedClass.getQualifiedName()
+                    + ": "
+                    + e.getMessage(),
+                mappedClass);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the simple name of the mapper for a class, which is derived from the binary name of the
+   * class.
+   */
+  private String mapperName(TypeElement mappedClass) {
+    String binaryName = processingEnv.getElementUtils().getBinaryName(mappedClass).toString();
+    return binaryName.substring(binaryName.lastIndexOf('.') + 1).replace('$', '_') + MAPPER_SUFFIX;
+  }
+
+  private void writeMapper(TypeElement mappedClass, List<Property> properties) throws IOException {
+    PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(mappedClass);
+    String mapperName = mapperName(mappedClass);
+    String qualifiedMapperName =
+        packageElement.isUnnamed()
+            ? mapperName
+            : packageElement.getQualifiedName() + "." + mapperName;
+    String className = mappedClass.getQualifiedName().toString();
+    String propertyType = GENERATED_MAPPER + ".Property<" + className + ">";
+
+    StringBuilder source = new StringBuilder();
+    source.append("// Generated by ").append(getClass().getName()).append(". Do not edit.\n");
+    if (!packageElement.isUnnamed()) {
+      source.append("package ").append(packageElement.getQualifiedName()).append(";\n");
+    }
+    source.append('\n');
+    source
+        .append("public final class ")
+        .append(mapperName)
+        .append(" extends ")
+        .append(GENERATED_MAPPER)
+        .append('<')
+        .append(className)
+        .append("> {\n");
+
+    source
+        .append("  private static final java.util.List<")
+        .append(propertyType)
+        .append("> PROPERTIES =\n")
+        .append("      java.util.Arrays.<")
+        .append(propertyType)
+        .append(">asList(");
+    for (int i = 0; i < properties.size(); ++i) {
+      source.append(i > 0 ? ",\n" : "\n");
+      appendProperty(source, className, properties.get(i));
+    }
+    source.append(");\n");
+
+    appendMethod(
+        source, "java.lang.Class<" + className + ">", "getMappedClass", className + ".class");
+    appendMethod(source, className, "newInstance", "new " + className + "()");
+    appendMethod(
+        source,
+        "boolean",
+        "throwOnExtraProperties",
+        String.valueOf(
+            BeanProperties.hasAnnotation(mappedClass, BeanProperties.THROW_ON_EXTRA_PROPERTIES)));
+    appendMethod(
+        source,
+        "boolean",
+        "ignoreExtraProperties",
+        String.valueOf(
+            BeanProperties.hasAnnotation(mappedClass, BeanProperties.IGNORE_EXTRA_PROPERTIES)));
+    appendMethod(source, "java.util.List<" + propertyType + ">", "getProperties", "PROPERTIES");
+    source.append("}\n");
+
+    JavaFileObject sourceFile =
+        processingEnv.getFiler().createSourceFile(qualifiedMapperName, mappedClass);
+    Writer writer = sourceFile.openWriter();
+    try {
+      writer.write(source.toString());
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static void appendMethod(
+      StringBuilder source, String returnType, String name, String result) {
+    source
+        .append("\n")
+        .append("  @java.lang.Override\n")
+        .append("  public ")
+        .append(returnType)
+        .append(' ')
+        .append(name)
+        .append("() {\n")
+        .append("    return ")
+        .append(result)
+        .append(";\n")
+        .append("  }\n");
+  }
+
+  private void appendProperty(StringBuilder source, String className, Property property) {
+    Types types = processingEnv.getTypeUtils();
+    String name = property.name;
+    String writeType = property.writer != null ? typeExpression(property.getWriteType()) : "null";
+
+    source
+        .append("          new ")
+        .append(GENERATED_MAPPER)
+        .append(".Property<")
+        .append(className)
+        .append(">(\n")
+        .append("              ")
+        .append(stringLiteral(name))
+        .append(", ")
+        .append(writeType)
+        .append(", ")
+        .append(property.serverTimestamp)
+        .append(", ")
+        .append(property.documentId)
+        .append(") {\n");
+
+    source
+        .append("            @java.lang.Override\n")
+        .append("            public java.lang.Object get(")
+        .append(className)
+        .append(" instance) throws java.lang.Exception {\n")
+        .append("              return instance.")
+        .append(property.reader.getSimpleName())
+        .append(property.reader instanceof ExecutableElement ? "()" : "")
+        .append(";\n")
+        .append("            }\n");
+
+    if (property.writer != null) {
+      TypeMirror type = property.getWriteType();
+      String cast;
+      if (type.getKind().isPrimitive()) {
+        cast =
+            types.boxedClass(types.getPrimitiveType(type.getKind())).getQualifiedName().toString();
+      } else {
+        cast = type.toString();
+      }
+      boolean unchecked =
+          type.getKind() == TypeKind.DECLARED
+              && !((DeclaredType) type).getTypeArguments().isEmpty();
+
+      source.append("\n").append("            @java.lang.Override\n");
+      if (unchecked) {
+        source.append("            @java.lang.SuppressWarnings(\"unchecked\")\n");
+      }
+      source
+          .append("            public void set(")
+          .append(className)
+          .append(" instance, java.lang.Object value) throws java.lang.Exception {\n")
+          .append("              instance.")
+          .append(property.writer.getSimpleName());
+      if (property.writer instanceof ExecutableElement) {
+        source.append("((").append(cast).append(") value);\n");
+      } else {
+        source.append(" = (").append(cast).append(") value;\n");
+      }
+      source.append("            }\n");
+    }
+    source.append("          }");
+  }
+
+  /**
+   * Returns an expression that creates the java.lang.reflect.Type of a property. Wildcards are
+   * replaced with their upper bounds, since both are deserialized in the same way.
+   */
+  private String typeExpression(TypeMirror type) {
+    Types types = processingEnv.getTypeUtils();
+    switch (type.getKind()) {
+      case WILDCARD:
+        TypeMirror extendsBound = ((WildcardType) type).getExtendsBound();
+        return extendsBound != null ? typeExpression(extendsBound) : "java.lang.Object.class";
+      case DECLARED:
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) type).getTypeArguments();
+        String rawType = types.erasure(type).toString() + ".class";
+        if (typeArguments.isEmpty()) {
+          return rawType;
+        }
+        StringBuilder expression = new StringBuilder("parameterizedType(").append(rawType);
+        for (TypeMirror typeArgument : typeArguments) {
+          expression.append(", ").append(typeExpression(typeArgument));
+        }
+        return expression.append(')').toString();
+      case ARRAY:
+        return types.erasure(((ArrayType) type).getComponentType()) + "[].class";
+      default:
+        return type.toString() + ".class";
+    }
+  }
+
+  private static String stringLiteral(String value) {
+    StringBuilder literal = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        literal.append('\\').append(c);
+      } else if (c < 0x20 || c > 0x7e) {
+        literal.append(String.format("\\u%04x", (int) c));
+      } else {
+        literal.append(c);
+      }
+    }
+    return literal.append('"').toString();
+  }
+}
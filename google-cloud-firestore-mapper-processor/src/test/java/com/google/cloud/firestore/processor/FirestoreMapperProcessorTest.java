@@ -0,0 +1,353 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.InternalApi;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.GeneratedMapper;
+import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FirestoreMapperProcessorTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+  /** Compiles a source file with the processor and returns a class loader for the output. */
+  private ClassLoader compile(String className, String... lines) throws Exception {
+    File sourceDirectory = temporaryFolder.newFolder();
+    File sourceFile = new File(sourceDirectory, className.replace('.', '/') + ".java");
+    sourceFile.getParentFile().mkdirs();
+    Writer writer =
+        new OutputStreamWriter(Files.newOutputStream(sourceFile.toPath()), StandardCharsets.UTF_8);
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+
+    File outputDirectory = compile(sourceFile);
+    return new URLClassLoader(
+        new URL[] {outputDirectory.toURI().toURL()}, getClass().getClassLoader());
+  }
+
+  /** Compiles a source file with the processor and returns the output directory. */
+  private File compile(File sourceFile) throws Exception {
+    File outputDirectory = temporaryFolder.newFolder();
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+    try {
+      JavaCompiler.CompilationTask task =
+          compiler.getTask(
+              null,
+              fileManager,
+              diagnostics,
+              Arrays.asList(
+                  "-classpath",
+                  classPath(
+                      GeneratedMapper.class, Timestamp.class, InternalApi.class, Nullable.class),
+                  "-d",
+                  outputDirectory.getPath(),
+                  "-s",
+                  outputDirectory.getPath()),
+              null,
+              fileManager.getJavaFileObjects(sourceFile));
+      task.setProcessors(Collections.singletonList(new FirestoreMapperProcessor()));
+      if (!task.call()) {
+        fail("Compilation failed: " + diagnostics.getDiagnostics());
+      }
+    } finally {
+      fileManager.close();
+    }
+    return outputDirectory;
+  }
+
+  private static String classPath(Class<?>... classes) throws URISyntaxException {
+    StringBuilder classPath = new StringBuilder();
+    for (Class<?> clazz : classes) {
+      if (classPath.length() > 0) {
+        classPath.append(File.pathSeparatorChar);
+      }
+      classPath.append(
+          new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+    }
+    return classPath.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static GeneratedMapper<Object> loadMapper(ClassLoader classLoader, String mapperName)
+      throws Exception {
+    return (GeneratedMapper<Object>)
+        classLoader.loadClass(mapperName).getConstructor().newInstance();
+  }
+
+  private static Map<String, GeneratedMapper.Property<Object>> propertiesByName(
+      GeneratedMapper<Object> mapper) {
+    Map<String, GeneratedMapper.Property<Object>> properties = new HashMap<>();
+    for (GeneratedMapper.Property<Object> property : mapper.getProperties()) {
+      properties.put(property.getName(), property);
+    }
+    return properties;
+  }
+
+  /** Returns the tokens of a source file, without its leading license comment. */
+  private static String tokens(File sourceFile) throws Exception {
+    String source = new String(Files.readAllBytes(sourceFile.toPath()), StandardCharsets.UTF_8);
+    if (source.startsWith("/*")) {
+      source = source.substring(source.indexOf("*/") + 2);
+    }
+    return source.replaceAll("\\s+", "");
+  }
+
+  private boolean hasNote(String text) {
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      if (diagnostic.getKind() == Diagnostic.Kind.NOTE
+          && diagnostic.getMessage(null).contains(text)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void generatesMapperForAnnotatedClass() throws Exception {
+    ClassLoader classLoader =
+        compile(
+            "com.example.Bean",
+            "package com.example;",
+            "import com.google.cloud.firestore.annotation.*;",
+            "import java.util.Date;",
+            "import java.util.List;",
+            "public class Bean {",
+            "  private String name;",
+            "  private List<String> tags;",
+            "  @DocumentId String id;",
+            "  public int count;",
+            "  public transient int ignored;",
+            "  Date updated;",
+            "  @PropertyName(\"display_name\") public String getName() { return name; }",
+            "  @PropertyName(\"display_name\") public void setName(String name) { this.name = name; }",
+            "  public List<String> getTags() { return tags; }",
+            "  public void setTags(List<String> tags) { this.tags = tags; }",
+            "  @ServerTimestamp public Date getUpdated() { return updated; }",
+            "  public String getId() { return id; }",
+            "  @Exclude public String getExcluded() { return null; }",
+            "  public boolean isComputed() { return true; }",
+            "}");
+
+    GeneratedMapper<Object> mapper = loadMapper(classLoader, "com.example.Bean_FirestoreMapper");
+    assertEquals(classLoader.loadClass("com.example.Bean"), mapper.getMappedClass());
+    assertFalse(mapper.throwOnExtraProperties());
+    assertFalse(mapper.ignoreExtraProperties());
+
+    Map<String, GeneratedMapper.Property<Object>> properties = propertiesByName(mapper);
+    assertEquals(
+        new HashSet<>(Arrays.asList("display_name", "tags", "id", "count", "updated", "computed")),
+        properties.keySet());
+
+    GeneratedMapper.Property<Object> name = properties.get("display_name");
+    assertEquals(String.class, name.getType());
+    assertFalse(name.isServerTimestamp());
+    assertFalse(name.isDocumentId());
+
+    Type tagsType = properties.get("tags").getType();
+    assertTrue(tagsType instanceof ParameterizedType);
+    assertEquals(List.class, ((ParameterizedType) tagsType).getRawType());
+    assertEquals(
+        Collections.<Type>singletonList(String.class),
+        Arrays.asList(((ParameterizedType) tagsType).getActualTypeArguments()));
+
+    assertTrue(properties.get("id").isDocumentId());
+    assertEquals(int.class, properties.get("count").getType());
+
+    GeneratedMapper.Property<Object> updated = properties.get("updated");
+    assertTrue(updated.isServerTimestamp());
+    assertEquals(Date.class, updated.getType());
+
+    // Properties without a setter or field are read-only.
+    assertNull(properties.get("computed").getType());
+
+    Object bean = mapper.newInstance();
+    name.set(bean, "foo");
+    properties.get("id").set(bean, "doc");
+    properties.get("count").set(bean, 5);
+    properties.get("tags").set(bean, Arrays.asList("a", "b"));
+    assertEquals("foo", name.get(bean));
+    assertEquals("doc", properties.get("id").get(bean));
+    assertEquals(5, properties.get("count").get(bean));
+    assertEquals(Arrays.asList("a", "b"), properties.get("tags").get(bean));
+    assertEquals(true, properties.get("computed").get(bean));
+  }
+
+  @Test
+  public void generatesMapperForNestedClass() throws Exception {
+    ClassLoader classLoader =
+        compile(
+            "com.example.Outer",
+            "package com.example;",
+            "public class Outer {",
+            "  @com.google.cloud.firestore.annotation.ThrowOnExtraProperties",
+            "  public static class Inner {",
+            "    public String value;",
+            "  }",
+            "}");
+
+    GeneratedMapper<Object> mapper =
+        loadMapper(classLoader, "com.example.Outer_Inner_FirestoreMapper");
+    assertEquals(classLoader.loadClass("com.example.Outer$Inner"), mapper.getMappedClass());
+    assertTrue(mapper.throwOnExtraProperties());
+    assertEquals(1, mapper.getProperties().size());
+  }
+
+  @Test
+  public void usesUpperBoundsOfWildcards() throws Exception {
+    ClassLoader classLoader =
+        compile(
+            "com.example.Bean",
+            "package com.example;",
+            "import java.util.List;",
+            "import java.util.Map;",
+            "@com.google.cloud.firestore.annotation.IgnoreExtraProperties",
+            "public class Bean {",
+            "  public Map<String, List<? extends Number>> values;",
+            "}");
+
+    GeneratedMapper<Object> mapper = loadMapper(classLoader, "com.example.Bean_FirestoreMapper");
+    assertTrue(mapper.ignoreExtraProperties());
+    ParameterizedType type = (ParameterizedType) mapper.getProperties().get(0).getType();
+    assertEquals(Map.class, type.getRawType());
+    ParameterizedType valueType = (ParameterizedType) type.getActualTypeArguments()[1];
+    assertEquals(List.class, valueType.getRawType());
+    assertEquals(Number.class, valueType.getActualTypeArguments()[0]);
+  }
+
+  @Test
+  public void skipsClassWithInaccessibleProperty() throws Exception {
+    ClassLoader classLoader =
+        compile(
+            "com.example.Bean",
+            "package com.example;",
+            "public class Bean {",
+            "  @com.google.cloud.firestore.annotation.DocumentId private String id;",
+            "  public String getId() { return id; }",
+            "}");
+
+    try {
+      classLoader.loadClass("com.example.Bean_FirestoreMapper");
+      fail("Expected no mapper to be generated");
+    } catch (ClassNotFoundException e) {
+      // Expected
+    }
+    assertTrue(hasNote("property id is accessed through id"));
+  }
+
+  @Test
+  public void skipsClassWithoutConstructor() throws Exception {
+    ClassLoader classLoader =
+        compile(
+            "com.example.Bean",
+            "package com.example;",
+            "public class Bean {",
+            "  @com.google.cloud.firestore.annotation.PropertyName(\"v\") public String value;",
+            "  public Bean(String value) { this.value = value; }",
+            "}");
+
+    try {
+      classLoader.loadClass("com.example.Bean_FirestoreMapper");
+      fail("Expected no mapper to be generated");
+    } catch (ClassNotFoundException e) {
+      // Expected
+    }
+    assertTrue(hasNote("it has no constructor without arguments"));
+  }
+
+  @Test
+  public void skipsClassWithConflictingSetters() throws Exception {
+    ClassLoader classLoader =
+        compile(
+            "com.example.Bean",
+            "package com.example;",
+            "public class Bean {",
+            "  @com.google.cloud.firestore.annotation.Exclude public String excluded;",
+            "  public String value;",
+            "  public void setValue(String value) {}",
+            "  public void setValue(Integer value) {}",
+            "}");
+
+    try {
+      classLoader.loadClass("com.example.Bean_FirestoreMapper");
+      fail("Expected no mapper to be generated");
+    } catch (ClassNotFoundException e) {
+      // Expected
+    }
+    assertTrue(hasNote("it has conflicting setters with name setValue"));
+  }
+
+  @Test
+  public void matchesMapperCheckedInToClientTests() throws Exception {
+    // The client tests use a checked-in copy of the processor output, so that they do not depend on
+    // this module.
+    File testDirectory =
+        new File("../google-cloud-firestore/src/test/java/com/google/cloud/firestore");
+    File outputDirectory = compile(new File(testDirectory, "GeneratedMapperBean.java"));
+
+    assertEquals(
+        tokens(new File(testDirectory, "GeneratedMapperBean_FirestoreMapper.java")),
+        tokens(
+            new File(
+                outputDirectory,
+                "com/google/cloud/firestore/GeneratedMapperBean_FirestoreMapper.java")));
+  }
+}
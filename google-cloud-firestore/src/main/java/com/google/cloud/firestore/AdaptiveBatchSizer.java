@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A helper that adjusts the number of writes BulkWriter sends in a single BatchWriteRequest based
+ * on the observed latency of previous requests.
+ *
+ * <p>The batch size grows additively as long as the latency of a request stays within a tolerance
+ * of the lowest latency seen so far. Once latency starts to climb, the batch size is reduced
+ * multiplicatively. The lowest observed latency slowly decays upwards so that the sizer can adapt
+ * if the baseline latency of the backend changes.
+ */
+class AdaptiveBatchSizer {
+  /** The number of writes by which to grow the batch size after a fast response. */
+  static final int BATCH_SIZE_INCREMENT = 10;
+
+  /** The factor by which to shrink the batch size after a slow response. */
+  static final double BATCH_SIZE_DECREASE_FACTOR = 0.75;
+
+  /**
+   * Latencies up to this multiple of the lowest observed latency are not considered to be an
+   * increase.
+   */
+  static final double LATENCY_TOLERANCE = 1.5;
+
+  /** The rate by which the lowest observed latency decays upwards with each response. */
+  static final double MIN_LATENCY_DECAY = 1.01;
+
+  private final int minimumBatchSize;
+  private final int maximumBatchSize;
+
+  private int batchSize;
+  private double minLatencyMillis = Double.POSITIVE_INFINITY;
+
+  /**
+   * @param minimumBatchSize The initial and minimum number of writes per batch.
+   * @param maximumBatchSize The maximum number of writes per batch.
+   */
+  AdaptiveBatchSizer(int minimumBatchSize, int maximumBatchSize) {
+    Preconditions.checkArgument(minimumBatchSize > 0, "Minimum batch size must be positive");
+    Preconditions.checkArgument(
+        maximumBatchSize >= minimumBatchSize,
+        "Maximum batch size must not be less than the minimum batch size");
+    this.minimumBatchSize = minimumBatchSize;
+    this.maximumBatchSize = maximumBatchSize;
+    this.batchSize = minimumBatchSize;
+  }
+
+  /** Returns the maximum number of writes that will ever be sent in a single batch. */
+  public int getMaximumBatchSize() {
+    return maximumBatchSize;
+  }
+
+  /** Returns the number of writes that should be sent in the next batch. */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Adjusts the batch size based on the latency of a completed request.
+   *
+   * @param latencyMillis The time in milliseconds between sending the request and receiving its
+   *     response.
+   */
+  public void recordLatency(long latencyMillis) {
+    minLatencyMillis = Math.min(minLatencyMillis * MIN_LATENCY_DECAY, latencyMillis);
+
+    if (latencyMillis <= minLatencyMillis * LATENCY_TOLERANCE) {
+      batchSize = Math.min(maximumBatchSize, batchSize + BATCH_SIZE_INCREMENT);
+    } else {
+      batchSize = Math.max(minimumBatchSize, (int) (batchSize * BATCH_SIZE_DECREASE_FACTOR));
+    }
+  }
+}
@@ -23,10 +23,14 @@ import com.google.api.core.ApiFutures;
 import com.google.api.gax.rpc.ApiException;
 import com.google.cloud.Timestamp;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.firestore.v1.BatchWriteRequest;
 import com.google.firestore.v1.BatchWriteResponse;
+import com.google.firestore.v1.Write;
+import com.google.protobuf.CodedOutputStream;
 import io.grpc.Status;
 import io.opencensus.trace.AttributeValue;
 import io.opencensus.trace.Tracing;
@@ -41,14 +45,39 @@ class BulkCommitBatch extends UpdateBuilder<ApiFuture<WriteResult>> {
 
   private final List<BulkWriterOperation> pendingOperations = new ArrayList<>();
   private final Set<DocumentReference> documents = new CopyOnWriteArraySet<>();
+
+  /**
+   * Operations that were merged into the write of an earlier operation, keyed by the index of that
+   * write. These operations resolve with the result of the combined write.
+   */
+  private final ListMultimap<Integer, BulkWriterOperation> coalescedOperations =
+      ArrayListMultimap.create();
+
   private final Executor executor;
 
+  /** The estimated size of the BatchWriteRequest in bytes. */
+  private long requestSizeBytes = 0;
+
+  /** The time at which the BatchWriteRequest was sent, or -1 if the batch was not sent yet. */
+  private volatile long sendTimeMillis = -1;
+
+  /** The time it took to receive the BatchWriteResponse, or -1 if the batch was not sent yet. */
+  private volatile long rpcLatencyMillis = -1;
+
+  /** Whether any write in this batch failed due to contention or backend overload. */
+  private volatile boolean contended = false;
+
   BulkCommitBatch(FirestoreImpl firestore, Executor executor) {
     super(firestore);
     this.executor = executor;
   }
 
   ApiFuture<WriteResult> wrapResult(int writeIndex) {
+    // `wrapResult()` is invoked once for every write that is added to the batch, which allows us to
+    // keep track of the request size as writes are enqueued.
+    requestSizeBytes +=
+        CodedOutputStream.computeMessageSize(
+            BatchWriteRequest.WRITES_FIELD_NUMBER, getWrites().get(writeIndex).write.build());
     return pendingOperations.get(writeIndex).getFuture();
   }
 
@@ -56,8 +85,12 @@ class BulkCommitBatch extends UpdateBuilder<ApiFuture<WriteResult>> {
    * Commits all pending operations to the database and verifies all preconditions.
    *
    * <p>The writes in the batch are not applied atomically and can be applied out of order.
+   *
+   * @param responseListener Runs once the response is received and before the results of the writes
+   *     are delivered, which allows it to inspect {@link #getRpcLatencyMillis} and {@link
+   *     #isContended} before any retries are enqueued.
    */
-  ApiFuture<Void> bulkCommit() {
+  ApiFuture<Void> bulkCommit(final Runnable responseListener) {
     Tracing.getTracer()
         .getCurrentSpan()
         .addAnnotation(
@@ -73,6 +106,8 @@ class BulkCommitBatch extends UpdateBuilder<ApiFuture<WriteResult>> {
 
     committed = true;
 
+    final long startTimeMillis = System.currentTimeMillis();
+    sendTimeMillis = startTimeMillis;
     ApiFuture<BatchWriteResponse> response =
         processExceptions(
             firestore.sendRequest(request.build(), firestore.getClient().batchWriteCallable()));
@@ -82,25 +117,29 @@ class BulkCommitBatch extends UpdateBuilder<ApiFuture<WriteResult>> {
         new ApiAsyncFunction<BatchWriteResponse, Void>() {
           @Override
           public ApiFuture<Void> apply(BatchWriteResponse batchWriteResponse) {
+            rpcLatencyMillis = System.currentTimeMillis() - startTimeMillis;
+
             List<ApiFuture<Void>> pendingUserCallbacks = new ArrayList<>();
 
             List<com.google.firestore.v1.WriteResult> writeResults =
                 batchWriteResponse.getWriteResultsList();
             List<com.google.rpc.Status> statuses = batchWriteResponse.getStatusList();
 
+            for (com.google.rpc.Status status : statuses) {
+              if (isContentionStatus(Status.fromCodeValue(status.getCode()).getCode())) {
+                contended = true;
+              }
+            }
+            responseListener.run();
+
             for (int i = 0; i < writeResults.size(); ++i) {
               com.google.firestore.v1.WriteResult writeResult = writeResults.get(i);
               com.google.rpc.Status status = statuses.get(i);
-              BulkWriterOperation operation = pendingOperations.get(i);
               Status code = Status.fromCodeValue(status.getCode());
-              if (code == Status.OK) {
-                pendingUserCallbacks.add(
-                    operation.onSuccess(
-                        new WriteResult(Timestamp.fromProto(writeResult.getUpdateTime()))));
-              } else {
-                pendingUserCallbacks.add(
-                    operation.onException(
-                        FirestoreException.forServerRejection(code, status.getMessage())));
+              pendingUserCallbacks.add(
+                  completeOperation(pendingOperations.get(i), code, status, writeResult));
+              for (BulkWriterOperation operation : coalescedOperations.get(i)) {
+                pendingUserCallbacks.add(completeOperation(operation, code, status, writeResult));
               }
             }
             return BulkWriter.silenceFuture(ApiFutures.allAsList(pendingUserCallbacks));
@@ -109,6 +148,26 @@ class BulkCommitBatch extends UpdateBuilder<ApiFuture<WriteResult>> {
         executor);
   }
 
+  private static ApiFuture<Void> completeOperation(
+      BulkWriterOperation operation,
+      Status code,
+      com.google.rpc.Status status,
+      com.google.firestore.v1.WriteResult writeResult) {
+    if (code == Status.OK) {
+      return operation.onSuccess(new WriteResult(Timestamp.fromProto(writeResult.getUpdateTime())));
+    } else {
+      return operation.onException(
+          FirestoreException.forServerRejection(code, status.getMessage()));
+    }
+  }
+
+  /** Returns whether the status indicates that the backend is overloaded or contended. */
+  private static boolean isContentionStatus(Status.Code code) {
+    return code == Status.Code.RESOURCE_EXHAUSTED
+        || code == Status.Code.UNAVAILABLE
+        || code == Status.Code.ABORTED;
+  }
+
   /** Maps an RPC failure to each individual write's result. */
   private ApiFuture<BatchWriteResponse> processExceptions(ApiFuture<BatchWriteResponse> response) {
     return ApiFutures.catching(
@@ -141,4 +200,59 @@ class BulkCommitBatch extends UpdateBuilder<ApiFuture<WriteResult>> {
   boolean has(DocumentReference documentReference) {
     return documents.contains(documentReference);
   }
+
+  /**
+   * Merges the provided write into the write that this batch already contains for the operation's
+   * document. Returns false and leaves the batch unchanged if the two writes cannot be combined.
+   */
+  boolean coalesce(BulkWriterOperation operation, Write write) {
+    List<WriteOperation> writes = getWrites();
+    int writeIndex = writes.size() - 1;
+    while (!writes.get(writeIndex).documentReference.equals(operation.getDocumentReference())) {
+      --writeIndex;
+    }
+
+    WriteOperation existing = writes.get(writeIndex);
+    Write existingWrite = existing.write.build();
+    Write combinedWrite = WriteCoalescer.coalesce(existingWrite, write);
+    if (combinedWrite == null) {
+      return false;
+    }
+
+    requestSizeBytes +=
+        CodedOutputStream.computeMessageSize(BatchWriteRequest.WRITES_FIELD_NUMBER, combinedWrite)
+            - CodedOutputStream.computeMessageSize(
+                BatchWriteRequest.WRITES_FIELD_NUMBER, existingWrite);
+    existing.write = combinedWrite.toBuilder();
+    coalescedOperations.put(writeIndex, operation);
+    return true;
+  }
+
+  /** Returns the estimated size of the BatchWriteRequest for the writes in this batch. */
+  long getRequestSizeBytes() {
+    return requestSizeBytes;
+  }
+
+  /**
+   * Returns the time in epoch milliseconds at which the BatchWriteRequest was sent, or -1 if the
+   * batch was not sent yet.
+   */
+  long getSendTimeMillis() {
+    return sendTimeMillis;
+  }
+
+  /**
+   * Returns the number of milliseconds between sending the BatchWriteRequest and receiving its
+   * response, or -1 if no response has been received.
+   */
+  long getRpcLatencyMillis() {
+    return rpcLatencyMillis;
+  }
+
+  /**
+   * Returns whether any write in this batch failed with RESOURCE_EXHAUSTED, UNAVAILABLE or ABORTED.
+   */
+  boolean isContended() {
+    return contended;
+  }
 }
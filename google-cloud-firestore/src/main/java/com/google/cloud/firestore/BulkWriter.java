@@ -16,7 +16,6 @@
 
 package com.google.cloud.firestore;
 
-import com.google.api.core.ApiAsyncFunction;
 import com.google.api.core.ApiFunction;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutureCallback;
@@ -27,6 +26,13 @@ import com.google.api.gax.rpc.StatusCode.Code;
 import com.google.cloud.firestore.v1.FirestoreSettings;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -77,6 +83,27 @@ public final class BulkWriter implements AutoCloseable {
   /** The maximum number of writes that can be in a single batch. */
   public static final int MAX_BATCH_SIZE = 20;
 
+  /**
+   * The maximum number of writes that can be in a single batch when adaptive batch sizing is
+   * enabled. This is the maximum number of writes the backend accepts in a single BatchWrite
+   * request.
+   */
+  static final int MAX_ADAPTIVE_BATCH_SIZE = 500;
+
+  /**
+   * The maximum request size in bytes of a batch, regardless of the number of writes it contains. A
+   * write that would take the batch over this size is sent in the next batch. This leaves room for
+   * the request overhead below the 10 MiB request limit.
+   */
+  static final int MAX_BATCH_SIZE_BYTES = 9 * 1024 * 1024;
+
+  /**
+   * An upper bound of the encoded size of a single write: a document can be up to 1 MiB, and the
+   * write also contains the document name, field mask and transforms. The size of a write is only
+   * computed before it is added to a batch that is within this many bytes of its maximum size.
+   */
+  private static final int MAX_WRITE_SIZE_BYTES = 2 * 1024 * 1024;
+
   /**
    * The maximum number of retries that will be attempted with backoff before stopping all retry
    * attempts.
@@ -97,7 +124,7 @@ public final class BulkWriter implements AutoCloseable {
    * @see <a href=https://cloud.google.com/datastore/docs/best-practices#ramping_up_traffic>Ramping
    *     up traffic</a>
    */
-  private static final double RATE_LIMITER_MULTIPLIER = 1.5;
+  static final double RATE_LIMITER_MULTIPLIER = 1.5;
 
   /**
    * How often the operations per second capacity should increase in milliseconds as specified by
@@ -106,7 +133,10 @@ public final class BulkWriter implements AutoCloseable {
    * @see <a href=https://cloud.google.com/datastore/docs/best-practices#ramping_up_traffic>Ramping
    *     up traffic</a>
    */
-  private static final int RATE_LIMITER_MULTIPLIER_MILLIS = 5 * 60 * 1000;
+  static final int RATE_LIMITER_MULTIPLIER_MILLIS = 5 * 60 * 1000;
+
+  /** The default maximum number of BatchWrite requests that can be in flight at the same time. */
+  static final int DEFAULT_MAXIMUM_PENDING_BATCHES = 10;
 
   private static final WriteResultCallback DEFAULT_SUCCESS_LISTENER =
       new WriteResultCallback() {
@@ -131,6 +161,19 @@ public final class BulkWriter implements AutoCloseable {
 
   private static final Logger logger = Logger.getLogger(BulkWriter.class.getName());
 
+  /**
+   * Whether the current thread runs a BulkWriter callback or a listener of a write's future. Writes
+   * that are enqueued from these threads do not wait for capacity, since the operations they would
+   * wait for may only complete once the callback returns.
+   */
+  private static final ThreadLocal<Boolean> inCallback =
+      new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+          return false;
+        }
+      };
+
   private final FirestoreImpl firestore;
 
   // Executor used to run all BulkWriter operations. BulkWriter uses its own executor since we
@@ -140,16 +183,44 @@ public final class BulkWriter implements AutoCloseable {
   /** The maximum number of writes that can be in a single batch. */
   private int maxBatchSize = MAX_BATCH_SIZE;
 
+  /** The request size in bytes at which a batch is sent. */
+  private long maxBatchSizeBytes = MAX_BATCH_SIZE_BYTES;
+
+  /** The maximum number of batches that can be in flight at the same time. */
+  private final int maxPendingBatches;
+
+  /**
+   * The maximum number of operations that can be enqueued but not yet completed before enqueuing
+   * another write blocks.
+   */
+  private final int maxPendingOperations;
+
   /**
    * Lock object for all mutable state in bulk writer. BulkWriter state is accessed from the user
    * thread and via {@code bulkWriterExecutor}.
    */
   private final Object lock = new Object();
 
-  /** Rate limiter used to throttle requests as per the 500/50/5 rule. */
-  @GuardedBy("lock")
+  /**
+   * Rate limiter used to throttle requests as per the 500/50/5 rule. The rate limiter is
+   * thread-safe and may be shared with other BulkWriter instances.
+   */
   private final RateLimiter rateLimiter;
 
+  /**
+   * Adjusts the number of writes per batch based on the observed request latency. Null if adaptive
+   * batch sizing is disabled.
+   */
+  @GuardedBy("lock")
+  @Nullable
+  private final AdaptiveBatchSizer batchSizer;
+
+  /** Whether consecutive writes to the same document are combined into a single write. */
+  private final boolean writeCoalescingEnabled;
+
+  /** Whether the rate limiter should back off when writes fail due to contention. */
+  private final boolean adaptiveThrottlingEnabled;
+
   /**
    * The batch that is currently used to schedule operations. Once this batch reaches maximum
    * capacity, a new batch is created.
@@ -161,11 +232,42 @@ public final class BulkWriter implements AutoCloseable {
   private BulkCommitBatch bulkCommitBatch;
 
   /**
-   * A pointer to the tail of all active BulkWriter applications. This pointer is advanced every
-   * time a new write is enqueued.
+   * Batches that are full (or flushed) but have not been sent yet, either because the maximum
+   * number of pending batches has been reached or because the rate limiter has not yet granted
+   * enough capacity. Batches are sent in the order they were enqueued.
+   */
+  @GuardedBy("lock")
+  private final Deque<BulkCommitBatch> readyBatches = new ArrayDeque<>();
+
+  /** The number of batches that have been sent but have not yet completed. */
+  @GuardedBy("lock")
+  private int pendingBatchCount = 0;
+
+  /** Whether a send attempt has been scheduled to run once the rate limiter has capacity. */
+  @GuardedBy("lock")
+  private boolean backoffScheduled = false;
+
+  /**
+   * The epochs of operations that have not completed yet, in the order they were started. Every
+   * call to {@link #flush()} closes the last epoch and starts a new one. The last epoch is always
+   * open and receives all newly enqueued operations.
+   *
+   * <p>Tracking pending operations per epoch instead of chaining their futures keeps the memory
+   * used for flush tracking independent of the number of enqueued writes.
+   */
+  @GuardedBy("lock")
+  private final Deque<FlushEpoch> flushEpochs = new ArrayDeque<>();
+
+  /** The number of operations that have been enqueued but have not yet completed. */
+  @GuardedBy("lock")
+  private int pendingOperationCount = 0;
+
+  /**
+   * Futures that complete once an operation completes, returned by {@link #awaitCapacity()} or
+   * waited for by writers that are blocked on capacity.
    */
   @GuardedBy("lock")
-  private ApiFuture<Void> lastOperation = ApiFutures.immediateFuture(null);
+  private final List<SettableApiFuture<Void>> capacityWaiters = new ArrayList<>();
 
   /** Whether this BulkWriter instance is closed. Once closed, it cannot be opened again. */
   @GuardedBy("lock")
@@ -190,8 +292,15 @@ public final class BulkWriter implements AutoCloseable {
   @GuardedBy("lock")
   private boolean writesEnqueued = false;
 
+  /** Tracks the number of pending operations that were enqueued between two flush() calls. */
+  private static class FlushEpoch {
+    final SettableApiFuture<Void> flushFuture = SettableApiFuture.create();
+    int pendingOperations = 0;
+  }
+
   BulkWriter(FirestoreImpl firestore, BulkWriterOptions options) {
     this.firestore = firestore;
+    this.flushEpochs.add(new FlushEpoch());
     this.bulkWriterExecutor =
         options.getExecutor() != null
             ? options.getExecutor()
@@ -199,11 +308,23 @@ public final class BulkWriter implements AutoCloseable {
     this.successExecutor = MoreExecutors.directExecutor();
     this.errorExecutor = MoreExecutors.directExecutor();
     this.bulkCommitBatch = new BulkCommitBatch(firestore, bulkWriterExecutor);
+    this.maxPendingBatches = options.getMaxPendingBatches();
+    this.maxPendingOperations = options.getMaxPendingOperations();
+    this.writeCoalescingEnabled = options.getWriteCoalescingEnabled();
+    this.adaptiveThrottlingEnabled = options.getAdaptiveThrottlingEnabled();
 
     if (!options.getThrottlingEnabled()) {
       this.rateLimiter =
           new RateLimiter(
               Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    } else if (options.getRateLimiter() != null) {
+      this.rateLimiter = options.getRateLimiter().getRateLimiter();
+
+      // Ensure that the batch size is not larger than the number of allowed
+      // operations per second.
+      if (rateLimiter.getInitialCapacity() < maxBatchSize) {
+        this.maxBatchSize = rateLimiter.getInitialCapacity();
+      }
     } else {
       double startingRate = DEFAULT_STARTING_MAXIMUM_OPS_PER_SECOND;
       double maxRate = Double.POSITIVE_INFINITY;
@@ -236,6 +357,16 @@ public final class BulkWriter implements AutoCloseable {
               RATE_LIMITER_MULTIPLIER_MILLIS,
               (int) maxRate);
     }
+
+    // Batches larger than the initial capacity of the rate limiter could never be sent.
+    this.batchSizer =
+        options.getAdaptiveBatchSizingEnabled()
+            ? new AdaptiveBatchSizer(
+                maxBatchSize,
+                Math.max(
+                    maxBatchSize,
+                    Math.min(MAX_ADAPTIVE_BATCH_SIZE, rateLimiter.getInitialCapacity())))
+            : null;
   }
 
   /**
@@ -619,6 +750,31 @@ public final class BulkWriter implements AutoCloseable {
       final DocumentReference documentReference,
       final OperationType operationType,
       final ApiFunction<BulkCommitBatch, ApiFuture<WriteResult>> enqueueOperationOnBatchCallback) {
+    // Writes issued from BulkWriter callbacks must not wait for capacity, since the operations they
+    // would wait for can only complete once the callbacks return.
+    boolean applyBackpressure = !Thread.holdsLock(lock) && !inCallback.get();
+
+    while (true) {
+      ApiFuture<Void> capacity;
+      synchronized (lock) {
+        verifyNotClosedLocked();
+        if (!applyBackpressure || pendingOperationCount < maxPendingOperations) {
+          return enqueueWriteLocked(
+              documentReference, operationType, enqueueOperationOnBatchCallback);
+        }
+        capacity = awaitCapacityLocked();
+      }
+      // Wait outside of the lock, which allows virtual threads to unmount while they are blocked.
+      waitForCapacity(capacity);
+    }
+  }
+
+  private ApiFuture<WriteResult> enqueueWriteLocked(
+      final DocumentReference documentReference,
+      final OperationType operationType,
+      final ApiFunction<BulkCommitBatch, ApiFuture<WriteResult>> enqueueOperationOnBatchCallback) {
+    final FlushEpoch epoch = flushEpochs.getLast();
+
     BulkWriterOperation operation =
         new BulkWriterOperation(
             documentReference,
@@ -647,15 +803,144 @@ public final class BulkWriter implements AutoCloseable {
                   return invokeUserErrorCallbackLocked(e);
                 }
               }
+            },
+            new ApiFunction<BulkWriterOperation, Void>() {
+              @Override
+              public Void apply(BulkWriterOperation operation) {
+                final List<SettableApiFuture<Void>> completedFlushes;
+                List<SettableApiFuture<Void>> completedWaiters;
+                synchronized (lock) {
+                  --epoch.pendingOperations;
+                  --pendingOperationCount;
+                  completedFlushes = pollCompletedFlushesLocked();
+                  completedWaiters = pollCapacityWaitersLocked();
+                }
+                // Resolve the futures outside of the lock since they may run user code.
+                for (SettableApiFuture<Void> waiter : completedWaiters) {
+                  waiter.set(null);
+                }
+                // The operation's future completes after this callback returns. Resolve the
+                // flushes afterwards, since a flush must not complete before its writes.
+                if (!completedFlushes.isEmpty()) {
+                  operation
+                      .getFuture()
+                      .addListener(
+                          new Runnable() {
+                            @Override
+                            public void run() {
+                              for (SettableApiFuture<Void> flush : completedFlushes) {
+                                flush.set(null);
+                              }
+                            }
+                          },
+                          MoreExecutors.directExecutor());
+                }
+                return null;
+              }
             });
 
+    writesEnqueued = true;
+    sendOperationLocked(enqueueOperationOnBatchCallback, operation);
+    ++epoch.pendingOperations;
+    ++pendingOperationCount;
+
+    return operation.getFuture();
+  }
+
+  /**
+   * Blocks the calling thread until the provided future from {@link #awaitCapacityLocked()}
+   * completes.
+   */
+  private static void waitForCapacity(ApiFuture<Void> capacity) {
+    try {
+      capacity.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FirestoreException(
+          "Interrupted while waiting for BulkWriter to complete pending operations.",
+          Status.CANCELLED);
+    } catch (ExecutionException e) {
+      // Capacity futures are never failed.
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Marks the current thread as running a BulkWriter callback or a listener of a write's future, so
+   * that writes it enqueues do not wait for capacity. Returns whether the thread was already
+   * marked, which must be passed to {@link #exitCallback}.
+   */
+  static boolean enterCallback() {
+    boolean wasInCallback = inCallback.get();
+    inCallback.set(true);
+    return wasInCallback;
+  }
+
+  /** Restores the state of the current thread from before {@link #enterCallback}. */
+  static void exitCallback(boolean wasInCallback) {
+    inCallback.set(wasInCallback);
+  }
+
+  /** Returns the futures of capacity waiters that can complete. */
+  private List<SettableApiFuture<Void>> pollCapacityWaitersLocked() {
+    if (pendingOperationCount >= maxPendingOperations) {
+      return Collections.emptyList();
+    }
+    if (capacityWaiters.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<SettableApiFuture<Void>> completedWaiters = new ArrayList<>(capacityWaiters);
+    capacityWaiters.clear();
+    return completedWaiters;
+  }
+
+  /**
+   * Returns an ApiFuture that completes once BulkWriter can accept another write without blocking.
+   *
+   * <p>If {@link BulkWriterOptions.Builder#setMaxPendingOperations} is set, enqueuing a write
+   * blocks the calling thread while the maximum number of operations is pending. Callers that
+   * should not block can wait for this ApiFuture before enqueuing each write. The ApiFuture
+   * completes immediately if the limit has not been reached.
+   *
+   * <p>Since other threads may enqueue writes at the same time, capacity is not reserved for the
+   * caller.
+   *
+   * @return An ApiFuture that completes when fewer than the maximum number of operations are
+   *     pending.
+   */
+  @Nonnull
+  public ApiFuture<Void> awaitCapacity() {
     synchronized (lock) {
       verifyNotClosedLocked();
-      writesEnqueued = true;
-      sendOperationLocked(enqueueOperationOnBatchCallback, operation);
+      if (pendingOperationCount < maxPendingOperations) {
+        return ApiFutures.immediateFuture(null);
+      }
+      return awaitCapacityLocked();
     }
+  }
 
-    return operation.getFuture();
+  /**
+   * Returns a future that completes once an operation completes. The current batch is sent, since
+   * its operations would otherwise not complete until the batch fills up.
+   */
+  private ApiFuture<Void> awaitCapacityLocked() {
+    sendCurrentBatchLocked();
+    SettableApiFuture<Void> waiter = SettableApiFuture.create();
+    capacityWaiters.add(waiter);
+    return waiter;
+  }
+
+  /**
+   * Removes all closed epochs whose operations have completed and returns the futures of their
+   * flush() calls. Epochs are completed in order, so a flush() only resolves once all writes that
+   * were enqueued before it have completed.
+   */
+  private List<SettableApiFuture<Void>> pollCompletedFlushesLocked() {
+    List<SettableApiFuture<Void>> completedFlushes = new ArrayList<>();
+    while (flushEpochs.size() > 1 && flushEpochs.getFirst().pendingOperations == 0) {
+      completedFlushes.add(flushEpochs.removeFirst().flushFuture);
+    }
+    return completedFlushes;
   }
 
   /**
@@ -681,8 +966,17 @@ public final class BulkWriter implements AutoCloseable {
 
   private ApiFuture<Void> flushLocked() {
     verifyNotClosedLocked();
-    sendCurrentBatchLocked(/* flush= */ true);
-    return lastOperation;
+    sendCurrentBatchLocked();
+
+    FlushEpoch epoch = flushEpochs.getLast();
+    flushEpochs.add(new FlushEpoch());
+
+    // The only epoch that can become complete here is the one that was just closed, and no
+    // listeners have been attached to its future yet.
+    for (SettableApiFuture<Void> flush : pollCompletedFlushesLocked()) {
+      flush.set(null);
+    }
+    return epoch.flushFuture;
   }
 
   /**
@@ -696,9 +990,16 @@ public final class BulkWriter implements AutoCloseable {
    */
   public void close() throws InterruptedException, ExecutionException {
     ApiFuture<Void> flushFuture;
+    List<SettableApiFuture<Void>> waiters;
     synchronized (lock) {
       flushFuture = flushLocked();
       closed = true;
+      waiters = new ArrayList<>(capacityWaiters);
+      capacityWaiters.clear();
+    }
+    // Writers that are blocked on capacity fail once they wake up.
+    for (SettableApiFuture<Void> waiter : waiters) {
+      waiter.set(null);
     }
     flushFuture.get();
   }
@@ -840,48 +1141,87 @@ public final class BulkWriter implements AutoCloseable {
   }
 
   /**
-   * Sends the current batch and resets {@link #bulkCommitBatch}.
-   *
-   * @param flush If provided, keeps re-sending operations until no more operations are enqueued.
-   *     This allows retries to resolve as part of a {@link BulkWriter#flush()} or {@link
-   *     BulkWriter#close()} call.
+   * Moves the current batch to the queue of batches that are ready to be sent and resets {@link
+   * #bulkCommitBatch}.
    */
-  private void sendCurrentBatchLocked(final boolean flush) {
+  private void sendCurrentBatchLocked() {
     if (bulkCommitBatch.getMutationsSize() == 0) return;
-    BulkCommitBatch pendingBatch = bulkCommitBatch;
+    readyBatches.add(bulkCommitBatch);
     bulkCommitBatch = new BulkCommitBatch(firestore, bulkWriterExecutor);
+    sendReadyBatchesLocked();
+  }
 
-    // Send the batch if it is under the rate limit, or schedule another attempt after the
-    // appropriate timeout.
-    boolean underRateLimit = rateLimiter.tryMakeRequest(pendingBatch.getMutationsSize());
-    if (underRateLimit) {
-      pendingBatch
-          .bulkCommit()
+  /**
+   * Sends as many ready batches as allowed by {@link #maxPendingBatches} and the rate limiter. If
+   * the rate limiter does not have enough capacity for the next batch, schedules another attempt
+   * after the appropriate timeout.
+   */
+  private void sendReadyBatchesLocked() {
+    while (!backoffScheduled && !readyBatches.isEmpty() && pendingBatchCount < maxPendingBatches) {
+      final BulkCommitBatch batch = readyBatches.peek();
+
+      // Send the batch if it is under the rate limit, or schedule another attempt after the
+      // appropriate timeout.
+      boolean underRateLimit = rateLimiter.tryMakeRequest(batch.getMutationsSize());
+      if (!underRateLimit) {
+        long delayMs = rateLimiter.getNextRequestDelayMs(batch.getMutationsSize());
+        logger.log(Level.FINE, String.format("Backing off for %d seconds", delayMs / 1000));
+        backoffScheduled = true;
+        bulkWriterExecutor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                synchronized (lock) {
+                  backoffScheduled = false;
+                  sendReadyBatchesLocked();
+                }
+              }
+            },
+            delayMs,
+            TimeUnit.MILLISECONDS);
+        return;
+      }
+
+      readyBatches.poll();
+      ++pendingBatchCount;
+      batch
+          .bulkCommit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  // Update the batch size and rate before the results are delivered, so that
+                  // retries are sent at the updated rate.
+                  synchronized (lock) {
+                    if (batchSizer != null) {
+                      batchSizer.recordLatency(batch.getRpcLatencyMillis());
+                    }
+                    if (adaptiveThrottlingEnabled) {
+                      if (batch.isContended()) {
+                        // Never reduce the rate below the size of a batch, as such a batch could
+                        // not be sent.
+                        rateLimiter.reduceCapacity(
+                            getLargestUnsentBatchSizeLocked(), batch.getSendTimeMillis());
+                      } else {
+                        rateLimiter.increaseCapacity();
+                      }
+                    }
+                  }
+                }
+              })
           .addListener(
               new Runnable() {
                 @Override
                 public void run() {
                   synchronized (lock) {
-                    sendCurrentBatchLocked(flush);
+                    --pendingBatchCount;
+                    // Send any retries that were enqueued while the batch was in flight. This
+                    // allows retries to resolve as part of a flush() or close() call.
+                    sendCurrentBatchLocked();
+                    sendReadyBatchesLocked();
                   }
                 }
               },
               bulkWriterExecutor);
-
-    } else {
-      long delayMs = rateLimiter.getNextRequestDelayMs(pendingBatch.getMutationsSize());
-      logger.log(Level.FINE, String.format("Backing off for %d seconds", delayMs / 1000));
-      bulkWriterExecutor.schedule(
-          new Runnable() {
-            @Override
-            public void run() {
-              synchronized (lock) {
-                sendCurrentBatchLocked(flush);
-              }
-            }
-          },
-          delayMs,
-          TimeUnit.MILLISECONDS);
     }
   }
 
@@ -890,43 +1230,110 @@ public final class BulkWriter implements AutoCloseable {
     maxBatchSize = size;
   }
 
+  @VisibleForTesting
+  void setMaxBatchSizeBytes(long sizeBytes) {
+    maxBatchSizeBytes = sizeBytes;
+  }
+
+  @VisibleForTesting
+  @Nullable
+  AdaptiveBatchSizer getBatchSizer() {
+    return batchSizer;
+  }
+
+  /**
+   * Returns the number of writes at which the current batch is sent. An adaptive batch size is
+   * bounded by the current rate, since a larger batch could not be sent.
+   */
+  private int getMaxBatchSizeLocked() {
+    if (batchSizer == null) {
+      return maxBatchSize;
+    }
+    int capacity = rateLimiter.calculateCapacity(new Date().getTime());
+    return Math.max(1, Math.min(batchSizer.getBatchSize(), capacity));
+  }
+
+  /**
+   * Returns the number of writes in the largest batch that has not been sent yet, which is at least
+   * the size at which the current batch is sent.
+   */
+  private int getLargestUnsentBatchSizeLocked() {
+    int size = Math.max(getMaxBatchSizeLocked(), bulkCommitBatch.getMutationsSize());
+    for (BulkCommitBatch batch : readyBatches) {
+      size = Math.max(size, batch.getMutationsSize());
+    }
+    return size;
+  }
+
   @VisibleForTesting
   RateLimiter getRateLimiter() {
     return rateLimiter;
   }
 
   /**
-   * Schedules the provided operations on the current BulkCommitBatch. Sends the BulkCommitBatch if
-   * it reaches maximum capacity.
+   * Builds the operation's write on a separate batch that is never sent, so that the write can be
+   * inspected before it becomes part of the current batch.
+   */
+  private BulkCommitBatch buildOperationLocked(
+      ApiFunction<BulkCommitBatch, ApiFuture<WriteResult>> enqueueOperationOnBatchCallback,
+      BulkWriterOperation op) {
+    BulkCommitBatch operationBatch = new BulkCommitBatch(firestore, bulkWriterExecutor);
+    operationBatch.enqueueOperation(op);
+    enqueueOperationOnBatchCallback.apply(operationBatch);
+    return operationBatch;
+  }
+
+  /**
+   * Tries to merge the operation's write, which was built on a separate batch, into the write that
+   * the current batch already contains for the same document.
+   */
+  private boolean coalesceOperationLocked(BulkCommitBatch operationBatch, BulkWriterOperation op) {
+    return bulkCommitBatch.coalesce(op, operationBatch.getWrites().get(0).write.build());
+  }
+
+  /**
+   * Schedules the provided operations on the current BulkCommitBatch. Sends the BulkCommitBatch
+   * first if the operation's write would take it over the maximum request size, and afterwards if
+   * it reaches the maximum number of writes or the maximum request size.
    */
   private void sendOperationLocked(
       ApiFunction<BulkCommitBatch, ApiFuture<WriteResult>> enqueueOperationOnBatchCallback,
       final BulkWriterOperation op) {
-    if (bulkCommitBatch.has(op.getDocumentReference())) {
-      // Create a new batch since the backend doesn't support batches with two writes to the same
-      // document.
-      sendCurrentBatchLocked(/* flush= */ false);
+    BulkCommitBatch operationBatch = null;
+    if (bulkCommitBatch.getMutationsSize() > 0
+        && bulkCommitBatch.getRequestSizeBytes() + MAX_WRITE_SIZE_BYTES > maxBatchSizeBytes) {
+      // The write may not fit into the current batch, so check its size before adding it.
+      operationBatch = buildOperationLocked(enqueueOperationOnBatchCallback, op);
+      if (bulkCommitBatch.getRequestSizeBytes() + operationBatch.getRequestSizeBytes()
+          > maxBatchSizeBytes) {
+        sendCurrentBatchLocked();
+      }
     }
 
-    // Run the operation on the current batch and advance the `lastOperation` pointer. This
-    // ensures that `lastOperation` only resolves when both the previous and the current write
-    // resolves.
-    bulkCommitBatch.enqueueOperation(op);
-    enqueueOperationOnBatchCallback.apply(bulkCommitBatch);
+    boolean coalesced = false;
+    if (bulkCommitBatch.has(op.getDocumentReference())) {
+      if (writeCoalescingEnabled) {
+        if (operationBatch == null) {
+          operationBatch = buildOperationLocked(enqueueOperationOnBatchCallback, op);
+        }
+        coalesced = coalesceOperationLocked(operationBatch, op);
+      }
+      if (!coalesced) {
+        // Create a new batch since the backend doesn't support batches with two writes to the same
+        // document.
+        sendCurrentBatchLocked();
+      }
+    }
 
-    lastOperation =
-        ApiFutures.transformAsync(
-            lastOperation,
-            new ApiAsyncFunction<Void, Void>() {
-              @Override
-              public ApiFuture<Void> apply(Void aVoid) {
-                return silenceFuture(op.getFuture());
-              }
-            },
-            MoreExecutors.directExecutor());
+    if (!coalesced) {
+      // Run the operation on the current batch.
+      bulkCommitBatch.enqueueOperation(op);
+      enqueueOperationOnBatchCallback.apply(bulkCommitBatch);
+    }
 
-    if (bulkCommitBatch.getMutationsSize() == maxBatchSize) {
-      sendCurrentBatchLocked(/* flush= */ false);
+    if (bulkCommitBatch.getMutationsSize() >= getMaxBatchSizeLocked()
+        || bulkCommitBatch.getRequestSizeBytes() >= maxBatchSizeBytes) {
+      sendCurrentBatchLocked();
     }
   }
 
@@ -939,11 +1346,14 @@ public final class BulkWriter implements AutoCloseable {
         new Runnable() {
           @Override
           public void run() {
+            boolean wasInCallback = enterCallback();
             try {
               boolean shouldRetry = listener.onError(error);
               callbackResult.set(shouldRetry);
             } catch (Exception e) {
               callbackResult.setException(e);
+            } finally {
+              exitCallback(wasInCallback);
             }
           }
         });
@@ -959,11 +1369,14 @@ public final class BulkWriter implements AutoCloseable {
         new Runnable() {
           @Override
           public void run() {
+            boolean wasInCallback = enterCallback();
             try {
               listener.onResult(documentReference, result);
               callbackResult.set(null);
             } catch (Exception e) {
               callbackResult.setException(e);
+            } finally {
+              exitCallback(wasInCallback);
             }
           }
         });
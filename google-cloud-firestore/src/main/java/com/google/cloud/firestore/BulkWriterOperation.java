@@ -33,6 +33,7 @@ class BulkWriterOperation {
   private final ApiFunction<BulkWriterOperation, Void> scheduleWriteCallback;
   private final ApiFunction<WriteResult, ApiFuture<Void>> successListener;
   private final ApiFunction<BulkWriterException, ApiFuture<Boolean>> errorListener;
+  private final ApiFunction<BulkWriterOperation, Void> completionCallback;
 
   private int failedAttempts = 0;
 
@@ -42,18 +43,23 @@ class BulkWriterOperation {
    * @param scheduleWriteCallback The callback used to schedule a new write.
    * @param successListener The user-provided success handler.
    * @param errorListener The user-provided error handler.
+   * @param completionCallback The callback invoked once the operation has completed, before its
+   *     future is resolved. This releases the operation's capacity before listeners of the future
+   *     run, which allows them to enqueue more writes.
    */
   BulkWriterOperation(
       DocumentReference documentReference,
       BulkWriter.OperationType operationType,
       ApiFunction<BulkWriterOperation, Void> scheduleWriteCallback,
       ApiFunction<WriteResult, ApiFuture<Void>> successListener,
-      ApiFunction<BulkWriterException, ApiFuture<Boolean>> errorListener) {
+      ApiFunction<BulkWriterException, ApiFuture<Boolean>> errorListener,
+      ApiFunction<BulkWriterOperation, Void> completionCallback) {
     this.documentReference = documentReference;
     this.operationType = operationType;
     this.scheduleWriteCallback = scheduleWriteCallback;
     this.successListener = successListener;
     this.errorListener = errorListener;
+    this.completionCallback = completionCallback;
   }
 
   /**
@@ -87,7 +93,7 @@ class BulkWriterOperation {
         new ApiFutureCallback<Boolean>() {
           @Override
           public void onFailure(Throwable throwable) {
-            operationFuture.setException(throwable);
+            completeExceptionally(throwable);
             callbackFuture.set(null);
           }
 
@@ -96,7 +102,7 @@ class BulkWriterOperation {
             if (shouldRetry) {
               scheduleWriteCallback.apply(BulkWriterOperation.this);
             } else {
-              operationFuture.setException(bulkWriterException);
+              completeExceptionally(bulkWriterException);
             }
             callbackFuture.set(null);
           }
@@ -114,17 +120,33 @@ class BulkWriterOperation {
         new ApiFutureCallback<Void>() {
           @Override
           public void onFailure(Throwable throwable) {
-            operationFuture.setException(throwable);
+            completeExceptionally(throwable);
             callbackFuture.set(null);
           }
 
           @Override
           public void onSuccess(Void aVoid) {
-            operationFuture.set(result);
+            completionCallback.apply(BulkWriterOperation.this);
+            boolean wasInCallback = BulkWriter.enterCallback();
+            try {
+              operationFuture.set(result);
+            } finally {
+              BulkWriter.exitCallback(wasInCallback);
+            }
             callbackFuture.set(null);
           }
         },
         MoreExecutors.directExecutor());
     return callbackFuture;
   }
+
+  private void completeExceptionally(Throwable throwable) {
+    completionCallback.apply(this);
+    boolean wasInCallback = BulkWriter.enterCallback();
+    try {
+      operationFuture.setException(throwable);
+    } finally {
+      BulkWriter.exitCallback(wasInCallback);
+    }
+  }
 }
@@ -59,12 +59,65 @@ public abstract class BulkWriterOptions {
   @Nullable
   public abstract ScheduledExecutorService getExecutor();
 
+  /**
+   * Returns the maximum number of batches that BulkWriter keeps in flight at the same time.
+   *
+   * @return The maximum number of concurrent BatchWrite requests.
+   */
+  public abstract int getMaxPendingBatches();
+
+  /**
+   * Returns whether BulkWriter adjusts the number of writes per batch based on the observed latency
+   * of previous batches.
+   *
+   * @return Whether adaptive batch sizing is enabled.
+   */
+  public abstract boolean getAdaptiveBatchSizingEnabled();
+
+  /**
+   * Returns whether the throttler reduces its rate when writes fail due to contention or backend
+   * overload.
+   *
+   * @return Whether adaptive throttling is enabled.
+   */
+  public abstract boolean getAdaptiveThrottlingEnabled();
+
+  /**
+   * Returns the write budget that this BulkWriter shares with other writers.
+   *
+   * @return The shared {@link WriteRateLimiter}. If null, BulkWriter uses its own throttler.
+   */
+  @Nullable
+  public abstract WriteRateLimiter getRateLimiter();
+
+  /**
+   * Returns the maximum number of operations that can be enqueued but not yet completed before
+   * BulkWriter applies backpressure.
+   *
+   * @return The maximum number of pending operations.
+   */
+  public abstract int getMaxPendingOperations();
+
+  /**
+   * Returns whether BulkWriter combines consecutive writes to the same document into a single
+   * write.
+   *
+   * @return Whether write coalescing is enabled.
+   */
+  public abstract boolean getWriteCoalescingEnabled();
+
   public static Builder builder() {
     return new AutoValue_BulkWriterOptions.Builder()
         .setMaxOpsPerSecond(null)
         .setInitialOpsPerSecond(null)
         .setThrottlingEnabled(true)
-        .setExecutor(null);
+        .setExecutor(null)
+        .setMaxPendingBatches(BulkWriter.DEFAULT_MAXIMUM_PENDING_BATCHES)
+        .setAdaptiveBatchSizingEnabled(false)
+        .setAdaptiveThrottlingEnabled(false)
+        .setRateLimiter(null)
+        .setMaxPendingOperations(Integer.MAX_VALUE)
+        .setWriteCoalescingEnabled(false);
   }
 
   public abstract Builder toBuilder();
@@ -123,6 +176,70 @@ public abstract class BulkWriterOptions {
      */
     public abstract Builder setExecutor(@Nullable ScheduledExecutorService executor);
 
+    /**
+     * Sets the maximum number of batches that BulkWriter keeps in flight at the same time. Once
+     * this many BatchWrite requests are outstanding, further batches are queued until an
+     * outstanding request completes. Batches are still subject to the throttler.
+     *
+     * @param maxPendingBatches The maximum number of concurrent BatchWrite requests.
+     */
+    public abstract Builder setMaxPendingBatches(int maxPendingBatches);
+
+    /**
+     * Sets whether BulkWriter should adjust the number of writes per batch based on the observed
+     * latency of previous batches. When enabled, the batch size starts at {@link
+     * BulkWriter#MAX_BATCH_SIZE} and grows as long as the latency of BatchWrite requests does not
+     * increase. By default, adaptive batch sizing is disabled.
+     *
+     * @param enabled Whether adaptive batch sizing should be enabled.
+     */
+    public abstract Builder setAdaptiveBatchSizingEnabled(boolean enabled);
+
+    /**
+     * Sets whether the throttler should adapt to contention. When enabled, the throttler halves its
+     * allowed operations per second whenever a batch contains writes that failed with
+     * RESOURCE_EXHAUSTED, UNAVAILABLE or ABORTED, and raises it linearly after each successful
+     * batch until it catches up with the regular ramp-up schedule. By default, adaptive throttling
+     * is disabled.
+     *
+     * @param enabled Whether adaptive throttling should be enabled.
+     */
+    public abstract Builder setAdaptiveThrottlingEnabled(boolean enabled);
+
+    /**
+     * Sets a write budget that is shared with other BulkWriter instances. All writers that use the
+     * same {@link WriteRateLimiter} draw their operations from a single budget, which keeps their
+     * combined rate within the 500/50/5 rule.
+     *
+     * @param rateLimiter The shared write budget.
+     */
+    public abstract Builder setRateLimiter(@Nullable WriteRateLimiter rateLimiter);
+
+    /**
+     * Sets the maximum number of operations that can be enqueued but not yet completed. Once this
+     * many operations are pending, calls that enqueue a write block until an operation completes.
+     * Callers that should not block can wait for {@link BulkWriter#awaitCapacity()} before
+     * enqueuing a write. By default, the number of pending operations is not limited.
+     *
+     * @param maxPendingOperations The maximum number of pending operations.
+     */
+    public abstract Builder setMaxPendingOperations(int maxPendingOperations);
+
+    /**
+     * Sets whether consecutive set and update operations on the same document are combined into a
+     * single write, which reduces the number of requests and billed writes for workloads that
+     * modify the same document repeatedly. Integer increments of the same field are summed up. Each
+     * combined operation resolves with the result of the combined write.
+     *
+     * <p>Writes are only combined while they are in the same batch, and deletes, creates and writes
+     * with an update time precondition are never combined. Write coalescing is disabled by default,
+     * in which case each write to a document that already has a write in the current batch is sent
+     * in a new batch.
+     *
+     * @param enabled Whether to combine writes to the same document.
+     */
+    public abstract Builder setWriteCoalescingEnabled(boolean enabled);
+
     public abstract BulkWriterOptions autoBuild();
 
     @Nonnull
@@ -148,10 +265,34 @@ public abstract class BulkWriterOptions {
             "'maxOpsPerSecond' cannot be less than 'initialOpsPerSecond'.");
       }
 
+      if (options.getMaxPendingBatches() < 1) {
+        throw FirestoreException.forInvalidArgument(
+            "Value for argument 'maxPendingBatches' must be at least 1, but was: "
+                + options.getMaxPendingBatches());
+      }
+
       if (!options.getThrottlingEnabled() && (maxRate != null || initialRate != null)) {
         throw FirestoreException.forInvalidArgument(
             "Cannot set 'initialOpsPerSecond' or 'maxOpsPerSecond' when 'throttlingEnabled' is set to false.");
       }
+
+      if (options.getMaxPendingOperations() < 1) {
+        throw FirestoreException.forInvalidArgument(
+            "Value for argument 'maxPendingOperations' must be at least 1, but was: "
+                + options.getMaxPendingOperations());
+      }
+
+      if (options.getRateLimiter() != null
+          && (!options.getThrottlingEnabled() || maxRate != null || initialRate != null)) {
+        throw FirestoreException.forInvalidArgument(
+            "Cannot set 'rateLimiter' together with 'initialOpsPerSecond', 'maxOpsPerSecond' or "
+                + "'throttlingEnabled'.");
+      }
+
+      if (!options.getThrottlingEnabled() && options.getAdaptiveThrottlingEnabled()) {
+        throw FirestoreException.forInvalidArgument(
+            "Cannot enable 'adaptiveThrottlingEnabled' when 'throttlingEnabled' is set to false.");
+      }
       return options;
     }
   }
@@ -46,10 +46,18 @@ public class CollectionGroup extends Query {
   final Query partitionQuery;
 
   CollectionGroup(FirestoreRpcContext<?> rpcContext, String collectionId) {
+    this(rpcContext, rpcContext.getResourcePath(), collectionId);
+  }
+
+  /**
+   * Creates a Collection Group query that only matches documents under the provided parent path. An
+   * empty collection ID matches documents in all collections.
+   */
+  CollectionGroup(FirestoreRpcContext<?> rpcContext, ResourcePath parentPath, String collectionId) {
     super(
         rpcContext,
         QueryOptions.builder()
-            .setParentPath(rpcContext.getResourcePath())
+            .setParentPath(parentPath)
             .setCollectionId(collectionId)
             .setAllDescendants(true)
             .build());
@@ -104,6 +112,7 @@ public class CollectionGroup extends Query {
     }
   }
 
+  @Override
   public ApiFuture<List<QueryPartition>> getPartitions(long desiredPartitionCount) {
     if (desiredPartitionCount == 1) {
       // Short circuit if the user only requested a single partition.
@@ -192,17 +192,7 @@ public class CollectionReference extends Query {
   @Nonnull
   public ApiFuture<DocumentReference> add(@Nonnull final Map<String, Object> fields) {
     final DocumentReference documentReference = document();
-    ApiFuture<WriteResult> createFuture = documentReference.create(fields);
-
-    return ApiFutures.transform(
-        createFuture,
-        new ApiFunction<WriteResult, DocumentReference>() {
-          @Override
-          public DocumentReference apply(WriteResult writeResult) {
-            return documentReference;
-          }
-        },
-        MoreExecutors.directExecutor());
+    return withDocumentReference(documentReference, documentReference.create(fields));
   }
 
   /**
@@ -215,12 +205,21 @@ public class CollectionReference extends Query {
    * @see #document()
    */
   public ApiFuture<DocumentReference> add(Object pojo) {
-    Object converted = CustomClassMapper.convertToPlainJavaTypes(pojo);
-    if (!(converted instanceof Map)) {
-      throw FirestoreException.forInvalidArgument(
-          "Can't set a document's data to an array or primitive");
-    }
-    return add((Map<String, Object>) converted);
+    final DocumentReference documentReference = document();
+    return withDocumentReference(documentReference, documentReference.create(pojo));
+  }
+
+  private static ApiFuture<DocumentReference> withDocumentReference(
+      final DocumentReference documentReference, ApiFuture<WriteResult> createFuture) {
+    return ApiFutures.transform(
+        createFuture,
+        new ApiFunction<WriteResult, DocumentReference>() {
+          @Override
+          public DocumentReference apply(WriteResult writeResult) {
+            return documentReference;
+          }
+        },
+        MoreExecutors.directExecutor());
   }
 
   /** Returns a resource path pointing to this collection. */
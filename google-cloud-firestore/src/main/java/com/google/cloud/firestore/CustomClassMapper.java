@@ -17,13 +17,18 @@
 package com.google.cloud.firestore;
 
 import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.UserDataConverter.EncodingOptions;
 import com.google.cloud.firestore.annotation.DocumentId;
 import com.google.cloud.firestore.annotation.Exclude;
 import com.google.cloud.firestore.annotation.IgnoreExtraProperties;
 import com.google.cloud.firestore.annotation.PropertyName;
 import com.google.cloud.firestore.annotation.ServerTimestamp;
 import com.google.cloud.firestore.annotation.ThrowOnExtraProperties;
+import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.DocumentTransform.FieldTransform;
+import com.google.firestore.v1.MapValue;
 import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Value.ValueTypeCase;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -48,6 +53,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /** Helper class to convert to/from custom POJO classes and plain Java types. */
 class CustomClassMapper {
@@ -97,7 +103,51 @@ class CustomClassMapper {
    * @return The POJO object.
    */
   static <T> T convertToCustomClass(Object object, Class<T> clazz, DocumentReference docRef) {
-    return deserializeToClass(object, clazz, new DeserializeContext(ErrorPath.EMPTY, docRef));
+    return deserializeToClass(
+        object, clazz, new DeserializeContext(ErrorPath.EMPTY, /* rpcContext= */ null, docRef));
+  }
+
+  /**
+   * Converts a Firestore Value to an object of the provided class. Maps and arrays are decoded as
+   * their entries are deserialized, so that values which are not deserialized into the object are
+   * never decoded.
+   *
+   * @param value The Value to convert
+   * @param clazz The class of the object to convert to
+   * @param rpcContext The context used to decode document references.
+   * @param docRef The value to set to {@link DocumentId} annotated fields in the custom class.
+   * @return The POJO object.
+   */
+  static <T> T convertToCustomClass(
+      Value value, Class<T> clazz, FirestoreRpcContext<?> rpcContext, DocumentReference docRef) {
+    return deserializeToClass(
+        value, clazz, new DeserializeContext(ErrorPath.EMPTY, rpcContext, docRef));
+  }
+
+  /**
+   * Converts the fields of a document to an object of the provided class. Only the fields that are
+   * deserialized into the object are decoded.
+   *
+   * @param fields The fields of the document
+   * @param clazz The class of the object to convert to
+   * @param rpcContext The context used to decode document references.
+   * @param docRef The value to set to {@link DocumentId} annotated fields in the custom class.
+   * @return The POJO object.
+   */
+  static <T> T convertToCustomClass(
+      Map<String, Value> fields,
+      Class<T> clazz,
+      FirestoreRpcContext<?> rpcContext,
+      DocumentReference docRef) {
+    DeserializeContext context = new DeserializeContext(ErrorPath.EMPTY, rpcContext, docRef);
+    if (isBeanClass(clazz)) {
+      return loadOrCreateBeanMapperForClass(clazz).deserialize(fields, context);
+    }
+    Map<String, Object> data = new HashMap<>();
+    for (Map.Entry<String, Value> entry : fields.entrySet()) {
+      data.put(entry.getKey(), UserDataConverter.decodeValue(rpcContext, entry.getValue()));
+    }
+    return deserializeToClass(data, clazz, context);
   }
 
   static <T> Object serialize(T o) {
@@ -182,6 +232,176 @@ class CustomClassMapper {
     }
   }
 
+  /**
+   * Encodes a POJO or a Map as the fields of a document. The result is the same as encoding the
+   * result of {@link #convertToPlainJavaTypes(Object)} with {@link UserDataConverter#encodeValue},
+   * but the Value protos are built in a single pass without creating intermediate Maps and Lists.
+   *
+   * @param object The POJO or Map to encode.
+   * @param options The encoding options that FieldValue sentinels are validated against.
+   * @param transforms The map to which the field transforms of FieldValue sentinels are added.
+   * @return The fields of the document, or null if the object is neither a POJO nor a Map.
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static Map<String, Value> encodeDocument(
+      Object object, EncodingOptions options, Map<FieldPath, FieldTransform> transforms) {
+    ValueEncoder encoder = new ValueEncoder(options, transforms);
+    MapValue.Builder fields = MapValue.newBuilder();
+    if (object instanceof Map) {
+      encoder.encodeMap((Map<?, ?>) object, fields, ErrorPath.EMPTY, FieldPath.empty(), false);
+    } else if (isBean(object)) {
+      BeanMapper<Object> mapper = loadOrCreateBeanMapperForClass((Class<Object>) object.getClass());
+      mapper.encode(object, encoder, fields, ErrorPath.EMPTY, FieldPath.empty(), false);
+    } else {
+      return null;
+    }
+    return fields.getFieldsMap();
+  }
+
+  /** Returns whether the object is serialized with a {@link BeanMapper}. */
+  private static boolean isBean(@Nullable Object o) {
+    return o != null
+        && !(o instanceof Number
+            || o instanceof String
+            || o instanceof Boolean
+            || o instanceof Character
+            || o instanceof Map
+            || o instanceof Collection
+            || o.getClass().isArray()
+            || o instanceof Enum
+            || o instanceof Date
+            || o instanceof Timestamp
+            || o instanceof GeoPoint
+            || o instanceof Blob
+            || o instanceof DocumentReference
+            || o instanceof FieldValue
+            || o instanceof Value);
+  }
+
+  /**
+   * Encodes objects to Value protos in a single pass. Values are validated and encoded as by {@link
+   * #serialize} followed by {@link UserDataConverter#encodeValue}, and the field transforms of
+   * FieldValue sentinels are collected as by {@link DocumentTransform}.
+   */
+  private static final class ValueEncoder {
+    private final EncodingOptions options;
+    private final Map<FieldPath, FieldTransform> transforms;
+
+    ValueEncoder(EncodingOptions options, Map<FieldPath, FieldTransform> transforms) {
+      this.options = options;
+      this.transforms = transforms;
+    }
+
+    /**
+     * Encodes a value.
+     *
+     * @param inArray Whether the value is contained in an array, where FieldValue sentinels are not
+     *     supported.
+     * @return The encoded value, or null if the value is omitted from the document.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    Value encode(Object o, ErrorPath path, FieldPath fieldPath, boolean inArray) {
+      if (path.getLength() > MAX_DEPTH) {
+        throw serializeError(
+            path,
+            "Exceeded maximum depth of "
+                + MAX_DEPTH
+                + ", which likely indicates there's an object cycle");
+      }
+      if (o instanceof FieldValue) {
+        encodeSentinel((FieldValue) o, fieldPath, inArray);
+        return null;
+      } else if (o instanceof Map) {
+        Map<?, ?> map = (Map<?, ?>) o;
+        MapValue.Builder fields = MapValue.newBuilder();
+        encodeMap(map, fields, path, fieldPath, inArray);
+        return toMapValue(fields, map.isEmpty());
+      } else if (o instanceof List) {
+        List<?> list = (List<?>) o;
+        ArrayValue.Builder values = ArrayValue.newBuilder();
+        for (int i = 0; i < list.size(); i++) {
+          Value value =
+              encode(
+                  list.get(i),
+                  path.child("[" + i + "]"),
+                  fieldPath.append(Integer.toString(i), /* splitPath= */ false),
+                  /* inArray= */ true);
+          if (value != null) {
+            values.addValues(value);
+          }
+        }
+        return Value.newBuilder().setArrayValue(values).build();
+      } else if (isBean(o)) {
+        BeanMapper<Object> mapper = loadOrCreateBeanMapperForClass((Class<Object>) o.getClass());
+        MapValue.Builder fields = MapValue.newBuilder();
+        mapper.encode(o, this, fields, path, fieldPath, inArray);
+        return toMapValue(fields, mapper.propertyGetters.isEmpty());
+      } else {
+        return UserDataConverter.encodeValue(fieldPath, serialize(o, path), options);
+      }
+    }
+
+    /** Encodes the entries of a Map into 'fields'. */
+    void encodeMap(
+        Map<?, ?> map,
+        MapValue.Builder fields,
+        ErrorPath path,
+        FieldPath fieldPath,
+        boolean inArray) {
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        Object key = entry.getKey();
+        if (key instanceof String) {
+          encodeField((String) key, entry.getValue(), fields, path, fieldPath, inArray);
+        } else {
+          throw serializeError(path, "Maps with non-string keys are not supported");
+        }
+      }
+    }
+
+    /** Encodes the value of a map entry or of a bean property into 'fields'. */
+    void encodeField(
+        String name,
+        Object value,
+        MapValue.Builder fields,
+        ErrorPath path,
+        FieldPath fieldPath,
+        boolean inArray) {
+      FieldPath childPath =
+          fieldPath.getSegments().isEmpty()
+              ? FieldPath.of(name)
+              : fieldPath.append(name, /* splitPath= */ false);
+      Value encodedValue = encode(value, path.child(name), childPath, inArray);
+      if (encodedValue != null) {
+        fields.putFields(name, encodedValue);
+      }
+    }
+
+    private void encodeSentinel(FieldValue fieldValue, FieldPath fieldPath, boolean inArray) {
+      // Validates the sentinel against the encoding options.
+      UserDataConverter.encodeValue(fieldPath, fieldValue, options);
+      if (inArray) {
+        throw FirestoreException.forInvalidArgument(
+            fieldValue.getMethodName() + " is not supported inside of an array.");
+      }
+      if (fieldValue.includeInDocumentTransform()) {
+        transforms.put(fieldPath, fieldValue.toProto(fieldPath));
+      }
+    }
+
+    @Nullable
+    private static Value toMapValue(MapValue.Builder fields, boolean empty) {
+      // If we encounter an empty object, we always need to send it to make sure the server creates
+      // a map entry. An object that only contained field transforms is not sent.
+      if (empty || fields.getFieldsCount() != 0) {
+        return Value.newBuilder().setMapValue(fields).build();
+      } else {
+        return null;
+      }
+    }
+  }
+
   @SuppressWarnings({"unchecked", "TypeParameterUnusedInFormals"})
   private static <T> T deserializeToType(Object o, Type type, DeserializeContext context) {
     if (o == null) {
@@ -220,6 +440,9 @@ class CustomClassMapper {
 
   @SuppressWarnings("unchecked")
   private static <T> T deserializeToClass(Object o, Class<T> clazz, DeserializeContext context) {
+    if (o instanceof Value) {
+      o = decodeValue((Value) o, isBeanClass(clazz) ? ValueTypeCase.MAP_VALUE : null, context);
+    }
     if (o == null) {
       return null;
     } else if (clazz.isPrimitive()
@@ -262,10 +485,22 @@ class CustomClassMapper {
       Object o, ParameterizedType type, DeserializeContext context) {
     // getRawType should always return a Class<?>
     Class<?> rawType = (Class<?>) type.getRawType();
+    if (o instanceof Value) {
+      o =
+          decodeValue(
+              (Value) o,
+              List.class.isAssignableFrom(rawType)
+                  ? ValueTypeCase.ARRAY_VALUE
+                  : ValueTypeCase.MAP_VALUE,
+              context);
+      if (o == null) {
+        return null;
+      }
+    }
     if (List.class.isAssignableFrom(rawType)) {
       Type genericType = type.getActualTypeArguments()[0];
       if (o instanceof List) {
-        List<Object> list = (List<Object>) o;
+        List<?> list = (List<?>) o;
         List<Object> result;
         try {
           result =
@@ -300,7 +535,7 @@ class CustomClassMapper {
             context.errorPath,
             "Only Maps with string keys are supported, but found Map with key type " + keyType);
       }
-      Map<String, Object> map = expectMap(o, context);
+      Map<String, ?> map = expectMap(o, context);
       HashMap<String, Object> result;
       try {
         result =
@@ -316,7 +551,7 @@ class CustomClassMapper {
             String.format(
                 "Unable to deserialize to %s: %s", rawType.getSimpleName(), e.toString()));
       }
-      for (Map.Entry<String, Object> entry : map.entrySet()) {
+      for (Map.Entry<String, ?> entry : map.entrySet()) {
         result.put(
             entry.getKey(),
             deserializeToType(
@@ -329,7 +564,7 @@ class CustomClassMapper {
       throw deserializeError(
           context.errorPath, "Collections are not supported, please use Lists instead");
     } else {
-      Map<String, Object> map = expectMap(o, context);
+      Map<String, ?> map = expectMap(o, context);
       BeanMapper<T> mapper = (BeanMapper<T>) loadOrCreateBeanMapperForClass(rawType);
       HashMap<TypeVariable<Class<T>>, Type> typeMapping = new HashMap<>();
       TypeVariable<Class<T>>[] typeVariables = mapper.clazz.getTypeParameters();
@@ -403,11 +638,51 @@ class CustomClassMapper {
     }
   }
 
+  /**
+   * Decodes a Value that is deserialized. If the Value is of the container type expected by the
+   * target type, its entries are returned as a List or Map of Values, which are decoded as they are
+   * deserialized. All other Values are decoded fully.
+   */
+  @Nullable
+  private static Object decodeValue(
+      Value value, @Nullable ValueTypeCase expectedContainer, DeserializeContext context) {
+    ValueTypeCase typeCase = value.getValueTypeCase();
+    if (typeCase == expectedContainer && typeCase == ValueTypeCase.MAP_VALUE) {
+      return value.getMapValue().getFieldsMap();
+    } else if (typeCase == expectedContainer && typeCase == ValueTypeCase.ARRAY_VALUE) {
+      return value.getArrayValue().getValuesList();
+    } else {
+      return UserDataConverter.decodeValue(context.rpcContext, value);
+    }
+  }
+
+  /** Returns whether objects of the class are deserialized with a {@link BeanMapper}. */
+  private static boolean isBeanClass(Class<?> clazz) {
+    return !(clazz.isPrimitive()
+        || Number.class.isAssignableFrom(clazz)
+        || Boolean.class.isAssignableFrom(clazz)
+        || Character.class.isAssignableFrom(clazz)
+        || String.class.isAssignableFrom(clazz)
+        || Date.class.isAssignableFrom(clazz)
+        || Timestamp.class.isAssignableFrom(clazz)
+        || Blob.class.isAssignableFrom(clazz)
+        || GeoPoint.class.isAssignableFrom(clazz)
+        || DocumentReference.class.isAssignableFrom(clazz)
+        || clazz.isArray()
+        || clazz.getTypeParameters().length > 0
+        || clazz.equals(Object.class)
+        || clazz.isEnum());
+  }
+
   private static <T> BeanMapper<T> loadOrCreateBeanMapperForClass(Class<T> clazz) {
     @SuppressWarnings("unchecked")
     BeanMapper<T> mapper = (BeanMapper<T>) mappers.get(clazz);
     if (mapper == null) {
-      mapper = new BeanMapper<>(clazz);
+      GeneratedMapper<T> generatedMapper = GeneratedMapper.forClass(clazz);
+      mapper =
+          generatedMapper != null
+              ? new BeanMapper<>(clazz, generatedMapper)
+              : new BeanMapper<>(clazz);
       // Inserting without checking is fine because mappers are "pure" and it's okay
       // if we create and use multiple by different threads temporarily
       mappers.put(clazz, mapper);
@@ -416,10 +691,10 @@ class CustomClassMapper {
   }
 
   @SuppressWarnings("unchecked")
-  private static Map<String, Object> expectMap(Object object, DeserializeContext context) {
+  private static Map<String, ?> expectMap(Object object, DeserializeContext context) {
     if (object instanceof Map) {
       // TODO: runtime validation of keys?
-      return (Map<String, Object>) object;
+      return (Map<String, ?>) object;
     } else {
       throw deserializeError(
           context.errorPath, "Expected a Map while deserializing, but got a " + object.getClass());
@@ -618,6 +893,9 @@ class CustomClassMapper {
   private static class BeanMapper<T> {
     private final Class<T> clazz;
     private final Constructor<T> constructor;
+    // The mapper generated at compile time that describes the class, if any. Generated mappers
+    // create instances and access properties without reflection.
+    @Nullable private final GeneratedMapper<T> generatedMapper;
     // Whether to throw exception if there are properties we don't know how to set to
     // custom object fields/setters during deserialization.
     private final boolean throwOnUnknownProperties;
@@ -644,8 +922,15 @@ class CustomClassMapper {
     // serialization.
     private final HashSet<String> documentIdPropertyNames;
 
+    // The accessors for all properties, which are resolved once so that mapping an object does not
+    // need to look up or inspect its members. Serialization reads all properties except those
+    // annotated with @DocumentId, and deserialization writes properties by name.
+    private final List<PropertyGetter> propertyGetters;
+    private final Map<String, PropertySetter> propertySetters;
+
     BeanMapper(Class<T> clazz) {
       this.clazz = clazz;
+      this.generatedMapper = null;
       throwOnUnknownProperties = clazz.isAnnotationPresent(ThrowOnExtraProperties.class);
       warnOnUnknownProperties = !clazz.isAnnotationPresent(IgnoreExtraProperties.class);
       properties = new HashMap<>();
@@ -776,6 +1061,59 @@ class CustomClassMapper {
                   + " but no field or public setter was found");
         }
       }
+
+      propertyGetters = new ArrayList<>();
+      propertySetters = new HashMap<>();
+      for (String property : properties.values()) {
+        if (!documentIdPropertyNames.contains(property)) {
+          propertyGetters.add(
+              new ReflectivePropertyGetter(
+                  property,
+                  getters.get(property),
+                  fields.get(property),
+                  serverTimestamps.contains(property)));
+        }
+        if (setters.containsKey(property)) {
+          propertySetters.put(property, new ReflectivePropertySetter(setters.get(property)));
+        } else if (fields.containsKey(property)) {
+          propertySetters.put(property, new ReflectivePropertySetter(fields.get(property)));
+        }
+      }
+    }
+
+    /** Creates a mapper for a class from the properties described by its generated mapper. */
+    BeanMapper(Class<T> clazz, GeneratedMapper<T> generatedMapper) {
+      this.clazz = clazz;
+      this.generatedMapper = generatedMapper;
+      this.constructor = null;
+      throwOnUnknownProperties = generatedMapper.throwOnExtraProperties();
+      warnOnUnknownProperties = !generatedMapper.ignoreExtraProperties();
+      properties = new HashMap<>();
+
+      setters = Collections.emptyMap();
+      getters = Collections.emptyMap();
+      fields = Collections.emptyMap();
+
+      serverTimestamps = new HashSet<>();
+      documentIdPropertyNames = new HashSet<>();
+
+      propertyGetters = new ArrayList<>();
+      propertySetters = new HashMap<>();
+      for (GeneratedMapper.Property<T> property : generatedMapper.getProperties()) {
+        String propertyName = property.getName();
+        addProperty(propertyName);
+        if (property.isServerTimestamp()) {
+          serverTimestamps.add(propertyName);
+        }
+        if (property.isDocumentId()) {
+          documentIdPropertyNames.add(propertyName);
+        } else {
+          propertyGetters.add(new GeneratedPropertyGetter<>(property));
+        }
+        if (property.getType() != null) {
+          propertySetters.put(propertyName, new GeneratedPropertySetter<>(property));
+        }
+      }
     }
 
     private void addProperty(String property) {
@@ -788,60 +1126,26 @@ class CustomClassMapper {
       }
     }
 
-    T deserialize(Map<String, Object> values, DeserializeContext context) {
+    T deserialize(Map<String, ?> values, DeserializeContext context) {
       return deserialize(values, Collections.<TypeVariable<Class<T>>, Type>emptyMap(), context);
     }
 
     T deserialize(
-        Map<String, Object> values,
+        Map<String, ?> values,
         Map<TypeVariable<Class<T>>, Type> types,
         DeserializeContext context) {
-      if (constructor == null) {
-        throw deserializeError(
-            context.errorPath,
-            "Class "
-                + clazz.getName()
-                + " does not define a no-argument constructor. If you are using ProGuard, make "
-                + "sure these constructors are not stripped");
-      }
-
-      T instance;
-      try {
-        instance = constructor.newInstance();
-      } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
-        throw new RuntimeException(e);
-      }
+      T instance = newInstance(context);
       HashSet<String> deserialzedProperties = new HashSet<>();
-      for (Map.Entry<String, Object> entry : values.entrySet()) {
+      for (Map.Entry<String, ?> entry : values.entrySet()) {
         String propertyName = entry.getKey();
-        ErrorPath childPath = context.errorPath.child(propertyName);
-        if (setters.containsKey(propertyName)) {
-          Method setter = setters.get(propertyName);
-          Type[] params = setter.getGenericParameterTypes();
-          if (params.length != 1) {
-            throw deserializeError(childPath, "Setter does not have exactly one parameter");
-          }
-          Type resolvedType = resolveType(params[0], types);
+        PropertySetter setter = propertySetters.get(propertyName);
+        if (setter != null) {
+          ErrorPath childPath = context.errorPath.child(propertyName);
+          Type resolvedType = resolveType(setter.type, types);
           Object value =
               CustomClassMapper.deserializeToType(
                   entry.getValue(), resolvedType, context.newInstanceWithErrorPath(childPath));
-          try {
-            setter.invoke(instance, value);
-          } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-          }
-          deserialzedProperties.add(propertyName);
-        } else if (fields.containsKey(propertyName)) {
-          Field field = fields.get(propertyName);
-          Type resolvedType = resolveType(field.getGenericType(), types);
-          Object value =
-              CustomClassMapper.deserializeToType(
-                  entry.getValue(), resolvedType, context.newInstanceWithErrorPath(childPath));
-          try {
-            field.set(instance, value);
-          } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-          }
+          setter.set(instance, value);
           deserialzedProperties.add(propertyName);
         } else {
           String message =
@@ -861,6 +1165,27 @@ class CustomClassMapper {
       return instance;
     }
 
+    private T newInstance(DeserializeContext context) {
+      if (generatedMapper != null) {
+        return generatedMapper.newInstance();
+      }
+
+      if (constructor == null) {
+        throw deserializeError(
+            context.errorPath,
+            "Class "
+                + clazz.getName()
+                + " does not define a no-argument constructor. If you are using ProGuard, make "
+                + "sure these constructors are not stripped");
+      }
+
+      try {
+        return constructor.newInstance();
+      } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
     // Populate @DocumentId annotated fields. If there is a conflict (@DocumentId annotation is
     // applied to a property that is already deserialized from the firestore document)
     // a runtime exception will be thrown.
@@ -880,34 +1205,11 @@ class CustomClassMapper {
                   + clazz.getName();
           throw new RuntimeException(message);
         }
-        ErrorPath childPath = context.errorPath.child(docIdPropertyName);
-        if (setters.containsKey(docIdPropertyName)) {
-          Method setter = setters.get(docIdPropertyName);
-          Type[] params = setter.getGenericParameterTypes();
-          if (params.length != 1) {
-            throw deserializeError(childPath, "Setter does not have exactly one parameter");
-          }
-          Type resolvedType = resolveType(params[0], types);
-          try {
-            if (resolvedType == String.class) {
-              setter.invoke(instance, context.documentRef.getId());
-            } else {
-              setter.invoke(instance, context.documentRef);
-            }
-          } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-          }
+        PropertySetter setter = propertySetters.get(docIdPropertyName);
+        if (resolveType(setter.type, types) == String.class) {
+          setter.set(instance, context.documentRef.getId());
         } else {
-          Field docIdField = fields.get(docIdPropertyName);
-          try {
-            if (docIdField.getType() == String.class) {
-              docIdField.set(instance, context.documentRef.getId());
-            } else {
-              docIdField.set(instance, context.documentRef);
-            }
-          } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-          }
+          setter.set(instance, context.documentRef);
         }
       }
     }
@@ -925,7 +1227,7 @@ class CustomClassMapper {
       }
     }
 
-    Map<String, Object> serialize(T object, ErrorPath path) {
+    private void checkSerializable(T object) {
       if (!clazz.isAssignableFrom(object.getClass())) {
         throw new IllegalArgumentException(
             "Can't serialize object of class "
@@ -933,46 +1235,182 @@ class CustomClassMapper {
                 + " with BeanMapper for class "
                 + clazz);
       }
-      Map<String, Object> result = new HashMap<>();
-      for (String property : properties.values()) {
-        // Skip @DocumentId annotated properties;
-        if (documentIdPropertyNames.contains(property)) {
-          continue;
-        }
+    }
 
-        Object propertyValue;
-        if (getters.containsKey(property)) {
-          Method getter = getters.get(property);
-          try {
-            propertyValue = getter.invoke(object);
-          } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-          }
-        } else {
-          // Must be a field
-          Field field = fields.get(property);
-          if (field == null) {
-            throw new IllegalStateException("Bean property without field or getter: " + property);
-          }
-          try {
-            propertyValue = field.get(object);
-          } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-          }
-        }
+    Map<String, Object> serialize(T object, ErrorPath path) {
+      checkSerializable(object);
+      Map<String, Object> result = new HashMap<>();
+      for (PropertyGetter getter : propertyGetters) {
+        Object propertyValue = getter.get(object);
 
         Object serializedValue;
-        if (serverTimestamps.contains(property) && propertyValue == null) {
+        if (getter.serverTimestamp && propertyValue == null) {
           // Replace null ServerTimestamp-annotated fields with the sentinel.
           serializedValue = FieldValue.serverTimestamp();
         } else {
-          serializedValue = CustomClassMapper.serialize(propertyValue, path.child(property));
+          serializedValue =
+              CustomClassMapper.serialize(propertyValue, path.child(getter.propertyName));
         }
-        result.put(property, serializedValue);
+        result.put(getter.propertyName, serializedValue);
       }
       return result;
     }
 
+    /** Encodes the properties of the object into 'fields' with the provided encoder. */
+    void encode(
+        T object,
+        ValueEncoder encoder,
+        MapValue.Builder fields,
+        ErrorPath path,
+        FieldPath fieldPath,
+        boolean inArray) {
+      checkSerializable(object);
+      for (PropertyGetter getter : propertyGetters) {
+        Object propertyValue = getter.get(object);
+        if (getter.serverTimestamp && propertyValue == null) {
+          // Replace null ServerTimestamp-annotated fields with the sentinel.
+          propertyValue = FieldValue.serverTimestamp();
+        }
+        encoder.encodeField(getter.propertyName, propertyValue, fields, path, fieldPath, inArray);
+      }
+    }
+
+    /** Reads a property from an instance. */
+    private abstract static class PropertyGetter {
+      final String propertyName;
+      // Whether the property is annotated with @ServerTimestamp.
+      final boolean serverTimestamp;
+
+      PropertyGetter(String propertyName, boolean serverTimestamp) {
+        this.propertyName = propertyName;
+        this.serverTimestamp = serverTimestamp;
+      }
+
+      abstract Object get(Object instance);
+    }
+
+    /** Writes a property of an instance. */
+    private abstract static class PropertySetter {
+      // The generic type of the property.
+      final Type type;
+
+      PropertySetter(Type type) {
+        this.type = type;
+      }
+
+      abstract void set(Object instance, Object value);
+    }
+
+    /** Reads a property through its getter or, if it has no getter, through its field. */
+    private static final class ReflectivePropertyGetter extends PropertyGetter {
+      @Nullable private final Method getter;
+      @Nullable private final Field field;
+
+      ReflectivePropertyGetter(
+          String propertyName,
+          @Nullable Method getter,
+          @Nullable Field field,
+          boolean serverTimestamp) {
+        super(propertyName, serverTimestamp);
+        this.getter = getter;
+        this.field = field;
+      }
+
+      @Override
+      Object get(Object instance) {
+        try {
+          if (getter != null) {
+            return getter.invoke(instance);
+          } else if (field != null) {
+            return field.get(instance);
+          }
+        } catch (IllegalAccessException | InvocationTargetException e) {
+          throw new RuntimeException(e);
+        }
+        throw new IllegalStateException("Bean property without field or getter: " + propertyName);
+      }
+    }
+
+    /** Writes a property through its setter or, if it has no setter, through its field. */
+    private static final class ReflectivePropertySetter extends PropertySetter {
+      @Nullable private final Method setter;
+      @Nullable private final Field field;
+
+      ReflectivePropertySetter(Method setter) {
+        super(setter.getGenericParameterTypes()[0]);
+        this.setter = setter;
+        this.field = null;
+      }
+
+      ReflectivePropertySetter(Field field) {
+        super(field.getGenericType());
+        this.setter = null;
+        this.field = field;
+      }
+
+      @Override
+      void set(Object instance, Object value) {
+        try {
+          if (setter != null) {
+            setter.invoke(instance, value);
+          } else {
+            field.set(instance, value);
+          }
+        } catch (IllegalAccessException | InvocationTargetException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    /** Reads a property through a generated mapper. */
+    private static final class GeneratedPropertyGetter<T> extends PropertyGetter {
+      private final GeneratedMapper.Property<T> property;
+
+      GeneratedPropertyGetter(GeneratedMapper.Property<T> property) {
+        super(property.getName(), property.isServerTimestamp());
+        this.property = property;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      Object get(Object instance) {
+        try {
+          return property.get((T) instance);
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    /** Writes a property through a generated mapper. */
+    private static final class GeneratedPropertySetter<T> extends PropertySetter {
+      private final GeneratedMapper.Property<T> property;
+
+      GeneratedPropertySetter(GeneratedMapper.Property<T> property) {
+        super(property.getType());
+        this.property = property;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      void set(Object instance, Object value) {
+        if (value == null && type instanceof Class && ((Class<?>) type).isPrimitive()) {
+          // Matches the behavior of reflective setters.
+          throw new IllegalArgumentException(
+              "Cannot set primitive property " + property.getName() + " to null");
+        }
+        try {
+          property.set((T) instance, value);
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
     private void applyFieldAnnotations(Field field) {
       if (field.isAnnotationPresent(ServerTimestamp.class)) {
         Class<?> fieldType = field.getType();
@@ -1230,16 +1668,21 @@ class CustomClassMapper {
     /** Current path to the field being deserialized, used for better error messages. */
     final ErrorPath errorPath;
 
+    /** Context used to decode document references in Value protos, if any. */
+    @Nullable final FirestoreRpcContext<?> rpcContext;
+
     /** Value used to set to {@link DocumentId} annotated fields during deserialization, if any. */
     final DocumentReference documentRef;
 
-    DeserializeContext(ErrorPath path, DocumentReference docRef) {
+    DeserializeContext(
+        ErrorPath path, @Nullable FirestoreRpcContext<?> rpcContext, DocumentReference docRef) {
       errorPath = path;
+      this.rpcContext = rpcContext;
       documentRef = docRef;
     }
 
     DeserializeContext newInstanceWithErrorPath(ErrorPath newPath) {
-      return new DeserializeContext(newPath, documentRef);
+      return new DeserializeContext(newPath, rpcContext, documentRef);
     }
   }
 }
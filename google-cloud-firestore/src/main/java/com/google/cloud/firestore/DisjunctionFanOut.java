@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.ARRAY_CONTAINS_ANY;
+import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.IN;
+
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Query.ComparisonFilter;
+import com.google.cloud.firestore.Query.FieldFilter;
+import com.google.cloud.firestore.Query.LimitType;
+import com.google.cloud.firestore.Query.QueryOptions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.Value;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Runs queries whose 'in' or 'array-contains-any' filter has more values than the backend allows in
+ * a single disjunction.
+ *
+ * <p>The filter is split into filters with at most {@link #MAX_DISJUNCTION_SIZE} values each. The
+ * resulting queries are run concurrently, and their results are deduplicated and merged in query
+ * order. Limits and offsets are applied to the merged results.
+ *
+ * <p>'not-in' filters are not split, since a document that matches one of the split filters may
+ * still be excluded by another.
+ */
+final class DisjunctionFanOut {
+  /** The maximum number of values in an 'in' or 'array-contains-any' filter. */
+  static final int MAX_DISJUNCTION_SIZE = 10;
+
+  private DisjunctionFanOut() {}
+
+  /**
+   * Returns the queries that together return the results of the provided query, or null if the
+   * query can be sent to the backend as is.
+   */
+  @Nullable
+  static List<Query> split(Query query) {
+    QueryOptions options = query.options;
+
+    ImmutableList<FieldFilter> fieldFilters = options.getFieldFilters();
+    int filterIndex = -1;
+    for (int i = 0; i < fieldFilters.size(); ++i) {
+      if (isOversizedDisjunction(fieldFilters.get(i))) {
+        filterIndex = i;
+        break;
+      }
+    }
+
+    if (filterIndex == -1
+        || (options.getOffset() != null && LimitType.Last.equals(options.getLimitType()))) {
+      return null;
+    }
+
+    ComparisonFilter filter = (ComparisonFilter) fieldFilters.get(filterIndex);
+    List<Value> values = filter.value.getArrayValue().getValuesList();
+
+    List<Query> subQueries = new ArrayList<>();
+    for (int i = 0; i < values.size(); i += MAX_DISJUNCTION_SIZE) {
+      List<Value> chunk = values.subList(i, Math.min(values.size(), i + MAX_DISJUNCTION_SIZE));
+      ComparisonFilter chunkFilter =
+          new ComparisonFilter(
+              filter.fieldReference,
+              filter.operator,
+              Value.newBuilder()
+                  .setArrayValue(ArrayValue.newBuilder().addAllValues(chunk))
+                  .build());
+
+      List<FieldFilter> chunkFilters = new ArrayList<>(fieldFilters);
+      chunkFilters.set(filterIndex, chunkFilter);
+
+      subQueries.add(
+          toSubQuery(
+              new Query(
+                  query.rpcContext,
+                  options
+                      .toBuilder()
+                      .setFieldFilters(ImmutableList.copyOf(chunkFilters))
+                      .build())));
+    }
+    return subQueries;
+  }
+
+  /**
+   * Returns a query whose results can be merged with those of other sub-queries. The offset is
+   * removed and the limit is raised accordingly, since all results of the requested range may come
+   * from any one sub-query. The offset and limit are applied to the merged results instead.
+   */
+  static Query toSubQuery(Query query) {
+    QueryOptions options = query.options;
+    if (options.getOffset() == null) {
+      return query;
+    }
+
+    Integer limit = options.getLimit();
+    if (limit != null) {
+      limit = limit + options.getOffset();
+    }
+    return new Query(query.rpcContext, options.toBuilder().setLimit(limit).setOffset(null).build());
+  }
+
+  private static boolean isOversizedDisjunction(FieldFilter fieldFilter) {
+    if (!(fieldFilter instanceof ComparisonFilter)) {
+      return false;
+    }
+    ComparisonFilter filter = (ComparisonFilter) fieldFilter;
+    return (filter.operator.equals(IN) || filter.operator.equals(ARRAY_CONTAINS_ANY))
+        && filter.value.getArrayValue().getValuesCount() > MAX_DISJUNCTION_SIZE;
+  }
+
+  /**
+   * Runs the sub-queries concurrently and returns their merged results as a snapshot of the
+   * original query. The snapshot uses the latest read time of the sub-queries.
+   *
+   * @param transactionId The transaction to run the sub-queries in, if any.
+   * @param readTime The time at which to run the sub-queries, or null to run each sub-query at its
+   *     own read time.
+   */
+  static ApiFuture<QuerySnapshot> get(
+      final Query query,
+      List<Query> subQueries,
+      @Nullable ByteString transactionId,
+      @Nullable Timestamp readTime) {
+    List<ApiFuture<QuerySnapshot>> results = new ArrayList<>();
+    for (Query subQuery : subQueries) {
+      results.add(subQuery.get(transactionId, readTime));
+    }
+
+    return ApiFutures.transform(
+        ApiFutures.allAsList(results),
+        new ApiFunction<List<QuerySnapshot>, QuerySnapshot>() {
+          @Override
+          public QuerySnapshot apply(List<QuerySnapshot> snapshots) {
+            return merge(query, snapshots);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static QuerySnapshot merge(Query query, List<QuerySnapshot> snapshots) {
+    Timestamp readTime = null;
+    Set<ResourcePath> seen = new HashSet<>();
+    List<QueryDocumentSnapshot> documents = new ArrayList<>();
+
+    for (QuerySnapshot snapshot : snapshots) {
+      if (readTime == null
+          || (snapshot.getReadTime() != null && snapshot.getReadTime().compareTo(readTime) > 0)) {
+        readTime = snapshot.getReadTime();
+      }
+      for (QueryDocumentSnapshot document : snapshot.getDocuments()) {
+        if (seen.add(document.getReference().getResourcePath())) {
+          documents.add(document);
+        }
+      }
+    }
+
+    Collections.sort(documents, query.implicitOrderComparator());
+
+    QueryOptions options = query.options;
+    int start = options.getOffset() != null ? Math.min(options.getOffset(), documents.size()) : 0;
+    int end = documents.size();
+    if (options.getLimit() != null) {
+      if (LimitType.Last.equals(options.getLimitType())) {
+        start = Math.max(start, end - options.getLimit());
+      } else {
+        end = Math.min(end, start + options.getLimit());
+      }
+    }
+
+    return QuerySnapshot.withDocuments(
+        query, readTime, new ArrayList<>(documents.subList(start, end)));
+  }
+}
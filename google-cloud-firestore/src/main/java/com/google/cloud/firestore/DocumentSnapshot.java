@@ -25,7 +25,7 @@ import com.google.firestore.v1.Value;
 import com.google.firestore.v1.Write;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import javax.annotation.Nonnull;
@@ -49,6 +49,8 @@ public class DocumentSnapshot {
   private final FirestoreRpcContext<?> rpcContext;
   private final DocumentReference docRef;
   @Nullable private final Map<String, Value> fields;
+  // The fields of the document, which are decoded on first access.
+  @Nullable private final LazyDecoder.MapNode decodedFields;
   @Nullable private final Timestamp readTime;
   @Nullable private final Timestamp updateTime;
   @Nullable private final Timestamp createTime;
@@ -63,6 +65,7 @@ public class DocumentSnapshot {
     this.rpcContext = rpcContext;
     this.docRef = docRef;
     this.fields = fields;
+    this.decodedFields = fields != null ? LazyDecoder.forFields(rpcContext, fields) : null;
     this.readTime = readTime;
     this.updateTime = updateTime;
     this.createTime = createTime;
@@ -164,16 +167,7 @@ public class DocumentSnapshot {
    */
   @Nullable
   public Map<String, Object> getData() {
-    if (fields == null) {
-      return null;
-    }
-
-    Map<String, Object> decodedFields = new HashMap<>();
-    for (Map.Entry<String, Value> entry : fields.entrySet()) {
-      Object decodedValue = UserDataConverter.decodeValue(rpcContext, entry.getValue());
-      decodedFields.put(entry.getKey(), decodedValue);
-    }
-    return decodedFields;
+    return decodedFields == null ? null : decodedFields.toMap();
   }
 
   /**
@@ -185,8 +179,9 @@ public class DocumentSnapshot {
    */
   @Nullable
   public <T> T toObject(@Nonnull Class<T> valueType) {
-    Map<String, Object> data = getData();
-    return data == null ? null : CustomClassMapper.convertToCustomClass(data, valueType, docRef);
+    return fields == null
+        ? null
+        : CustomClassMapper.convertToCustomClass(fields, valueType, rpcContext, docRef);
   }
 
   /**
@@ -243,13 +238,9 @@ public class DocumentSnapshot {
    */
   @Nullable
   public Object get(@Nonnull FieldPath fieldPath) {
-    Value value = extractField(fieldPath);
-
-    if (value == null) {
-      return null;
-    }
-
-    return UserDataConverter.decodeValue(rpcContext, value);
+    return decodedFields == null
+        ? null
+        : LazyDecoder.toView(decodedFields.get(fieldPath.getSegments()));
   }
 
   /**
@@ -262,8 +253,10 @@ public class DocumentSnapshot {
    */
   @Nullable
   public <T> T get(@Nonnull FieldPath fieldPath, Class<T> valueType) {
-    Object data = get(fieldPath);
-    return data == null ? null : CustomClassMapper.convertToCustomClass(data, valueType, docRef);
+    Value value = extractField(fieldPath);
+    return value == null
+        ? null
+        : CustomClassMapper.convertToCustomClass(value, valueType, rpcContext, docRef);
   }
 
   /** Returns the Value Proto at 'fieldPath'. Returns null if the field was not found. */
@@ -272,14 +265,14 @@ public class DocumentSnapshot {
     Value value = null;
 
     if (fields != null) {
-      Iterator<String> components = fieldPath.getSegments().iterator();
-      value = fields.get(components.next());
+      List<String> segments = fieldPath.getSegments();
+      value = fields.get(segments.get(0));
 
-      while (value != null && components.hasNext()) {
+      for (int i = 1; value != null && i < segments.size(); ++i) {
         if (value.getValueTypeCase() != Value.ValueTypeCase.MAP_VALUE) {
           return null;
         }
-        value = value.getMapValue().getFieldsOrDefault(components.next(), null);
+        value = value.getMapValue().getFieldsOrDefault(segments.get(i), null);
       }
     }
 
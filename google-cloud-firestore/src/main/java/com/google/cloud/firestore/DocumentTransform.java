@@ -32,7 +32,7 @@ final class DocumentTransform {
 
   private final SortedMap<FieldPath, FieldTransform> transforms; // Sorted for testing.
 
-  private DocumentTransform(SortedMap<FieldPath, FieldTransform> transforms) {
+  DocumentTransform(SortedMap<FieldPath, FieldTransform> transforms) {
     this.transforms = transforms;
   }
 
@@ -83,6 +83,33 @@ public abstract class FieldPath extends BasePath<FieldPath> implements Comparabl
     return empty().append(field);
   }
 
+  /**
+   * Returns a field path from its server-accepted encoding, as produced by {@link
+   * #getEncodedPath()}. Segments may be quoted with backticks and escaped with backslashes.
+   */
+  static FieldPath fromServerFormat(String encodedPath) {
+    ImmutableList.Builder<String> segments = ImmutableList.builder();
+    StringBuilder segment = new StringBuilder();
+    boolean quoted = false;
+
+    for (int i = 0; i < encodedPath.length(); ++i) {
+      char c = encodedPath.charAt(i);
+      if (c == '\\' && i + 1 < encodedPath.length()) {
+        segment.append(encodedPath.charAt(++i));
+      } else if (c == '`') {
+        quoted = !quoted;
+      } else if (c == '.' && !quoted) {
+        segments.add(segment.toString());
+        segment.setLength(0);
+      } else {
+        segment.append(c);
+      }
+    }
+    segments.add(segment.toString());
+
+    return new AutoValue_FieldPath(segments.build());
+  }
+
   /** Returns an empty field path. */
   static FieldPath empty() {
     // NOTE: This is not static since it would create a circular class dependency during
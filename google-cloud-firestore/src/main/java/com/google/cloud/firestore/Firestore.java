@@ -21,6 +21,7 @@ import com.google.api.core.BetaApi;
 import com.google.api.core.InternalExtensionOnly;
 import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.cloud.Service;
+import com.google.cloud.Timestamp;
 import java.util.List;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -161,6 +162,24 @@ public interface Firestore extends Service<FirestoreOptions>, AutoCloseable {
       @Nullable FieldMask fieldMask,
       final ApiStreamObserver<DocumentSnapshot> responseObserver);
 
+  /**
+   * Retrieves multiple documents from Firestore as they were at the provided read time, while
+   * optionally applying a field mask to reduce the amount of data transmitted.
+   *
+   * <p>Reads at the same read time observe a consistent snapshot of the database, even if they are
+   * issued separately, which does not require a read-only transaction. The read time must be within
+   * the data retention window of the database.
+   *
+   * @param documentReferences Array with Document References to fetch.
+   * @param fieldMask If not null, specifies the subset of fields to return.
+   * @param readTime The time at which to read the documents.
+   */
+  @Nonnull
+  ApiFuture<List<DocumentSnapshot>> getAll(
+      @Nonnull DocumentReference[] documentReferences,
+      @Nullable FieldMask fieldMask,
+      @Nonnull Timestamp readTime);
+
   /**
    * Gets a Firestore {@link WriteBatch} instance that can be used to combine multiple writes.
    *
@@ -193,6 +212,66 @@ public interface Firestore extends Service<FirestoreOptions>, AutoCloseable {
   @Nonnull
   BulkWriter bulkWriter(BulkWriterOptions options);
 
+  /**
+   * Recursively deletes all documents and subcollections at and under the specified collection.
+   *
+   * <p>The descendants are read in parallel partitions that only fetch document names, and are
+   * deleted with a new {@link BulkWriter} instance as they are read. The returned ApiFuture fails
+   * if any document could not be read or deleted.
+   *
+   * <p>Newly added documents that are written while the delete is in progress may not be deleted.
+   *
+   * @param reference The collection to delete.
+   * @return An ApiFuture that completes when all deletes have been performed.
+   */
+  @BetaApi
+  @Nonnull
+  ApiFuture<Void> recursiveDelete(@Nonnull CollectionReference reference);
+
+  /**
+   * Recursively deletes all documents and subcollections at and under the specified collection
+   * using the provided {@link BulkWriter}. The BulkWriter's error handling and throttling apply to
+   * all deletes, and it is flushed before the returned ApiFuture completes.
+   *
+   * @param reference The collection to delete.
+   * @param bulkWriter The BulkWriter instance used to perform the deletes.
+   * @return An ApiFuture that completes when all deletes have been performed.
+   */
+  @BetaApi
+  @Nonnull
+  ApiFuture<Void> recursiveDelete(
+      @Nonnull CollectionReference reference, @Nonnull BulkWriter bulkWriter);
+
+  /**
+   * Recursively deletes the specified document and all of its subcollections.
+   *
+   * <p>The descendants are read in parallel partitions that only fetch document names, and are
+   * deleted with a new {@link BulkWriter} instance as they are read. The returned ApiFuture fails
+   * if any document could not be read or deleted.
+   *
+   * <p>Newly added documents that are written while the delete is in progress may not be deleted.
+   *
+   * @param reference The document to delete.
+   * @return An ApiFuture that completes when all deletes have been performed.
+   */
+  @BetaApi
+  @Nonnull
+  ApiFuture<Void> recursiveDelete(@Nonnull DocumentReference reference);
+
+  /**
+   * Recursively deletes the specified document and all of its subcollections using the provided
+   * {@link BulkWriter}. The BulkWriter's error handling and throttling apply to all deletes, and it
+   * is flushed before the returned ApiFuture completes.
+   *
+   * @param reference The document to delete.
+   * @param bulkWriter The BulkWriter instance used to perform the deletes.
+   * @return An ApiFuture that completes when all deletes have been performed.
+   */
+  @BetaApi
+  @Nonnull
+  ApiFuture<Void> recursiveDelete(
+      @Nonnull DocumentReference reference, @Nonnull BulkWriter bulkWriter);
+
   /**
    * Returns a FirestoreBundle.Builder {@link FirestoreBundle.Builder} instance using an
    * automatically generated bundle ID. When loaded on clients, client SDKs use the bundle ID and
@@ -17,15 +17,19 @@
 package com.google.cloud.firestore;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.api.core.SettableApiFuture;
 import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.api.gax.rpc.BidiStreamingCallable;
+import com.google.api.gax.rpc.ResponseObserver;
 import com.google.api.gax.rpc.ServerStreamingCallable;
 import com.google.api.gax.rpc.UnaryCallable;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.spi.v1.FirestoreRpc;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.firestore.v1.BatchGetDocumentsRequest;
 import com.google.firestore.v1.BatchGetDocumentsResponse;
 import com.google.firestore.v1.DatabaseRootName;
@@ -39,6 +43,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -102,6 +107,74 @@ class FirestoreImpl implements Firestore, FirestoreRpcContext<FirestoreImpl> {
     return new BulkWriter(this, options);
   }
 
+  @Nonnull
+  @Override
+  public ApiFuture<Void> recursiveDelete(@Nonnull CollectionReference reference) {
+    BulkWriter bulkWriter = bulkWriter();
+    return closeWhenDone(recursiveDelete(reference, bulkWriter), bulkWriter);
+  }
+
+  @Nonnull
+  @Override
+  public ApiFuture<Void> recursiveDelete(
+      @Nonnull CollectionReference reference, @Nonnull BulkWriter bulkWriter) {
+    return RecursiveDelete.forCollection(
+            this, bulkWriter, RecursiveDelete.DEFAULT_PARTITION_COUNT, reference)
+        .run();
+  }
+
+  @Nonnull
+  @Override
+  public ApiFuture<Void> recursiveDelete(@Nonnull DocumentReference reference) {
+    BulkWriter bulkWriter = bulkWriter();
+    return closeWhenDone(recursiveDelete(reference, bulkWriter), bulkWriter);
+  }
+
+  @Nonnull
+  @Override
+  public ApiFuture<Void> recursiveDelete(
+      @Nonnull DocumentReference reference, @Nonnull BulkWriter bulkWriter) {
+    return RecursiveDelete.forDocument(
+            this, bulkWriter, RecursiveDelete.DEFAULT_PARTITION_COUNT, reference)
+        .run();
+  }
+
+  /**
+   * Closes the BulkWriter that was created for a recursive delete. The recursive delete flushes the
+   * BulkWriter before it completes, so closing it does not block.
+   */
+  private static ApiFuture<Void> closeWhenDone(
+      ApiFuture<Void> recursiveDelete, final BulkWriter bulkWriter) {
+    final SettableApiFuture<Void> result = SettableApiFuture.create();
+    ApiFutures.addCallback(
+        recursiveDelete,
+        new ApiFutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void ignored) {
+            close();
+            result.set(null);
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            close();
+            result.setException(throwable);
+          }
+
+          private void close() {
+            try {
+              bulkWriter.close();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+              // Not reachable, since the BulkWriter has no pending writes at this point.
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return result;
+  }
+
   @Nonnull
   @Override
   public CollectionReference collection(@Nonnull String collectionPath) {
@@ -148,13 +221,28 @@ class FirestoreImpl implements Firestore, FirestoreRpcContext<FirestoreImpl> {
       final @Nonnull DocumentReference[] documentReferences,
       @Nullable FieldMask fieldMask,
       @Nonnull final ApiStreamObserver<DocumentSnapshot> apiStreamObserver) {
-    this.getAll(documentReferences, fieldMask, null, apiStreamObserver);
+    this.getAll(
+        documentReferences,
+        fieldMask,
+        /* transactionId= */ null,
+        /* readTime= */ null,
+        apiStreamObserver);
+  }
+
+  @Nonnull
+  @Override
+  public ApiFuture<List<DocumentSnapshot>> getAll(
+      @Nonnull DocumentReference[] documentReferences,
+      @Nullable FieldMask fieldMask,
+      @Nonnull Timestamp readTime) {
+    return this.getAll(documentReferences, fieldMask, /* transactionId= */ null, readTime);
   }
 
   void getAll(
       final @Nonnull DocumentReference[] documentReferences,
       @Nullable FieldMask fieldMask,
       @Nullable ByteString transactionId,
+      @Nullable Timestamp readTime,
       final ApiStreamObserver<DocumentSnapshot> apiStreamObserver) {
 
     ApiStreamObserver<BatchGetDocumentsResponse> responseObserver =
@@ -230,6 +318,10 @@ class FirestoreImpl implements Firestore, FirestoreRpcContext<FirestoreImpl> {
       request.setTransaction(transactionId);
     }
 
+    if (readTime != null) {
+      request.setReadTime(readTime.toProto());
+    }
+
     for (DocumentReference docRef : documentReferences) {
       request.addDocuments(docRef.getName());
     }
@@ -249,12 +341,22 @@ class FirestoreImpl implements Firestore, FirestoreRpcContext<FirestoreImpl> {
       final @Nonnull DocumentReference[] documentReferences,
       @Nullable FieldMask fieldMask,
       @Nullable ByteString transactionId) {
+    return getAll(documentReferences, fieldMask, transactionId, /* readTime= */ null);
+  }
+
+  /** Internal getAll() method that accepts an optional transaction id or read time. */
+  ApiFuture<List<DocumentSnapshot>> getAll(
+      final @Nonnull DocumentReference[] documentReferences,
+      @Nullable FieldMask fieldMask,
+      @Nullable ByteString transactionId,
+      @Nullable Timestamp readTime) {
     final SettableApiFuture<List<DocumentSnapshot>> futureList = SettableApiFuture.create();
     final Map<DocumentReference, DocumentSnapshot> documentSnapshotMap = new HashMap<>();
     getAll(
         documentReferences,
         fieldMask,
         transactionId,
+        readTime,
         new ApiStreamObserver<DocumentSnapshot>() {
           @Override
           public void onNext(DocumentSnapshot documentSnapshot) {
@@ -370,6 +472,16 @@ class FirestoreImpl implements Firestore, FirestoreRpcContext<FirestoreImpl> {
     callable.serverStreamingCall(requestT, responseObserverT);
   }
 
+  /** Request funnel for all unidirectional streaming requests with flow control. */
+  @Override
+  public <RequestT, ResponseT> void streamRequest(
+      RequestT requestT,
+      ResponseObserver<ResponseT> responseObserverT,
+      ServerStreamingCallable<RequestT, ResponseT> callable) {
+    Preconditions.checkState(!closed, "Firestore client has already been closed");
+    callable.call(requestT, responseObserverT);
+  }
+
   /** Request funnel for all bidirectional streaming requests. */
   @Override
   public <RequestT, ResponseT> ApiStreamObserver<RequestT> streamRequest(
@@ -21,6 +21,7 @@ import com.google.api.core.InternalApi;
 import com.google.api.core.InternalExtensionOnly;
 import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.api.gax.rpc.BidiStreamingCallable;
+import com.google.api.gax.rpc.ResponseObserver;
 import com.google.api.gax.rpc.ServerStreamingCallable;
 import com.google.api.gax.rpc.UnaryCallable;
 import com.google.cloud.firestore.spi.v1.FirestoreRpc;
@@ -45,6 +46,11 @@ interface FirestoreRpcContext<FS extends Firestore> {
       ApiStreamObserver<ResponseT> responseObserverT,
       ServerStreamingCallable<RequestT, ResponseT> callable);
 
+  <RequestT, ResponseT> void streamRequest(
+      RequestT requestT,
+      ResponseObserver<ResponseT> responseObserverT,
+      ServerStreamingCallable<RequestT, ResponseT> callable);
+
   <RequestT, ResponseT> ApiStreamObserver<RequestT> streamRequest(
       ApiStreamObserver<ResponseT> responseObserverT,
       BidiStreamingCallable<RequestT, ResponseT> callable);
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.Timestamp;
+import com.google.common.base.Preconditions;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.RunQueryResponse;
+import java.util.concurrent.CancellationException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Streams the results of a query to a {@link ResponseObserver} whose demand is forwarded to the
+ * flow control of the underlying RunQuery stream.
+ *
+ * <p>If the observer disables automatic flow control, the number of documents requested by the
+ * observer is requested from the backend. Responses that do not contain a document consume a
+ * request without satisfying the observer's demand and are therefore compensated by requesting
+ * another response. As a result, no more than the requested number of documents are ever buffered
+ * by the client.
+ *
+ * <p>Like {@link Query#stream(com.google.api.gax.rpc.ApiStreamObserver)}, the stream is restarted
+ * after the last received document if it fails with a retryable error.
+ */
+class FlowControlledQueryStream implements StreamController {
+  private final Query query;
+  private final ResponseObserver<? super QueryDocumentSnapshot> observer;
+
+  private final Object lock = new Object();
+
+  /** The controller of the current RunQuery stream, or null if no stream has been started. */
+  @GuardedBy("lock")
+  @Nullable
+  private StreamController upstream;
+
+  @GuardedBy("lock")
+  private boolean autoFlowControl = true;
+
+  /** Whether the observer's onStart() has returned, after which flow control is fixed. */
+  @GuardedBy("lock")
+  private boolean started = false;
+
+  @GuardedBy("lock")
+  private boolean cancelled = false;
+
+  /** The number of documents requested by the observer that have not been delivered yet. */
+  @GuardedBy("lock")
+  private long demand = 0;
+
+  /** The read time of the first response, or null if no response has been received. */
+  @GuardedBy("lock")
+  @Nullable
+  private Timestamp readTime;
+
+  /** The last document that was delivered, used as the cursor to restart the stream. */
+  @GuardedBy("lock")
+  @Nullable
+  private QueryDocumentSnapshot lastReceivedDocument;
+
+  FlowControlledQueryStream(Query query, ResponseObserver<? super QueryDocumentSnapshot> observer) {
+    this.query = query;
+    this.observer = observer;
+  }
+
+  /** Notifies the observer and starts the RunQuery stream at the current time. */
+  void start() {
+    start(/* readTime= */ null);
+  }
+
+  /**
+   * Notifies the observer and starts the RunQuery stream.
+   *
+   * @param readTime The time at which to run the query, or null to run it at the current time.
+   */
+  void start(@Nullable Timestamp readTime) {
+    observer.onStart(this);
+
+    boolean cancel;
+    synchronized (lock) {
+      started = true;
+      cancel = cancelled;
+    }
+
+    if (cancel) {
+      // The observer cancelled the stream before it was started.
+      observer.onError(new CancellationException("User cancelled stream"));
+      return;
+    }
+
+    startStream(query, readTime);
+  }
+
+  private void startStream(Query query, @Nullable Timestamp readTime) {
+    RunQueryRequest.Builder request = query.toProto().toBuilder();
+    if (readTime != null) {
+      request.setReadTime(readTime.toProto());
+    }
+
+    query.rpcContext.streamRequest(
+        request.build(),
+        new QueryResponseObserver(),
+        query.rpcContext.getClient().runQueryCallable());
+  }
+
+  /** Returns the read time of the query, or null if no response has been received yet. */
+  @Nullable
+  Timestamp getReadTime() {
+    synchronized (lock) {
+      return readTime;
+    }
+  }
+
+  @Override
+  public void disableAutoInboundFlowControl() {
+    synchronized (lock) {
+      Preconditions.checkState(
+          !started, "Flow control can only be disabled during ResponseObserver.onStart()");
+      autoFlowControl = false;
+    }
+  }
+
+  @Override
+  public void request(int count) {
+    Preconditions.checkArgument(count > 0, "Count must be positive, but was: %s", count);
+
+    StreamController controller;
+    synchronized (lock) {
+      Preconditions.checkState(!autoFlowControl, "Automatic flow control is enabled");
+      demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+      controller = upstream;
+    }
+
+    // Requests made before the RunQuery stream is started are issued when it starts.
+    if (controller != null) {
+      controller.request(count);
+    }
+  }
+
+  @Override
+  public void cancel() {
+    StreamController controller;
+    synchronized (lock) {
+      cancelled = true;
+      controller = upstream;
+    }
+
+    // The RunQuery stream notifies the observer once it has been cancelled.
+    if (controller != null) {
+      controller.cancel();
+    }
+  }
+
+  /**
+   * Receives the responses of a single RunQuery stream. A new instance is used each time the stream
+   * is restarted.
+   */
+  private class QueryResponseObserver implements ResponseObserver<RunQueryResponse> {
+    @Override
+    public void onStart(StreamController controller) {
+      long outstanding;
+      boolean cancel;
+      synchronized (lock) {
+        upstream = controller;
+        cancel = cancelled;
+        outstanding = autoFlowControl ? 0 : demand;
+        if (!autoFlowControl) {
+          controller.disableAutoInboundFlowControl();
+        }
+      }
+
+      if (cancel) {
+        controller.cancel();
+        return;
+      }
+
+      while (outstanding > 0) {
+        int count = (int) Math.min(outstanding, Integer.MAX_VALUE);
+        controller.request(count);
+        outstanding -= count;
+      }
+    }
+
+    @Override
+    public void onResponse(RunQueryResponse response) {
+      synchronized (lock) {
+        if (readTime == null) {
+          readTime = Timestamp.fromProto(response.getReadTime());
+        }
+      }
+
+      if (!response.hasDocument()) {
+        StreamController controller = null;
+        synchronized (lock) {
+          if (!autoFlowControl) {
+            controller = upstream;
+          }
+        }
+        // The response used up a request without delivering a document.
+        if (controller != null) {
+          controller.request(1);
+        }
+        return;
+      }
+
+      QueryDocumentSnapshot documentSnapshot =
+          QueryDocumentSnapshot.fromDocument(
+              query.rpcContext,
+              Timestamp.fromProto(response.getReadTime()),
+              response.getDocument());
+      synchronized (lock) {
+        lastReceivedDocument = documentSnapshot;
+        if (!autoFlowControl) {
+          --demand;
+        }
+      }
+      observer.onResponse(documentSnapshot);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      QueryDocumentSnapshot cursor;
+      synchronized (lock) {
+        upstream = null;
+        cursor = cancelled ? null : lastReceivedDocument;
+      }
+
+      // Restart the query after the last document that was delivered. As in
+      // Query.internalStream(), this requires that at least one document was received.
+      if (cursor != null && query.isRetryableError(throwable)) {
+        startStream(query.resumeAfter(cursor), cursor.getReadTime());
+      } else {
+        observer.onError(throwable);
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      synchronized (lock) {
+        upstream = null;
+      }
+      observer.onComplete();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.InternalApi;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * The base class of the mappers that the Firestore annotation processor generates for POJO classes.
+ *
+ * <p>A generated mapper describes the properties of a class as they were determined at compile
+ * time, and reads and writes them without reflection. When a POJO is converted, the mapper named
+ * after the POJO's class with the suffix {@code _FirestoreMapper} is used instead of inspecting the
+ * class with reflection. For a nested class {@code Outer.Inner}, the mapper is named {@code
+ * Outer_Inner_FirestoreMapper} and is in the same package.
+ *
+ * <p>This class is not intended to be extended by applications.
+ *
+ * @param <T> The class that is mapped.
+ */
+@InternalApi("For use by generated code")
+public abstract class GeneratedMapper<T> {
+  /** The suffix of the names of generated mappers. */
+  static final String MAPPER_SUFFIX = "_FirestoreMapper";
+
+  protected GeneratedMapper() {}
+
+  /** Returns the class that is mapped. */
+  public abstract Class<T> getMappedClass();
+
+  /** Creates an instance of the mapped class with its no-argument constructor. */
+  public abstract T newInstance();
+
+  /** Returns whether the mapped class is annotated with {@code @ThrowOnExtraProperties}. */
+  public abstract boolean throwOnExtraProperties();
+
+  /** Returns whether the mapped class is annotated with {@code @IgnoreExtraProperties}. */
+  public abstract boolean ignoreExtraProperties();
+
+  /** Returns the properties of the mapped class. */
+  public abstract List<Property<T>> getProperties();
+
+  /**
+   * Returns a parameterized type, which is used to describe the generic types of properties.
+   *
+   * @param rawType The class or interface that declares the type parameters.
+   * @param typeArguments The actual type arguments.
+   */
+  protected static Type parameterizedType(Class<?> rawType, Type... typeArguments) {
+    return new ParameterizedTypeImpl(rawType, typeArguments);
+  }
+
+  /** Returns the generated mapper for a class, or null if no mapper was generated for the class. */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static <T> GeneratedMapper<T> forClass(Class<T> clazz) {
+    String className = clazz.getName();
+    int packageEnd = className.lastIndexOf('.');
+    String mapperName =
+        className.substring(0, packageEnd + 1)
+            + className.substring(packageEnd + 1).replace('$', '_')
+            + MAPPER_SUFFIX;
+
+    Class<?> mapperClass;
+    try {
+      mapperClass = Class.forName(mapperName, /* initialize= */ true, clazz.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+
+    GeneratedMapper<?> mapper;
+    try {
+      mapper = (GeneratedMapper<?>) mapperClass.getConstructor().newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalStateException("Failed to create the generated mapper " + mapperName, e);
+    }
+    return mapper.getMappedClass() == clazz ? (GeneratedMapper<T>) mapper : null;
+  }
+
+  /**
+   * A property of the mapped class.
+   *
+   * @param <T> The class that is mapped.
+   */
+  public abstract static class Property<T> {
+    private final String name;
+    @Nullable private final Type type;
+    private final boolean serverTimestamp;
+    private final boolean documentId;
+
+    /**
+     * @param name The name of the property in Firestore documents.
+     * @param type The generic type of the property's setter or field, or null if the property
+     *     cannot be written.
+     * @param serverTimestamp Whether the property is annotated with {@code @ServerTimestamp}.
+     * @param documentId Whether the property is annotated with {@code @DocumentId}.
+     */
+    protected Property(
+        String name, @Nullable Type type, boolean serverTimestamp, boolean documentId) {
+      this.name = name;
+      this.type = type;
+      this.serverTimestamp = serverTimestamp;
+      this.documentId = documentId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the generic type of the property, or null if the property cannot be written. */
+    @Nullable
+    public Type getType() {
+      return type;
+    }
+
+    public boolean isServerTimestamp() {
+      return serverTimestamp;
+    }
+
+    public boolean isDocumentId() {
+      return documentId;
+    }
+
+    /** Reads the property from an instance through its getter or field. */
+    public abstract Object get(T instance) throws Exception;
+
+    /** Writes the property of an instance through its setter or field. */
+    public void set(T instance, Object value) throws Exception {
+      throw new UnsupportedOperationException("Property " + name + " cannot be written");
+    }
+  }
+
+  private static final class ParameterizedTypeImpl implements ParameterizedType {
+    private final Class<?> rawType;
+    private final Type[] typeArguments;
+
+    ParameterizedTypeImpl(Class<?> rawType, Type[] typeArguments) {
+      this.rawType = rawType;
+      this.typeArguments = typeArguments.clone();
+    }
+
+    @Override
+    public Type[] getActualTypeArguments() {
+      return typeArguments.clone();
+    }
+
+    @Override
+    public Type getRawType() {
+      return rawType;
+    }
+
+    @Override
+    @Nullable
+    public Type getOwnerType() {
+      return rawType.getDeclaringClass();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ParameterizedType)) {
+        return false;
+      }
+      ParameterizedType that = (ParameterizedType) o;
+      return rawType.equals(that.getRawType())
+          && Arrays.equals(typeArguments, that.getActualTypeArguments());
+    }
+
+    @Override
+    public int hashCode() {
+      return rawType.hashCode() ^ Arrays.hashCode(typeArguments);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder(rawType.getName()).append('<');
+      for (int i = 0; i < typeArguments.length; ++i) {
+        if (i > 0) {
+          builder.append(", ");
+        }
+        builder.append(
+            typeArguments[i] instanceof Class
+                ? ((Class<?>) typeArguments[i]).getName()
+                : typeArguments[i].toString());
+      }
+      return builder.append('>').toString();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.ApiAsyncFunction;
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Query.LimitType;
+import com.google.cloud.firestore.Query.QueryOptions;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.RunQueryResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Runs keys-only queries, which return the references of matching documents without their contents.
+ *
+ * <p>The queries only request the document names and the fields that they are ordered by, and the
+ * responses are not decoded into {@link QueryDocumentSnapshot}s. Queries that can be partitioned
+ * may be split into partitions that are scanned in parallel.
+ */
+final class KeyScan {
+  private KeyScan() {}
+
+  /**
+   * Returns the references of the documents that match the query, in query order.
+   *
+   * @param desiredPartitionCount The desired number of partitions to scan in parallel, or 1 to scan
+   *     the query without partitioning it.
+   */
+  static ApiFuture<List<DocumentReference>> keys(Query query, long desiredPartitionCount) {
+    return ApiFutures.transform(
+        scan(query, desiredPartitionCount, /* collectKeys= */ true),
+        new ApiFunction<List<Scan>, List<DocumentReference>>() {
+          @Override
+          public List<DocumentReference> apply(List<Scan> scans) {
+            if (scans.size() == 1) {
+              return scans.get(0).keys;
+            }
+            List<DocumentReference> keys = new ArrayList<>();
+            for (Scan scan : scans) {
+              keys.addAll(scan.keys);
+            }
+            return keys;
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Returns the number of documents that match the query.
+   *
+   * @param desiredPartitionCount The desired number of partitions to scan in parallel, or 1 to scan
+   *     the query without partitioning it.
+   */
+  static ApiFuture<Long> count(Query query, long desiredPartitionCount) {
+    return ApiFutures.transform(
+        scan(query, desiredPartitionCount, /* collectKeys= */ false),
+        new ApiFunction<List<Scan>, Long>() {
+          @Override
+          public Long apply(List<Scan> scans) {
+            long count = 0;
+            for (Scan scan : scans) {
+              count += scan.count;
+            }
+            return count;
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private static ApiFuture<List<Scan>> scan(
+      Query query, long desiredPartitionCount, final boolean collectKeys) {
+    if (desiredPartitionCount == 1) {
+      return ApiFutures.allAsList(
+          Collections.singletonList(new Scan(query.keysOnly(), collectKeys).start()));
+    }
+
+    return ApiFutures.transformAsync(
+        query.getPartitions(desiredPartitionCount),
+        new ApiAsyncFunction<List<QueryPartition>, List<Scan>>() {
+          @Override
+          public ApiFuture<List<Scan>> apply(List<QueryPartition> partitions) {
+            List<ApiFuture<Scan>> scans = new ArrayList<>(partitions.size());
+            for (QueryPartition partition : partitions) {
+              scans.add(new Scan(partition.createQuery().keysOnly(), collectKeys).start());
+            }
+            return ApiFutures.allAsList(scans);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Scans the results of a single keys-only query. */
+  private static final class Scan implements ApiStreamObserver<RunQueryResponse> {
+    private final Query query;
+    @Nullable private final List<DocumentReference> keys;
+    private final SettableApiFuture<Scan> result = SettableApiFuture.create();
+
+    private long count = 0;
+
+    /** The read time of the first response, or null if no response has been received. */
+    @Nullable private Timestamp readTime;
+
+    /** The last document that was received, used as the cursor to restart the query. */
+    @Nullable private Document lastDocument;
+
+    Scan(Query query, boolean collectKeys) {
+      this.query = query;
+      this.keys = collectKeys ? new ArrayList<DocumentReference>() : null;
+    }
+
+    ApiFuture<Scan> start() {
+      run(query, /* readTime= */ null);
+      return result;
+    }
+
+    private void run(Query query, @Nullable Timestamp readTime) {
+      RunQueryRequest.Builder request = query.toProto().toBuilder();
+      if (readTime != null) {
+        request.setReadTime(readTime.toProto());
+      }
+      query.rpcContext.streamRequest(
+          request.build(), this, query.rpcContext.getClient().runQueryCallable());
+    }
+
+    @Override
+    public void onNext(RunQueryResponse response) {
+      if (readTime == null) {
+        readTime = Timestamp.fromProto(response.getReadTime());
+      }
+      if (response.hasDocument()) {
+        ++count;
+        lastDocument = response.getDocument();
+        if (keys != null) {
+          keys.add(
+              new DocumentReference(query.rpcContext, ResourcePath.create(lastDocument.getName())));
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      if (lastDocument != null && query.isRetryableError(throwable)) {
+        run(remainingQuery(), readTime);
+      } else {
+        result.setException(throwable);
+      }
+    }
+
+    /** Returns the query for the results that have not been received yet. */
+    private Query remainingQuery() {
+      QueryDocumentSnapshot cursor =
+          QueryDocumentSnapshot.fromDocument(query.rpcContext, readTime, lastDocument);
+      QueryOptions.Builder options = query.resumeAfter(cursor).options.toBuilder();
+      // The offset has been applied by the previous query, and part of the limit has been used.
+      options.setOffset(null);
+      if (query.options.getLimit() != null) {
+        options.setLimit((int) (query.options.getLimit() - count));
+      }
+      return new Query(query.rpcContext, options.build());
+    }
+
+    @Override
+    public void onCompleted() {
+      // The backend returns the results of limitToLast() queries in reverse order.
+      if (keys != null && LimitType.Last.equals(query.options.getLimitType())) {
+        Collections.reverse(keys);
+      }
+      result.set(this);
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.firestore.v1.Value;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * Decodes the Value protos of a document on first access and memoizes the results, so that reading
+ * the same field repeatedly does not decode it again.
+ *
+ * <p>Decoded maps and arrays are represented by shared, thread-safe nodes that decode their own
+ * entries on demand. Callers never see the nodes: they receive views that copy the entries of a
+ * node into a HashMap or ArrayList when they are first accessed. The views can be modified like the
+ * collections that {@link UserDataConverter#decodeValue} returns, without affecting other callers,
+ * and nested maps and arrays are only decoded if they are accessed.
+ */
+final class LazyDecoder {
+  // Memoizes decoded null values, which concurrent maps and atomic arrays cannot hold.
+  private static final Object NULL_VALUE = new Object();
+
+  private LazyDecoder() {}
+
+  /** Returns the memoized, decoded fields of a map. */
+  static MapNode forFields(FirestoreRpcContext<?> rpcContext, Map<String, Value> fields) {
+    return new MapNode(rpcContext, fields);
+  }
+
+  /** Decodes a value into a node for maps and arrays, or into its Java representation. */
+  private static Object decode(FirestoreRpcContext<?> rpcContext, Value value) {
+    switch (value.getValueTypeCase()) {
+      case MAP_VALUE:
+        return new MapNode(rpcContext, value.getMapValue().getFieldsMap());
+      case ARRAY_VALUE:
+        return new ArrayNode(rpcContext, value.getArrayValue().getValuesList());
+      default:
+        return UserDataConverter.decodeValue(rpcContext, value);
+    }
+  }
+
+  /** Returns a new view of a decoded value that is a map or an array, or the value itself. */
+  @Nullable
+  static Object toView(@Nullable Object decodedValue) {
+    if (decodedValue instanceof MapNode) {
+      return new MapView((MapNode) decodedValue);
+    } else if (decodedValue instanceof ArrayNode) {
+      return new ListView((ArrayNode) decodedValue);
+    }
+    return decodedValue;
+  }
+
+  /** The memoized entries of a map value. */
+  static final class MapNode {
+    private final FirestoreRpcContext<?> rpcContext;
+    private final Map<String, Value> fields;
+    private final ConcurrentMap<String, Object> decodedFields = new ConcurrentHashMap<>();
+
+    private MapNode(FirestoreRpcContext<?> rpcContext, Map<String, Value> fields) {
+      this.rpcContext = rpcContext;
+      this.fields = fields;
+    }
+
+    /** Returns the decoded entry, or null if the map does not contain the key. */
+    @Nullable
+    Object get(String key) {
+      Object decodedValue = decodedFields.get(key);
+      if (decodedValue == null) {
+        Value value = fields.get(key);
+        if (value == null) {
+          return null;
+        }
+        decodedValue = decode(rpcContext, value);
+        Object existingValue =
+            decodedFields.putIfAbsent(key, decodedValue != null ? decodedValue : NULL_VALUE);
+        if (existingValue != null) {
+          decodedValue = existingValue;
+        }
+      }
+      return decodedValue == NULL_VALUE ? null : decodedValue;
+    }
+
+    /**
+     * Returns the decoded value at the path of field names, or null if the path does not lead to a
+     * value.
+     */
+    @Nullable
+    Object get(List<String> segments) {
+      Object value = this;
+      for (String segment : segments) {
+        if (!(value instanceof MapNode)) {
+          return null;
+        }
+        value = ((MapNode) value).get(segment);
+      }
+      return value;
+    }
+
+    /** Returns a new HashMap with views of the decoded entries. */
+    Map<String, Object> toMap() {
+      Map<String, Object> result = new HashMap<>();
+      for (String key : fields.keySet()) {
+        result.put(key, toView(get(key)));
+      }
+      return result;
+    }
+  }
+
+  /** The memoized elements of an array value. */
+  static final class ArrayNode {
+    private final FirestoreRpcContext<?> rpcContext;
+    private final List<Value> values;
+    private final AtomicReferenceArray<Object> decodedValues;
+
+    private ArrayNode(FirestoreRpcContext<?> rpcContext, List<Value> values) {
+      this.rpcContext = rpcContext;
+      this.values = values;
+      this.decodedValues = new AtomicReferenceArray<>(values.size());
+    }
+
+    @Nullable
+    Object get(int index) {
+      Object decodedValue = decodedValues.get(index);
+      if (decodedValue == null) {
+        decodedValue = decode(rpcContext, values.get(index));
+        if (decodedValue == null) {
+          decodedValue = NULL_VALUE;
+        }
+        if (!decodedValues.compareAndSet(index, null, decodedValue)) {
+          decodedValue = decodedValues.get(index);
+        }
+      }
+      return decodedValue == NULL_VALUE ? null : decodedValue;
+    }
+
+    /** Returns a new ArrayList with views of the decoded elements. */
+    List<Object> toList() {
+      List<Object> result = new ArrayList<>(values.size());
+      for (int i = 0; i < values.size(); ++i) {
+        result.add(toView(get(i)));
+      }
+      return result;
+    }
+  }
+
+  /** A map that copies the entries of a node when it is first accessed. */
+  private static final class MapView extends AbstractMap<String, Object> {
+    @Nullable private MapNode node;
+    @Nullable private Map<String, Object> delegate;
+
+    MapView(MapNode node) {
+      this.node = node;
+    }
+
+    private Map<String, Object> delegate() {
+      if (delegate == null) {
+        delegate = node.toMap();
+        node = null;
+      }
+      return delegate;
+    }
+
+    @Override
+    public int size() {
+      return delegate != null ? delegate.size() : node.fields.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return delegate().containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+      return delegate().get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+      return delegate().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+      return delegate().remove(key);
+    }
+
+    @Override
+    public void clear() {
+      delegate().clear();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      return delegate().entrySet();
+    }
+  }
+
+  /** A list that copies the elements of a node when it is first accessed. */
+  private static final class ListView extends AbstractList<Object> implements RandomAccess {
+    @Nullable private ArrayNode node;
+    @Nullable private List<Object> delegate;
+
+    ListView(ArrayNode node) {
+      this.node = node;
+    }
+
+    private List<Object> delegate() {
+      if (delegate == null) {
+        delegate = node.toList();
+        node = null;
+      }
+      return delegate;
+    }
+
+    @Override
+    public int size() {
+      return delegate != null ? delegate.size() : node.values.size();
+    }
+
+    @Override
+    public Object get(int index) {
+      return delegate().get(index);
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+      return delegate().set(index, element);
+    }
+
+    @Override
+    public void add(int index, Object element) {
+      ++modCount;
+      delegate().add(index, element);
+    }
+
+    @Override
+    public Object remove(int index) {
+      ++modCount;
+      return delegate().remove(index);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the results of a limitToLast() query in query order.
+ *
+ * <p>The backend returns the results of limitToLast() queries in reverse order, since their
+ * ordering constraints are flipped before the query is sent. The results are therefore written to
+ * an array from the back, so that they are in query order once the query has completed without
+ * being copied or reversed. Since the backend returns at most {@code limit} results, the array is
+ * sized for the limit up front unless the limit is large.
+ */
+final class LimitToLastBuffer {
+  /** The largest array that is allocated before any results have been received. */
+  static final int MAX_INITIAL_CAPACITY = 1000;
+
+  private QueryDocumentSnapshot[] documents;
+
+  /** The index of the first result in query order. */
+  private int head;
+
+  LimitToLastBuffer(int limit) {
+    documents = new QueryDocumentSnapshot[Math.min(limit, MAX_INITIAL_CAPACITY)];
+    head = documents.length;
+  }
+
+  /** Adds a result that precedes all previously added results in query order. */
+  void add(QueryDocumentSnapshot documentSnapshot) {
+    if (head == 0) {
+      grow();
+    }
+    documents[--head] = documentSnapshot;
+  }
+
+  private void grow() {
+    QueryDocumentSnapshot[] grown = new QueryDocumentSnapshot[Math.max(1, documents.length * 2)];
+    int offset = grown.length - documents.length;
+    System.arraycopy(documents, 0, grown, offset, documents.length);
+    documents = grown;
+    head = offset;
+  }
+
+  int size() {
+    return documents.length - head;
+  }
+
+  /** Returns a view of the results in query order. */
+  List<QueryDocumentSnapshot> asList() {
+    return Arrays.asList(documents).subList(head, documents.length);
+  }
+}
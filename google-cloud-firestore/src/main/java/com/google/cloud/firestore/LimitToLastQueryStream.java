@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.common.base.Preconditions;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Streams the results of a limitToLast() query to a {@link ResponseObserver}.
+ *
+ * <p>The first result in query order is the last result returned by the backend, so no result can
+ * be delivered before the query has completed. The results are collected in a {@link
+ * LimitToLastBuffer}, which holds at most {@code limit} results, and are then delivered in query
+ * order as requested by the observer.
+ */
+class LimitToLastQueryStream implements StreamController {
+  private final ResponseObserver<? super QueryDocumentSnapshot> observer;
+  private final FlowControlledQueryStream upstream;
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private final LimitToLastBuffer buffer;
+
+  @GuardedBy("lock")
+  private boolean autoFlowControl = true;
+
+  /** Whether the observer's onStart() has returned, after which flow control is fixed. */
+  @GuardedBy("lock")
+  private boolean started = false;
+
+  @GuardedBy("lock")
+  private boolean cancelled = false;
+
+  /** The number of documents requested by the observer that have not been delivered yet. */
+  @GuardedBy("lock")
+  private long demand = 0;
+
+  /** The results in query order, or null if the query has not completed yet. */
+  @GuardedBy("lock")
+  @Nullable
+  private List<QueryDocumentSnapshot> results;
+
+  /** The index of the next result to deliver. */
+  @GuardedBy("lock")
+  private int position = 0;
+
+  /** Whether a thread is currently delivering results. */
+  @GuardedBy("lock")
+  private boolean delivering = false;
+
+  /** Whether the observer has been notified of completion or of an error. */
+  @GuardedBy("lock")
+  private boolean done = false;
+
+  LimitToLastQueryStream(Query query, ResponseObserver<? super QueryDocumentSnapshot> observer) {
+    this.observer = observer;
+    this.buffer = new LimitToLastBuffer(query.options.getLimit());
+    this.upstream = new FlowControlledQueryStream(query, new BufferingObserver());
+  }
+
+  /** Notifies the observer and starts the query. */
+  void start() {
+    observer.onStart(this);
+
+    boolean cancel;
+    synchronized (lock) {
+      started = true;
+      cancel = cancelled;
+      done = cancelled;
+    }
+
+    if (cancel) {
+      // The observer cancelled the stream before it was started.
+      observer.onError(new CancellationException("User cancelled stream"));
+      return;
+    }
+
+    upstream.start();
+  }
+
+  @Override
+  public void disableAutoInboundFlowControl() {
+    synchronized (lock) {
+      Preconditions.checkState(
+          !started, "Flow control can only be disabled during ResponseObserver.onStart()");
+      autoFlowControl = false;
+    }
+  }
+
+  @Override
+  public void request(int count) {
+    Preconditions.checkArgument(count > 0, "Count must be positive, but was: %s", count);
+
+    synchronized (lock) {
+      Preconditions.checkState(!autoFlowControl, "Automatic flow control is enabled");
+      demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+    }
+    deliver();
+  }
+
+  @Override
+  public void cancel() {
+    boolean notify;
+    synchronized (lock) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      // Until the query completes, the query stream notifies the observer of the cancellation.
+      notify = started && results != null && !done;
+      done = done || notify;
+    }
+
+    if (notify) {
+      observer.onError(new CancellationException("User cancelled stream"));
+    } else {
+      upstream.cancel();
+    }
+  }
+
+  /** Delivers results while there is demand. Only one thread delivers results at a time. */
+  private void deliver() {
+    synchronized (lock) {
+      if (delivering) {
+        return;
+      }
+      delivering = true;
+    }
+
+    while (true) {
+      QueryDocumentSnapshot next = null;
+      synchronized (lock) {
+        if (done || results == null) {
+          delivering = false;
+          return;
+        }
+        if (position == results.size()) {
+          done = true;
+          delivering = false;
+        } else if (autoFlowControl || demand > 0) {
+          next = results.get(position++);
+          if (!autoFlowControl) {
+            --demand;
+          }
+        } else {
+          delivering = false;
+          return;
+        }
+      }
+
+      if (next == null) {
+        observer.onComplete();
+        return;
+      }
+      observer.onResponse(next);
+    }
+  }
+
+  /** Collects the results of the query, which arrive in reverse order. */
+  private class BufferingObserver implements ResponseObserver<QueryDocumentSnapshot> {
+    @Override
+    public void onStart(StreamController controller) {
+      // The backend returns at most 'limit' results, which are all needed before the first result
+      // can be delivered. The query is therefore streamed with automatic flow control.
+    }
+
+    @Override
+    public void onResponse(QueryDocumentSnapshot documentSnapshot) {
+      synchronized (lock) {
+        buffer.add(documentSnapshot);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      synchronized (lock) {
+        if (done) {
+          return;
+        }
+        done = true;
+      }
+      observer.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      boolean cancel;
+      synchronized (lock) {
+        results = buffer.asList();
+        // The query may complete before a cancellation reaches the backend.
+        cancel = cancelled && !done;
+        done = done || cancel;
+      }
+
+      if (cancel) {
+        observer.onError(new CancellationException("User cancelled stream"));
+      } else {
+        deliver();
+      }
+    }
+  }
+}
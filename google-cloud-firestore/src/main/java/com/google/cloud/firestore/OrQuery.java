@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Query.LimitType;
+import com.google.cloud.firestore.Query.QuerySnapshotObserver;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A query that returns the documents that match any of several queries, which is created by {@link
+ * Query#or(Query...)}.
+ *
+ * <p>The queries are run in parallel and their results are merged in the order of the queries.
+ * Documents that match several queries are only returned once. All queries read the same snapshot
+ * of the database.
+ */
+public final class OrQuery {
+  private final Query query;
+  private final List<Query> branches;
+
+  OrQuery(Query query, List<Query> branches) {
+    this.query = query;
+    this.branches = branches;
+  }
+
+  /**
+   * Executes the query and returns the results as QuerySnapshot.
+   *
+   * @return An ApiFuture that will be resolved with the results of the query.
+   */
+  @Nonnull
+  public ApiFuture<QuerySnapshot> get() {
+    return execute(/* readTime= */ null);
+  }
+
+  /**
+   * Executes the query at the provided read time and returns the results as QuerySnapshot.
+   *
+   * <p>The read time must be within the data retention window of the database.
+   *
+   * @param readTime The time at which to read the results of the query.
+   * @return An ApiFuture that will be resolved with the results of the query.
+   */
+  @Nonnull
+  public ApiFuture<QuerySnapshot> get(@Nonnull Timestamp readTime) {
+    Preconditions.checkNotNull(readTime, "Read time must not be null");
+    return execute(readTime);
+  }
+
+  private ApiFuture<QuerySnapshot> execute(@Nullable Timestamp readTime) {
+    if (LimitType.Last.equals(query.options.getLimitType())) {
+      // The last results are only known once all queries have completed.
+      return DisjunctionFanOut.get(query, branches, /* transactionId= */ null, readTime);
+    }
+
+    final SettableApiFuture<QuerySnapshot> result = SettableApiFuture.create();
+    merge(
+        readTime,
+        new QuerySnapshotObserver() {
+          final List<QueryDocumentSnapshot> documentSnapshots = new ArrayList<>();
+
+          @Override
+          public void onNext(QueryDocumentSnapshot documentSnapshot) {
+            documentSnapshots.add(documentSnapshot);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            result.setException(throwable);
+          }
+
+          @Override
+          public void onCompleted() {
+            result.set(QuerySnapshot.withDocuments(query, getReadTime(), documentSnapshots));
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Executes the query and streams the results as a StreamObserver of DocumentSnapshots. The
+   * queries stop streaming as soon as the limit has been reached.
+   *
+   * <p>The results of limitToLast() queries are only delivered once all queries have completed.
+   *
+   * @param responseObserver The observer to be notified when results arrive.
+   */
+  public void stream(@Nonnull final ApiStreamObserver<DocumentSnapshot> responseObserver) {
+    if (LimitType.Last.equals(query.options.getLimitType())) {
+      ApiFutures.addCallback(
+          get(),
+          new ApiFutureCallback<QuerySnapshot>() {
+            @Override
+            public void onSuccess(QuerySnapshot querySnapshot) {
+              for (QueryDocumentSnapshot documentSnapshot : querySnapshot) {
+                responseObserver.onNext(documentSnapshot);
+              }
+              responseObserver.onCompleted();
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+              responseObserver.onError(throwable);
+            }
+          },
+          MoreExecutors.directExecutor());
+      return;
+    }
+
+    merge(
+        /* readTime= */ null,
+        new QuerySnapshotObserver() {
+          @Override
+          public void onNext(QueryDocumentSnapshot documentSnapshot) {
+            responseObserver.onNext(documentSnapshot);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            responseObserver.onError(throwable);
+          }
+
+          @Override
+          public void onCompleted() {
+            responseObserver.onCompleted();
+          }
+        });
+  }
+
+  private void merge(@Nullable Timestamp readTime, QuerySnapshotObserver observer) {
+    Integer offset = query.options.getOffset();
+    new OrderedMergeStream(
+            branches,
+            query.implicitOrderComparator(),
+            query.options.getLimit(),
+            offset != null ? offset : 0,
+            readTime,
+            observer)
+        .start();
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Query.QuerySnapshotObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Streams the results of several queries with the same ordering as a single, ordered stream without
+ * duplicates.
+ *
+ * <p>The queries are streamed in parallel. A result is forwarded once every query has either
+ * returned a later result or completed. Each query is streamed with flow control so that at most
+ * {@link #BATCH_SIZE} of its results are buffered. Once the limit of the merged stream has been
+ * reached, all queries that are still running are cancelled.
+ *
+ * <p>All queries read the same snapshot of the database. Unless a read time is provided, the first
+ * query is started on its own, and the other queries are started at its read time once it is known.
+ *
+ * <p>Results are collected while the lock is held and delivered to the observer after it has been
+ * released. Only one thread delivers results at a time, so the observer is never invoked
+ * concurrently and receives the results in order.
+ */
+class OrderedMergeStream {
+  /** The maximum number of results that are requested from each query at a time. */
+  static final int BATCH_SIZE = 100;
+
+  private final Comparator<QueryDocumentSnapshot> comparator;
+  @Nullable private final Integer limit;
+  private final int offset;
+  private final QuerySnapshotObserver observer;
+  private final int batchSize;
+  @Nullable private final Timestamp readTime;
+
+  private final Object lock = new Object();
+
+  private final List<Branch> branches = new ArrayList<>();
+
+  @GuardedBy("lock")
+  private final Set<ResourcePath> seen = new HashSet<>();
+
+  /** The number of results that were skipped because of the offset. */
+  @GuardedBy("lock")
+  private int skipped = 0;
+
+  @GuardedBy("lock")
+  private int forwarded = 0;
+
+  /** Whether all results, and the completion or an error, have been collected for delivery. */
+  @GuardedBy("lock")
+  private boolean done = false;
+
+  /** Whether the queries after the first one have been started. */
+  @GuardedBy("lock")
+  private boolean allBranchesStarted = false;
+
+  /** The results that have been collected but not yet delivered to the observer. */
+  @GuardedBy("lock")
+  private final ArrayDeque<QueryDocumentSnapshot> pendingResults = new ArrayDeque<>();
+
+  /** The read time to deliver with the completion, or null if completion is not pending. */
+  @GuardedBy("lock")
+  @Nullable
+  private Timestamp pendingCompletion;
+
+  /** The error to deliver, or null if no error is pending. */
+  @GuardedBy("lock")
+  @Nullable
+  private Throwable pendingError;
+
+  /** Whether a thread is currently delivering results to the observer. */
+  @GuardedBy("lock")
+  private boolean delivering = false;
+
+  /**
+   * @param queries The queries to merge, which must not have an offset.
+   * @param comparator The ordering of the results of all queries.
+   * @param limit The maximum number of results to forward, or null for no limit.
+   * @param offset The number of results to skip.
+   * @param readTime The time at which to run all queries, or null to run them at the read time of
+   *     the first query.
+   * @param observer The observer that receives the merged results.
+   */
+  OrderedMergeStream(
+      List<Query> queries,
+      Comparator<QueryDocumentSnapshot> comparator,
+      @Nullable Integer limit,
+      int offset,
+      @Nullable Timestamp readTime,
+      QuerySnapshotObserver observer) {
+    this.comparator = comparator;
+    this.limit = limit;
+    this.offset = offset;
+    this.readTime = readTime;
+    this.observer = observer;
+    this.batchSize = limit != null ? Math.max(1, Math.min(BATCH_SIZE, limit + offset)) : BATCH_SIZE;
+    for (Query query : queries) {
+      branches.add(new Branch(query));
+    }
+  }
+
+  /** Starts streaming all queries. */
+  void start() {
+    if (limit != null && limit == 0) {
+      synchronized (lock) {
+        done = true;
+      }
+      observer.onCompleted(readTime != null ? readTime : Timestamp.now());
+      return;
+    }
+
+    if (readTime != null) {
+      synchronized (lock) {
+        allBranchesStarted = true;
+      }
+      for (Branch branch : branches) {
+        branch.stream.start(readTime);
+      }
+    } else {
+      branches.get(0).stream.start(/* readTime= */ null);
+    }
+  }
+
+  /**
+   * Starts the queries after the first one at the read time of the first query, unless they have
+   * already been started or the stream is done.
+   */
+  private void startRemainingBranches() {
+    synchronized (lock) {
+      if (done || allBranchesStarted) {
+        return;
+      }
+      allBranchesStarted = true;
+    }
+    Timestamp firstReadTime = branches.get(0).stream.getReadTime();
+    for (Branch branch : branches.subList(1, branches.size())) {
+      branch.stream.start(firstReadTime);
+    }
+  }
+
+  /**
+   * Delivers the collected results to the observer. Returns immediately if another thread is
+   * already delivering, since that thread also delivers the results collected in the meantime.
+   */
+  private void deliver() {
+    synchronized (lock) {
+      if (delivering) {
+        return;
+      }
+      delivering = true;
+    }
+
+    while (true) {
+      List<QueryDocumentSnapshot> results;
+      Timestamp completion;
+      Throwable error;
+      synchronized (lock) {
+        if (pendingResults.isEmpty() && pendingCompletion == null && pendingError == null) {
+          delivering = false;
+          return;
+        }
+        results = new ArrayList<>(pendingResults);
+        pendingResults.clear();
+        completion = pendingCompletion;
+        error = pendingError;
+        pendingCompletion = null;
+        pendingError = null;
+      }
+
+      for (QueryDocumentSnapshot documentSnapshot : results) {
+        observer.onNext(documentSnapshot);
+      }
+      if (error != null) {
+        observer.onError(error);
+      } else if (completion != null) {
+        observer.onCompleted(completion);
+      }
+    }
+  }
+
+  /** Forwards all results whose position in the merged stream is known. */
+  @GuardedBy("lock")
+  private void drainLocked() {
+    while (!done) {
+      Branch next = null;
+      for (Branch branch : branches) {
+        if (branch.buffer.isEmpty()) {
+          if (!branch.completed) {
+            // The next result of this query may precede all buffered results.
+            return;
+          }
+        } else if (next == null
+            || comparator.compare(branch.buffer.peek(), next.buffer.peek()) < 0) {
+          next = branch;
+        }
+      }
+
+      if (next == null) {
+        completeLocked();
+        return;
+      }
+
+      QueryDocumentSnapshot documentSnapshot = next.buffer.poll();
+      next.requestMoreLocked();
+
+      if (!seen.add(documentSnapshot.getReference().getResourcePath())) {
+        continue;
+      }
+      if (skipped < offset) {
+        ++skipped;
+        continue;
+      }
+
+      pendingResults.add(documentSnapshot);
+      if (limit != null && ++forwarded == limit) {
+        completeLocked();
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private void completeLocked() {
+    done = true;
+
+    Timestamp completionReadTime = readTime;
+    for (Branch branch : branches) {
+      Timestamp branchReadTime = branch.stream.getReadTime();
+      if (completionReadTime == null
+          || (branchReadTime != null && branchReadTime.compareTo(completionReadTime) > 0)) {
+        completionReadTime = branchReadTime;
+      }
+      if (!branch.completed) {
+        branch.stream.cancel();
+      }
+    }
+
+    pendingCompletion = completionReadTime != null ? completionReadTime : Timestamp.now();
+  }
+
+  private class Branch implements ResponseObserver<QueryDocumentSnapshot> {
+    private final FlowControlledQueryStream stream;
+
+    @GuardedBy("lock")
+    private final ArrayDeque<QueryDocumentSnapshot> buffer = new ArrayDeque<>();
+
+    /** The number of results that have been requested but not yet received. */
+    @GuardedBy("lock")
+    private int outstanding = 0;
+
+    @GuardedBy("lock")
+    private boolean completed = false;
+
+    Branch(Query query) {
+      this.stream = new FlowControlledQueryStream(query, this);
+    }
+
+    @Override
+    public void onStart(StreamController controller) {
+      controller.disableAutoInboundFlowControl();
+      synchronized (lock) {
+        outstanding = batchSize;
+      }
+      controller.request(batchSize);
+    }
+
+    /** Requests more results once half of the requested results have been consumed. */
+    @GuardedBy("lock")
+    void requestMoreLocked() {
+      int pending = outstanding + buffer.size();
+      if (!completed && pending <= batchSize / 2) {
+        outstanding += batchSize - pending;
+        stream.request(batchSize - pending);
+      }
+    }
+
+    @Override
+    public void onResponse(QueryDocumentSnapshot documentSnapshot) {
+      synchronized (lock) {
+        if (done) {
+          return;
+        }
+        --outstanding;
+        buffer.add(documentSnapshot);
+        drainLocked();
+      }
+      startRemainingBranches();
+      deliver();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      synchronized (lock) {
+        if (done) {
+          return;
+        }
+        done = true;
+        completed = true;
+        for (Branch branch : branches) {
+          if (!branch.completed) {
+            branch.stream.cancel();
+          }
+        }
+        pendingError = throwable;
+      }
+      deliver();
+    }
+
+    @Override
+    public void onComplete() {
+      synchronized (lock) {
+        if (done) {
+          return;
+        }
+        completed = true;
+        drainLocked();
+      }
+      startRemainingBranches();
+      deliver();
+    }
+  }
+}
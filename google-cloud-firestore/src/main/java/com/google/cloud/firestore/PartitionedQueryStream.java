@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Query.QuerySnapshotObserver;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Runs the queries of a partitioned query in parallel and combines their results into a single
+ * stream.
+ *
+ * <p>Partitions cover consecutive, non-overlapping ranges of document names. If results are
+ * requested in order, the results of a partition are forwarded as they arrive as long as all
+ * previous partitions have completed. Results of later partitions are buffered until then, which
+ * yields the same order as running the unpartitioned query. Otherwise, all results are forwarded as
+ * they arrive.
+ *
+ * <p>The downstream observer is never invoked concurrently.
+ */
+class PartitionedQueryStream {
+  private final List<Query> partitionQueries;
+  private final boolean ordered;
+  @Nullable private final Timestamp partitionReadTime;
+  private final QuerySnapshotObserver observer;
+
+  private final Object lock = new Object();
+
+  /** Results of partitions that cannot be forwarded yet. Only used if results are ordered. */
+  @GuardedBy("lock")
+  private final List<List<QueryDocumentSnapshot>> bufferedResults;
+
+  @GuardedBy("lock")
+  private final boolean[] completedPartitions;
+
+  /** The partition whose results are forwarded as they arrive if results are ordered. */
+  @GuardedBy("lock")
+  private int currentPartition = 0;
+
+  @GuardedBy("lock")
+  private int remainingPartitions;
+
+  /** The latest read time of all completed partitions. */
+  @GuardedBy("lock")
+  @Nullable
+  private Timestamp readTime;
+
+  /** Whether a partition failed, in which case no further results are forwarded. */
+  @GuardedBy("lock")
+  private boolean failed = false;
+
+  /**
+   * @param partitionQueries The queries for each partition, ordered by the document names they
+   *     cover.
+   * @param ordered Whether to forward the results in the order of their document names.
+   * @param partitionReadTime The time at which to read all partitions, or null to read each
+   *     partition at its own read time.
+   * @param observer The observer that receives the combined results.
+   */
+  PartitionedQueryStream(
+      List<Query> partitionQueries,
+      boolean ordered,
+      @Nullable Timestamp partitionReadTime,
+      QuerySnapshotObserver observer) {
+    this.partitionQueries = partitionQueries;
+    this.ordered = ordered;
+    this.partitionReadTime = partitionReadTime;
+    this.observer = observer;
+    this.remainingPartitions = partitionQueries.size();
+    this.completedPartitions = new boolean[partitionQueries.size()];
+    this.bufferedResults = new ArrayList<>(partitionQueries.size());
+    for (int i = 0; i < partitionQueries.size(); ++i) {
+      bufferedResults.add(new ArrayList<QueryDocumentSnapshot>());
+    }
+  }
+
+  /** Starts the queries for all partitions. */
+  void start() {
+    if (partitionQueries.isEmpty()) {
+      observer.onCompleted(partitionReadTime != null ? partitionReadTime : Timestamp.now());
+      return;
+    }
+
+    for (int i = 0; i < partitionQueries.size(); ++i) {
+      partitionQueries
+          .get(i)
+          .internalStream(new PartitionObserver(i), /* transactionId= */ null, partitionReadTime);
+    }
+  }
+
+  private class PartitionObserver extends QuerySnapshotObserver {
+    private final int partition;
+
+    PartitionObserver(int partition) {
+      this.partition = partition;
+    }
+
+    @Override
+    public void onNext(QueryDocumentSnapshot documentSnapshot) {
+      synchronized (lock) {
+        if (failed) {
+          return;
+        }
+        if (!ordered || partition == currentPartition) {
+          observer.onNext(documentSnapshot);
+        } else {
+          bufferedResults.get(partition).add(documentSnapshot);
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      synchronized (lock) {
+        if (failed) {
+          return;
+        }
+        failed = true;
+        observer.onError(throwable);
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      synchronized (lock) {
+        if (failed) {
+          return;
+        }
+
+        Timestamp partitionReadTime = getReadTime();
+        if (readTime == null
+            || (partitionReadTime != null && partitionReadTime.compareTo(readTime) > 0)) {
+          readTime = partitionReadTime;
+        }
+
+        completedPartitions[partition] = true;
+        --remainingPartitions;
+
+        // Forward the buffered results of all partitions whose predecessors have completed.
+        while (currentPartition < completedPartitions.length
+            && completedPartitions[currentPartition]) {
+          ++currentPartition;
+          if (currentPartition < completedPartitions.length) {
+            for (QueryDocumentSnapshot documentSnapshot : bufferedResults.get(currentPartition)) {
+              observer.onNext(documentSnapshot);
+            }
+            bufferedResults.set(currentPartition, null);
+          }
+        }
+
+        if (remainingPartitions == 0) {
+          observer.onCompleted(readTime);
+        }
+      }
+    }
+  }
+}
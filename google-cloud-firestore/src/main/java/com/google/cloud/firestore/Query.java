@@ -16,7 +16,6 @@
 
 package com.google.cloud.firestore;
 
-import static com.google.common.collect.Lists.reverse;
 import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.ARRAY_CONTAINS;
 import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.ARRAY_CONTAINS_ANY;
 import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.EQUAL;
@@ -28,11 +27,16 @@ import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.LESS_
 import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.NOT_EQUAL;
 import static com.google.firestore.v1.StructuredQuery.FieldFilter.Operator.NOT_IN;
 
+import com.google.api.core.ApiFunction;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.api.core.InternalExtensionOnly;
 import com.google.api.core.SettableApiFuture;
 import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.api.gax.rpc.ResponseObserver;
 import com.google.api.gax.rpc.StatusCode;
+import com.google.api.gax.rpc.StreamController;
 import com.google.auto.value.AutoValue;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.Query.QueryOptions.Builder;
@@ -40,6 +44,7 @@ import com.google.cloud.firestore.v1.FirestoreSettings;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.firestore.bundle.BundledQuery;
 import com.google.firestore.v1.Cursor;
 import com.google.firestore.v1.Document;
@@ -58,6 +63,7 @@ import io.grpc.Status;
 import io.opencensus.trace.AttributeValue;
 import io.opencensus.trace.Tracing;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -118,6 +124,12 @@ public class Query {
 
     abstract boolean isInequalityFilter();
 
+    /**
+     * Whether the filter only matches documents with specific values, and therefore does not
+     * constrain the order in which results can be returned.
+     */
+    abstract boolean isEqualityFilter();
+
     abstract Filter toProto();
   }
 
@@ -135,6 +147,12 @@ public class Query {
       return false;
     }
 
+    @Override
+    boolean isEqualityFilter() {
+      return operator.equals(StructuredQuery.UnaryFilter.Operator.IS_NULL)
+          || operator.equals(StructuredQuery.UnaryFilter.Operator.IS_NAN);
+    }
+
     Filter toProto() {
       Filter.Builder result = Filter.newBuilder();
       result.getUnaryFilterBuilder().setField(fieldReference).setOp(operator);
@@ -153,6 +171,11 @@ public class Query {
       return Objects.equals(fieldReference, other.fieldReference)
           && Objects.equals(operator, other.operator);
     }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fieldReference, operator);
+    }
   }
 
   static class ComparisonFilter extends FieldFilter {
@@ -174,6 +197,14 @@ public class Query {
           || operator.equals(LESS_THAN_OR_EQUAL);
     }
 
+    @Override
+    boolean isEqualityFilter() {
+      return operator.equals(EQUAL)
+          || operator.equals(IN)
+          || operator.equals(ARRAY_CONTAINS)
+          || operator.equals(ARRAY_CONTAINS_ANY);
+    }
+
     Filter toProto() {
       Filter.Builder result = Filter.newBuilder();
       result.getFieldFilterBuilder().setField(fieldReference).setValue(value).setOp(operator);
@@ -193,6 +224,11 @@ public class Query {
           && Objects.equals(operator, other.operator)
           && Objects.equals(value, other.value);
     }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fieldReference, operator, value);
+    }
   }
 
   static final class FieldOrder {
@@ -221,6 +257,11 @@ public class Query {
       FieldOrder filter = (FieldOrder) o;
       return Objects.equals(toProto(), filter.toProto());
     }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fieldReference, direction);
+    }
   }
 
   /** Denotes whether a provided limit is applied to the beginning or the end of the result set. */
@@ -862,6 +903,49 @@ public class Query {
     return new Query(rpcContext, newOptions.build());
   }
 
+  /**
+   * Creates and returns a query that matches the documents that match this query or any of the
+   * provided queries. The queries are run in parallel, and documents that match several queries are
+   * only returned once.
+   *
+   * <p>All queries must only differ in their filters, and must have the same effective ordering.
+   * The ordering, cursors, limit and offset of the queries apply to the combined results.
+   *
+   * @param alternatives The queries whose results are combined with the results of this query.
+   * @return The created OrQuery.
+   */
+  @Nonnull
+  public OrQuery or(@Nonnull Query... alternatives) {
+    Preconditions.checkState(
+        options.getOffset() == null || !LimitType.Last.equals(options.getLimitType()),
+        "Cannot combine queries with both an offset and limitToLast() constraints.");
+
+    QueryOptions unfilteredOptions =
+        options.toBuilder().setFieldFilters(ImmutableList.<FieldFilter>of()).build();
+    ImmutableList<FieldOrder> orders = createImplicitOrderBy();
+
+    List<Query> branches = new ArrayList<>();
+    branches.add(DisjunctionFanOut.toSubQuery(this));
+    for (Query alternative : alternatives) {
+      Preconditions.checkArgument(
+          rpcContext.equals(alternative.rpcContext)
+              && unfilteredOptions.equals(
+                  alternative
+                      .options
+                      .toBuilder()
+                      .setFieldFilters(ImmutableList.<FieldFilter>of())
+                      .build()),
+          "Queries combined with or() must only differ in their filters.");
+      Preconditions.checkArgument(
+          orders.equals(alternative.createImplicitOrderBy()),
+          "Queries combined with or() must have the same ordering. Add an explicit orderBy() for "
+              + "fields with inequality filters.");
+      branches.add(DisjunctionFanOut.toSubQuery(alternative));
+    }
+
+    return new OrQuery(this, branches);
+  }
+
   /**
    * Creates and returns a new Query that's additionally sorted by the specified field.
    *
@@ -938,7 +1022,8 @@ public class Query {
    * java.lang.IllegalStateException} is thrown during execution.
    *
    * <p>Results for limitToLast() queries are only available once all documents are received. Hence,
-   * limitToLast() queries cannot be streamed via the {@link #stream(ApiStreamObserver)} API.
+   * when a limitToLast() query is streamed, the first result is only delivered once the query has
+   * completed.
    *
    * @param limit the maximum number of items to return
    * @return the created Query
@@ -1045,6 +1130,23 @@ public class Query {
     return new Query(rpcContext, newOptions.build());
   }
 
+  /**
+   * Returns a query that only returns the references of matching documents, together with the
+   * fields that the query is ordered by. These are needed to resume the query with a cursor.
+   */
+  Query keysOnly() {
+    ImmutableList.Builder<FieldReference> fieldProjections = ImmutableList.builder();
+    fieldProjections.add(FieldPath.DOCUMENT_ID.toProto());
+    for (FieldOrder order : createImplicitOrderBy()) {
+      if (!FieldPath.isDocumentId(order.fieldReference.getFieldPath())) {
+        fieldProjections.add(order.fieldReference);
+      }
+    }
+
+    Builder newOptions = options.toBuilder().setFieldProjections(fieldProjections.build());
+    return new Query(rpcContext, newOptions.build());
+  }
+
   /**
    * Creates and returns a new Query that starts after the provided document (exclusive). The
    * starting position is relative to the order of the query. The document must contain all of the
@@ -1300,16 +1402,22 @@ public class Query {
    * @param responseObserver The observer to be notified when results arrive.
    */
   public void stream(@Nonnull final ApiStreamObserver<DocumentSnapshot> responseObserver) {
-    Preconditions.checkState(
-        !LimitType.Last.equals(Query.this.options.getLimitType()),
-        "Query results for queries that include limitToLast() constraints cannot be streamed. "
-            + "Use Query.get() instead.");
+    // The results of limitToLast() queries arrive in reverse order and can only be delivered once
+    // the query has completed.
+    final LimitToLastBuffer lastResults =
+        LimitType.Last.equals(options.getLimitType())
+            ? new LimitToLastBuffer(options.getLimit())
+            : null;
 
     internalStream(
         new QuerySnapshotObserver() {
           @Override
           public void onNext(QueryDocumentSnapshot documentSnapshot) {
-            responseObserver.onNext(documentSnapshot);
+            if (lastResults != null) {
+              lastResults.add(documentSnapshot);
+            } else {
+              responseObserver.onNext(documentSnapshot);
+            }
           }
 
           @Override
@@ -1319,6 +1427,11 @@ public class Query {
 
           @Override
           public void onCompleted() {
+            if (lastResults != null) {
+              for (QueryDocumentSnapshot documentSnapshot : lastResults.asList()) {
+                responseObserver.onNext(documentSnapshot);
+              }
+            }
             responseObserver.onCompleted();
           }
         },
@@ -1326,6 +1439,143 @@ public class Query {
         /* readTime= */ null);
   }
 
+  /**
+   * Executes the query and streams the results to a ResponseObserver of DocumentSnapshots.
+   *
+   * <p>The observer can apply backpressure by calling {@link
+   * StreamController#disableAutoInboundFlowControl()} in {@link
+   * ResponseObserver#onStart(StreamController)} and then requesting documents with {@link
+   * StreamController#request(int)}. Requested documents are fetched from the backend as needed, so
+   * that the number of buffered results is bounded by the number of requested documents.
+   *
+   * <p>The results of limitToLast() queries, of which there are at most {@code limit}, are buffered
+   * until the query has completed and are then delivered as requested.
+   *
+   * @param responseObserver The observer to be notified when results arrive.
+   */
+  public void streamWithFlowControl(@Nonnull ResponseObserver<DocumentSnapshot> responseObserver) {
+    streamWithFlowControlInternal(responseObserver);
+  }
+
+  void streamWithFlowControlInternal(ResponseObserver<? super QueryDocumentSnapshot> observer) {
+    if (LimitType.Last.equals(options.getLimitType())) {
+      new LimitToLastQueryStream(this, observer).start();
+    } else {
+      new FlowControlledQueryStream(this, observer).start();
+    }
+  }
+
+  /**
+   * Returns a query that resumes a stream of this query's results after the provided document,
+   * which is the last document that was received from the backend.
+   */
+  Query resumeAfter(DocumentSnapshot documentSnapshot) {
+    // The backend returns the results of limitToLast() queries in reverse order.
+    return LimitType.Last.equals(options.getLimitType())
+        ? endBefore(documentSnapshot)
+        : startAfter(documentSnapshot);
+  }
+
+  /**
+   * Executes the query and returns a blocking iterator over its results. Unlike {@link #get()},
+   * results are fetched as they are consumed, and at most {@code prefetchSize} results are buffered
+   * at any time.
+   *
+   * <p>The returned iterator should be closed if it is not fully consumed.
+   *
+   * @param prefetchSize The maximum number of results that are fetched ahead of the consumer. Must
+   *     be positive.
+   * @return An iterator over the results of the query.
+   */
+  @Nonnull
+  public QueryDocumentIterator iterate(int prefetchSize) {
+    Preconditions.checkArgument(
+        prefetchSize > 0,
+        "Value for argument 'prefetchSize' must be positive, but was: %s",
+        prefetchSize);
+    return new QueryDocumentIterator(this, prefetchSize);
+  }
+
+  /**
+   * Returns the results of the query in pages of the provided size. Each page is fetched with a
+   * separate query that starts after the last document of the previous page, and the next page is
+   * requested as soon as a page is returned by the iterator, so that it is fetched while the
+   * current page is being processed. The query's offset only skips documents before the first page.
+   *
+   * <p>Each call to {@link Iterable#iterator()} starts a new scan. Since every page is read
+   * separately, the pages do not form a consistent snapshot. The iterator blocks while it waits for
+   * a page and throws an {@link com.google.api.gax.rpc.ApiException} if a page cannot be fetched.
+   *
+   * @param pageSize The maximum number of documents per page. Must be positive.
+   * @return An Iterable over the pages of the query, which are never empty unless the query has no
+   *     results.
+   */
+  @Nonnull
+  public Iterable<QuerySnapshot> paginate(final int pageSize) {
+    Preconditions.checkState(
+        options.getLimit() == null, "Queries with a limit cannot be paginated.");
+    Preconditions.checkArgument(
+        pageSize > 0, "Value for argument 'pageSize' must be positive, but was: %s", pageSize);
+
+    return new Iterable<QuerySnapshot>() {
+      @Override
+      public Iterator<QuerySnapshot> iterator() {
+        return new QueryPageIterator(Query.this, pageSize);
+      }
+    };
+  }
+
+  /**
+   * Returns the references of the documents that match the query, in query order. Only the document
+   * names are read, so this is considerably cheaper than {@link #get()} for documents with many
+   * fields.
+   *
+   * @return An ApiFuture that will be resolved with the references of the matching documents.
+   */
+  @Nonnull
+  public ApiFuture<List<DocumentReference>> keys() {
+    return KeyScan.keys(this, /* desiredPartitionCount= */ 1);
+  }
+
+  /**
+   * Returns the references of the documents that match the query, in query order. The query is
+   * split into partitions that are scanned in parallel, which requires that the query can be
+   * partitioned (see {@link #getPartitions(long)}). Only the document names are read.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions to scan in parallel. The
+   *     number must be strictly positive. The actual number of partitions may be fewer.
+   * @return An ApiFuture that will be resolved with the references of the matching documents.
+   */
+  @Nonnull
+  public ApiFuture<List<DocumentReference>> keys(long desiredPartitionCount) {
+    return KeyScan.keys(this, desiredPartitionCount);
+  }
+
+  /**
+   * Counts the documents that match the query. Only the document names are read, and the results
+   * are not decoded.
+   *
+   * @return An ApiFuture that will be resolved with the number of matching documents.
+   */
+  @Nonnull
+  public ApiFuture<Long> countAsync() {
+    return KeyScan.count(this, /* desiredPartitionCount= */ 1);
+  }
+
+  /**
+   * Counts the documents that match the query. The query is split into partitions that are scanned
+   * in parallel, which requires that the query can be partitioned (see {@link
+   * #getPartitions(long)}). Only the document names are read, and the results are not decoded.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions to scan in parallel. The
+   *     number must be strictly positive. The actual number of partitions may be fewer.
+   * @return An ApiFuture that will be resolved with the number of matching documents.
+   */
+  @Nonnull
+  public ApiFuture<Long> countAsync(long desiredPartitionCount) {
+    return KeyScan.count(this, desiredPartitionCount);
+  }
+
   /**
    * Returns the {@link RunQueryRequest} that this Query instance represents. The request contains
    * the serialized form of all Query constraints.
@@ -1441,8 +1691,7 @@ public class Query {
   }
 
   /** Stream observer that captures DocumentSnapshots as well as the Query read time. */
-  private abstract static class QuerySnapshotObserver
-      implements ApiStreamObserver<QueryDocumentSnapshot> {
+  abstract static class QuerySnapshotObserver implements ApiStreamObserver<QueryDocumentSnapshot> {
 
     private Timestamp readTime;
 
@@ -1456,7 +1705,7 @@ public class Query {
     }
   }
 
-  private void internalStream(
+  void internalStream(
       final QuerySnapshotObserver documentObserver,
       @Nullable final ByteString transactionId,
       @Nullable final Timestamp readTime) {
@@ -1526,7 +1775,7 @@ public class Query {
               QueryDocumentSnapshot cursor = lastReceivedDocument.get();
               if (cursor != null) {
                 Query.this
-                    .startAfter(cursor)
+                    .resumeAfter(cursor)
                     .internalStream(
                         documentObserver, /* transactionId= */ null, cursor.getReadTime());
               }
@@ -1558,7 +1807,23 @@ public class Query {
    */
   @Nonnull
   public ApiFuture<QuerySnapshot> get() {
-    return get(null);
+    return get(/* transactionId= */ null, /* readTime= */ null);
+  }
+
+  /**
+   * Executes the query at the provided read time and returns the results as QuerySnapshot.
+   *
+   * <p>Queries and reads at the same read time observe a consistent snapshot of the database, even
+   * if they are issued separately, which does not require a read-only transaction. The read time
+   * must be within the data retention window of the database.
+   *
+   * @param readTime The time at which to read the results of the query.
+   * @return An ApiFuture that will be resolved with the results of the Query.
+   */
+  @Nonnull
+  public ApiFuture<QuerySnapshot> get(@Nonnull Timestamp readTime) {
+    Preconditions.checkNotNull(readTime, "Read time must not be null");
+    return get(/* transactionId= */ null, readTime);
   }
 
   /**
@@ -1586,15 +1851,32 @@ public class Query {
   }
 
   ApiFuture<QuerySnapshot> get(@Nullable ByteString transactionId) {
+    return get(transactionId, /* readTime= */ null);
+  }
+
+  ApiFuture<QuerySnapshot> get(@Nullable ByteString transactionId, @Nullable Timestamp readTime) {
+    List<Query> subQueries = DisjunctionFanOut.split(this);
+    if (subQueries != null) {
+      return DisjunctionFanOut.get(this, subQueries, transactionId, readTime);
+    }
+
     final SettableApiFuture<QuerySnapshot> result = SettableApiFuture.create();
+    final boolean limitToLast = LimitType.Last.equals(options.getLimitType());
 
     internalStream(
         new QuerySnapshotObserver() {
-          List<QueryDocumentSnapshot> documentSnapshots = new ArrayList<>();
+          List<QueryDocumentSnapshot> documentSnapshots =
+              limitToLast ? null : new ArrayList<QueryDocumentSnapshot>();
+          LimitToLastBuffer lastResults =
+              limitToLast ? new LimitToLastBuffer(options.getLimit()) : null;
 
           @Override
           public void onNext(QueryDocumentSnapshot documentSnapshot) {
-            documentSnapshots.add(documentSnapshot);
+            if (limitToLast) {
+              lastResults.add(documentSnapshot);
+            } else {
+              documentSnapshots.add(documentSnapshot);
+            }
           }
 
           @Override
@@ -1604,67 +1886,353 @@ public class Query {
 
           @Override
           public void onCompleted() {
-            // The results for limitToLast queries need to be flipped since we reversed the
-            // ordering constraints before sending the query to the backend.
+            // The results for limitToLast queries were written to the buffer in reverse, since we
+            // reversed the ordering constraints before sending the query to the backend.
             List<QueryDocumentSnapshot> resultView =
-                LimitType.Last.equals(Query.this.options.getLimitType())
-                    ? reverse(documentSnapshots)
-                    : documentSnapshots;
+                limitToLast ? lastResults.asList() : documentSnapshots;
             QuerySnapshot querySnapshot =
                 QuerySnapshot.withDocuments(Query.this, this.getReadTime(), resultView);
             result.set(querySnapshot);
           }
         },
         transactionId,
-        /* readTime= */ null);
+        readTime);
 
     return result;
   }
 
-  Comparator<QueryDocumentSnapshot> comparator() {
-    return new Comparator<QueryDocumentSnapshot>() {
-      @Override
-      public int compare(QueryDocumentSnapshot doc1, QueryDocumentSnapshot doc2) {
-        // Add implicit sorting by name, using the last specified direction.
-        ImmutableList<FieldOrder> fieldOrders = options.getFieldOrders();
-        Direction lastDirection =
-            fieldOrders.isEmpty()
-                ? Direction.ASCENDING
-                : fieldOrders.get(fieldOrders.size() - 1).direction;
-
-        List<FieldOrder> orderBys = new ArrayList<>(fieldOrders);
-        orderBys.add(new FieldOrder(FieldPath.DOCUMENT_ID.toProto(), lastDirection));
-
-        for (FieldOrder orderBy : orderBys) {
-          int comp;
-
-          String path = orderBy.fieldReference.getFieldPath();
-          if (FieldPath.isDocumentId(path)) {
-            comp =
-                doc1.getReference()
-                    .getResourcePath()
-                    .compareTo(doc2.getReference().getResourcePath());
-          } else {
-            FieldPath fieldPath = FieldPath.fromDotSeparatedString(path);
-            Preconditions.checkState(
-                doc1.contains(fieldPath) && doc2.contains(fieldPath),
-                "Can only compare fields that exist in the DocumentSnapshot."
-                    + " Please include the fields you are ordering on in your select() call.");
-            Value v1 = doc1.extractField(fieldPath);
-            Value v2 = doc2.extractField(fieldPath);
-
-            comp = com.google.cloud.firestore.Order.INSTANCE.compare(v1, v2);
+  /**
+   * Partitions the query by returning partitions that can be used to run the query in parallel. The
+   * partitions are ordered by the document names they contain, and together they return the same
+   * results as the query.
+   *
+   * <p>Only queries without limits, offsets, cursors and explicit orderings (other than by document
+   * ID) can be partitioned, and all filters must match specific values ({@code ==}, {@code in},
+   * {@code array-contains}, {@code array-contains-any}, or a comparison with null or NaN). The
+   * partition points are chosen from all documents in the queried collection, so partitions of a
+   * filtered query may contain different numbers of results.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions. The number must be
+   *     strictly positive. The actual number of partitions returned may be fewer.
+   * @return An ApiFuture that will be resolved with the partitions of the query.
+   */
+  @Nonnull
+  public ApiFuture<List<QueryPartition>> getPartitions(long desiredPartitionCount) {
+    Preconditions.checkState(
+        options.getLimit() == null
+            && options.getOffset() == null
+            && options.getStartCursor() == null
+            && options.getEndCursor() == null,
+        "Cannot partition a query with a limit, an offset or a cursor.");
+    for (FieldOrder fieldOrder : options.getFieldOrders()) {
+      Preconditions.checkState(
+          FieldPath.isDocumentId(fieldOrder.fieldReference.getFieldPath())
+              && fieldOrder.direction.equals(Direction.ASCENDING),
+          "Cannot partition a query that is not ordered by ascending document ID.");
+    }
+    for (FieldFilter fieldFilter : options.getFieldFilters()) {
+      Preconditions.checkState(
+          fieldFilter.isEqualityFilter(),
+          "Cannot partition a query with a filter that does not match specific values.");
+    }
+
+    final Query partitionQuery =
+        options.getFieldOrders().isEmpty() ? orderBy(FieldPath.DOCUMENT_ID) : this;
+
+    // The backend can only partition unfiltered collection group queries. The partition points of
+    // a collection group query that is restricted to the query's parent are also valid split points
+    // for this query.
+    CollectionGroup collectionGroup =
+        new CollectionGroup(rpcContext, options.getParentPath(), options.getCollectionId());
+
+    return ApiFutures.transform(
+        collectionGroup.getPartitions(desiredPartitionCount),
+        new ApiFunction<List<QueryPartition>, List<QueryPartition>>() {
+          @Override
+          public List<QueryPartition> apply(List<QueryPartition> partitions) {
+            ImmutableList.Builder<QueryPartition> result = ImmutableList.builder();
+            Object[] lastCursor = null;
+            for (QueryPartition partition : partitions) {
+              Object[] cursor = partition.getEndBefore();
+              if (cursor != null) {
+                cursor = toPartitionCursor(cursor);
+                if (cursor == null || (lastCursor != null && Arrays.equals(lastCursor, cursor))) {
+                  continue;
+                }
+              }
+              result.add(new QueryPartition(partitionQuery, lastCursor, cursor));
+              lastCursor = cursor;
+            }
+            return result.build();
           }
+        },
+        MoreExecutors.directExecutor());
+  }
 
-          if (comp != 0) {
-            int direction = orderBy.direction.equals(Direction.ASCENDING) ? 1 : -1;
-            return direction * comp;
+  /**
+   * Converts a partition point of a collection group query into a cursor for this query, or returns
+   * null if the point is not a valid split point for this query.
+   *
+   * <p>A collection query can only use cursors that point to documents in the collection. The
+   * collection group also contains collections with the same ID under other parents, whose
+   * partition points lie outside of the collection and are dropped. Partition points in nested
+   * subcollections are replaced by their ancestor in the collection. The ancestor sorts directly
+   * before all of its descendants, which keeps the partitions disjoint.
+   */
+  @Nullable
+  private Object[] toPartitionCursor(Object[] cursor) {
+    if (options.getAllDescendants()
+        || cursor.length != 1
+        || !(cursor[0] instanceof DocumentReference)) {
+      return cursor;
+    }
+
+    ResourcePath collectionPath = options.getParentPath().append(options.getCollectionId());
+    ResourcePath path = ((DocumentReference) cursor[0]).getResourcePath();
+    if (!collectionPath.isPrefixOf(path)) {
+      return null;
+    }
+    int documentDepth = collectionPath.size() + 1;
+    if (path.size() == documentDepth) {
+      return cursor;
+    }
+    while (path.size() > documentDepth) {
+      path = path.getParent();
+    }
+    return new Object[] {new DocumentReference(rpcContext, path)};
+  }
+
+  /**
+   * Executes the query by splitting it into partitions that are run in parallel, and returns the
+   * combined results as a QuerySnapshot. The documents are returned in the order of their document
+   * names, which is the same order as the results of {@link #get()}.
+   *
+   * <p>Each partition is read at its own read time. The returned snapshot uses the latest of these
+   * read times, and documents that change while the query is running may be returned in either
+   * their old or new state. Use {@link #getPartitioned(long, Timestamp)} to read all partitions at
+   * the same time.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions to run in parallel. The
+   *     number must be strictly positive. The actual number of partitions may be fewer.
+   * @return An ApiFuture that will be resolved with the results of the Query.
+   */
+  @Nonnull
+  public ApiFuture<QuerySnapshot> getPartitioned(long desiredPartitionCount) {
+    return getPartitioned(desiredPartitionCount, /* readTime= */ null);
+  }
+
+  /**
+   * Executes the query at the provided read time by splitting it into partitions that are run in
+   * parallel, and returns the combined results as a QuerySnapshot. All partitions observe the same
+   * consistent snapshot of the database.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions to run in parallel. The
+   *     number must be strictly positive. The actual number of partitions may be fewer.
+   * @param readTime The time at which to read the results of the query, or null to read each
+   *     partition at its own read time. The read time must be within the data retention window of
+   *     the database.
+   * @return An ApiFuture that will be resolved with the results of the Query.
+   */
+  @Nonnull
+  public ApiFuture<QuerySnapshot> getPartitioned(
+      long desiredPartitionCount, @Nullable Timestamp readTime) {
+    final SettableApiFuture<QuerySnapshot> result = SettableApiFuture.create();
+
+    streamPartitioned(
+        desiredPartitionCount,
+        /* ordered= */ true,
+        readTime,
+        new QuerySnapshotObserver() {
+          final List<QueryDocumentSnapshot> documentSnapshots = new ArrayList<>();
+
+          @Override
+          public void onNext(QueryDocumentSnapshot documentSnapshot) {
+            documentSnapshots.add(documentSnapshot);
           }
+
+          @Override
+          public void onError(Throwable throwable) {
+            result.setException(throwable);
+          }
+
+          @Override
+          public void onCompleted() {
+            result.set(QuerySnapshot.withDocuments(Query.this, getReadTime(), documentSnapshots));
+          }
+        });
+
+    return result;
+  }
+
+  /**
+   * Executes the query by splitting it into partitions that are run in parallel, and streams the
+   * combined results to the provided observer. The observer is never invoked concurrently.
+   *
+   * <p>If {@code ordered} is true, the results are streamed in the order of their document names.
+   * This requires the results of a partition to be buffered until all previous partitions have
+   * completed. Otherwise, results are streamed as soon as they arrive.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions to run in parallel. The
+   *     number must be strictly positive. The actual number of partitions may be fewer.
+   * @param ordered Whether the results should be streamed in the order of their document names.
+   * @param responseObserver The observer to be notified when results arrive.
+   */
+  public void streamPartitioned(
+      long desiredPartitionCount,
+      boolean ordered,
+      @Nonnull final ApiStreamObserver<DocumentSnapshot> responseObserver) {
+    streamPartitioned(desiredPartitionCount, ordered, /* readTime= */ null, responseObserver);
+  }
+
+  /**
+   * Executes the query at the provided read time by splitting it into partitions that are run in
+   * parallel, and streams the combined results to the provided observer. All partitions observe the
+   * same consistent snapshot of the database. The observer is never invoked concurrently.
+   *
+   * @param desiredPartitionCount The desired maximum number of partitions to run in parallel. The
+   *     number must be strictly positive. The actual number of partitions may be fewer.
+   * @param ordered Whether the results should be streamed in the order of their document names.
+   * @param readTime The time at which to read the results of the query, or null to read each
+   *     partition at its own read time. The read time must be within the data retention window of
+   *     the database.
+   * @param responseObserver The observer to be notified when results arrive.
+   */
+  public void streamPartitioned(
+      long desiredPartitionCount,
+      boolean ordered,
+      @Nullable Timestamp readTime,
+      @Nonnull final ApiStreamObserver<DocumentSnapshot> responseObserver) {
+    streamPartitioned(
+        desiredPartitionCount,
+        ordered,
+        readTime,
+        new QuerySnapshotObserver() {
+          @Override
+          public void onNext(QueryDocumentSnapshot documentSnapshot) {
+            responseObserver.onNext(documentSnapshot);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            responseObserver.onError(throwable);
+          }
+
+          @Override
+          public void onCompleted() {
+            responseObserver.onCompleted();
+          }
+        });
+  }
+
+  private void streamPartitioned(
+      long desiredPartitionCount,
+      final boolean ordered,
+      @Nullable final Timestamp readTime,
+      final QuerySnapshotObserver observer) {
+    ApiFuture<List<QueryPartition>> partitions;
+    try {
+      partitions = getPartitions(desiredPartitionCount);
+    } catch (RuntimeException e) {
+      observer.onError(e);
+      return;
+    }
+
+    ApiFutures.addCallback(
+        partitions,
+        new ApiFutureCallback<List<QueryPartition>>() {
+          @Override
+          public void onSuccess(List<QueryPartition> partitions) {
+            List<Query> partitionQueries = new ArrayList<>(partitions.size());
+            try {
+              for (QueryPartition partition : partitions) {
+                partitionQueries.add(partition.createQuery());
+              }
+            } catch (RuntimeException e) {
+              // Exceptions thrown by this callback are not propagated by ApiFutures.
+              observer.onError(e);
+              return;
+            }
+            new PartitionedQueryStream(partitionQueries, ordered, readTime, observer).start();
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            observer.onError(throwable);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  Comparator<QueryDocumentSnapshot> comparator() {
+    return new QueryComparator(options.getFieldOrders());
+  }
+
+  /**
+   * Returns a comparator for the order in which the backend returns this query's results, which
+   * includes the implicit ordering by the first inequality filter and by document name.
+   */
+  Comparator<QueryDocumentSnapshot> implicitOrderComparator() {
+    return new QueryComparator(createImplicitOrderBy());
+  }
+
+  /**
+   * Compares documents by the orderings of a query. The field paths and directions are resolved
+   * once when the comparator is created, since Watch compares documents many times per snapshot.
+   */
+  private static final class QueryComparator implements Comparator<QueryDocumentSnapshot> {
+    /** The paths of the ordered fields, or null for the implicit ordering by document name. */
+    private final FieldPath[] fieldPaths;
+
+    /** 1 for ascending and -1 for descending orderings. */
+    private final int[] directions;
+
+    QueryComparator(ImmutableList<FieldOrder> fieldOrders) {
+      // Add implicit sorting by name, using the last specified direction.
+      int size = fieldOrders.size() + 1;
+      fieldPaths = new FieldPath[size];
+      directions = new int[size];
+
+      Direction lastDirection = Direction.ASCENDING;
+      for (int i = 0; i < fieldOrders.size(); ++i) {
+        FieldOrder orderBy = fieldOrders.get(i);
+        String path = orderBy.fieldReference.getFieldPath();
+        fieldPaths[i] =
+            FieldPath.isDocumentId(path) ? null : FieldPath.fromDotSeparatedString(path);
+        directions[i] = orderBy.direction.equals(Direction.ASCENDING) ? 1 : -1;
+        lastDirection = orderBy.direction;
+      }
+      directions[size - 1] = lastDirection.equals(Direction.ASCENDING) ? 1 : -1;
+    }
+
+    @Override
+    public int compare(QueryDocumentSnapshot doc1, QueryDocumentSnapshot doc2) {
+      for (int i = 0; i < fieldPaths.length; ++i) {
+        int comp;
+
+        FieldPath fieldPath = fieldPaths[i];
+        if (fieldPath == null) {
+          comp =
+              doc1.getReference()
+                  .getResourcePath()
+                  .compareTo(doc2.getReference().getResourcePath());
+        } else {
+          Value v1 = doc1.extractField(fieldPath);
+          Value v2 = doc2.extractField(fieldPath);
+          Preconditions.checkState(
+              v1 != null && v2 != null,
+              "Can only compare fields that exist in the DocumentSnapshot."
+                  + " Please include the fields you are ordering on in your select() call.");
+
+          comp = com.google.cloud.firestore.Order.INSTANCE.compare(v1, v2);
         }
 
-        return 0;
+        if (comp != 0) {
+          return directions[i] * comp;
+        }
       }
-    };
+
+      return 0;
+    }
   }
 
   /**
@@ -1679,7 +2247,7 @@ public class Query {
   }
 
   /** Verifies whether the given exception is retryable based on the RunQuery configuration. */
-  private boolean isRetryableError(Throwable throwable) {
+  boolean isRetryableError(Throwable throwable) {
     if (!(throwable instanceof FirestoreException)) {
       return false;
     }
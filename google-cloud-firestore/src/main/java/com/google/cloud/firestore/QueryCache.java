@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.ApiClock;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.NanoClock;
+import com.google.api.core.SettableApiFuture;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.firestore.v1.Value;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A client-side cache for the results of queries, which can be used to avoid running identical
+ * queries repeatedly.
+ *
+ * <p>Results are returned from the cache for as long as they are no older than the configured
+ * staleness, measured from the time at which the query was sent. Concurrent requests for a query
+ * that is not cached share a single query. The cache evicts the least recently used results once
+ * their estimated size exceeds the configured limit.
+ *
+ * <p>Cached results are not updated when documents change. Use {@link
+ * Query#addSnapshotListener(EventListener)} to observe changes to the results of a query.
+ */
+public final class QueryCache {
+  private final long maxStalenessNanos;
+  private final long maxSizeBytes;
+  private final ApiClock clock;
+
+  private final Object lock = new Object();
+
+  /** The cached results, in order of their last access. */
+  @GuardedBy("lock")
+  private final LinkedHashMap<Query, Entry> entries =
+      new LinkedHashMap<>(
+          /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+
+  /** The results of queries that are currently running. */
+  @GuardedBy("lock")
+  private final Map<Query, ApiFuture<QuerySnapshot>> pendingQueries = new HashMap<>();
+
+  /** The estimated size of all cached results. */
+  @GuardedBy("lock")
+  private long sizeBytes = 0;
+
+  private QueryCache(Builder builder) {
+    this.maxStalenessNanos = builder.maxStalenessNanos;
+    this.maxSizeBytes = builder.maxSizeBytes;
+    this.clock = builder.clock;
+  }
+
+  /** Returns a builder for a QueryCache. */
+  @Nonnull
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the results of the provided query. If the query's results are cached and are not older
+   * than the maximum staleness, the cached results are returned. Otherwise, the query is run,
+   * unless an identical query is already running.
+   *
+   * @param query The query to run.
+   * @return An ApiFuture that will be resolved with the results of the query.
+   */
+  @Nonnull
+  public ApiFuture<QuerySnapshot> get(@Nonnull final Query query) {
+    final long requestTime = clock.nanoTime();
+    final SettableApiFuture<QuerySnapshot> result;
+
+    synchronized (lock) {
+      Entry entry = entries.get(query);
+      if (entry != null) {
+        if (requestTime - entry.requestTime <= maxStalenessNanos) {
+          return ApiFutures.immediateFuture(entry.querySnapshot);
+        }
+        removeLocked(query);
+      }
+
+      ApiFuture<QuerySnapshot> pendingQuery = pendingQueries.get(query);
+      if (pendingQuery != null) {
+        return pendingQuery;
+      }
+
+      result = SettableApiFuture.create();
+      pendingQueries.put(query, result);
+    }
+
+    ApiFuture<QuerySnapshot> querySnapshot;
+    try {
+      querySnapshot = query.get();
+    } catch (RuntimeException e) {
+      // Invalid queries fail before they are sent. Later requests must not wait for this result.
+      synchronized (lock) {
+        if (pendingQueries.get(query) == result) {
+          pendingQueries.remove(query);
+        }
+      }
+      result.setException(e);
+      return result;
+    }
+
+    ApiFutures.addCallback(
+        querySnapshot,
+        new ApiFutureCallback<QuerySnapshot>() {
+          @Override
+          public void onSuccess(QuerySnapshot querySnapshot) {
+            Entry entry = new Entry(querySnapshot, requestTime);
+            synchronized (lock) {
+              // The results are not cached if the query was invalidated while it was running.
+              if (pendingQueries.get(query) == result) {
+                pendingQueries.remove(query);
+                putLocked(query, entry);
+              }
+            }
+            result.set(querySnapshot);
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            synchronized (lock) {
+              if (pendingQueries.get(query) == result) {
+                pendingQueries.remove(query);
+              }
+            }
+            result.setException(throwable);
+          }
+        },
+        MoreExecutors.directExecutor());
+
+    return result;
+  }
+
+  /**
+   * Removes the cached results of the provided query. If the query is running, its results are not
+   * cached, and subsequent requests run the query again.
+   */
+  public void invalidate(@Nonnull Query query) {
+    synchronized (lock) {
+      pendingQueries.remove(query);
+      removeLocked(query);
+    }
+  }
+
+  /** Removes all cached results, including the results of queries that are running. */
+  public void invalidateAll() {
+    synchronized (lock) {
+      pendingQueries.clear();
+      entries.clear();
+      sizeBytes = 0;
+    }
+  }
+
+  /** Returns the estimated size of all cached results in bytes. */
+  long getSizeBytes() {
+    synchronized (lock) {
+      return sizeBytes;
+    }
+  }
+
+  @GuardedBy("lock")
+  private void putLocked(Query query, Entry entry) {
+    removeLocked(query);
+    if (entry.sizeBytes > maxSizeBytes) {
+      return;
+    }
+
+    entries.put(query, entry);
+    sizeBytes += entry.sizeBytes;
+
+    Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+    while (sizeBytes > maxSizeBytes) {
+      sizeBytes -= leastRecentlyUsed.next().sizeBytes;
+      leastRecentlyUsed.remove();
+    }
+  }
+
+  @GuardedBy("lock")
+  private void removeLocked(Query query) {
+    Entry entry = entries.remove(query);
+    if (entry != null) {
+      sizeBytes -= entry.sizeBytes;
+    }
+  }
+
+  private static final class Entry {
+    final QuerySnapshot querySnapshot;
+    final long requestTime;
+    final long sizeBytes;
+
+    Entry(QuerySnapshot querySnapshot, long requestTime) {
+      this.querySnapshot = querySnapshot;
+      this.requestTime = requestTime;
+      this.sizeBytes = estimateSize(querySnapshot);
+    }
+
+    /** Estimates the size of the results by the encoded size of the documents. */
+    private static long estimateSize(QuerySnapshot querySnapshot) {
+      long size = 0;
+      for (QueryDocumentSnapshot documentSnapshot : querySnapshot) {
+        size += documentSnapshot.getReference().getName().length();
+        for (Map.Entry<String, Value> field : documentSnapshot.getProtoFields().entrySet()) {
+          size += field.getKey().length() + field.getValue().getSerializedSize();
+        }
+      }
+      return size;
+    }
+  }
+
+  /** A builder for QueryCache instances. */
+  public static final class Builder {
+    private long maxStalenessNanos = TimeUnit.SECONDS.toNanos(1);
+    private long maxSizeBytes = 16 * 1024 * 1024;
+    private ApiClock clock = NanoClock.getDefaultClock();
+
+    private Builder() {}
+
+    /**
+     * Sets how long the results of a query are returned from the cache, measured from the time at
+     * which the query was sent. Defaults to one second.
+     *
+     * @param maxStaleness The maximum staleness of cached results. Must not be negative.
+     * @param unit The unit of {@code maxStaleness}.
+     * @return The builder.
+     */
+    @Nonnull
+    public Builder setMaxStaleness(long maxStaleness, @Nonnull TimeUnit unit) {
+      Preconditions.checkArgument(
+          maxStaleness >= 0,
+          "Value for argument 'maxStaleness' must not be negative, but was: %s",
+          maxStaleness);
+      this.maxStalenessNanos = unit.toNanos(maxStaleness);
+      return this;
+    }
+
+    /**
+     * Sets the maximum estimated size of all cached results. Results that are larger than this
+     * limit are not cached. Defaults to 16 MiB.
+     *
+     * @param maxSizeBytes The maximum size in bytes. Must not be negative.
+     * @return The builder.
+     */
+    @Nonnull
+    public Builder setMaxSizeBytes(long maxSizeBytes) {
+      Preconditions.checkArgument(
+          maxSizeBytes >= 0,
+          "Value for argument 'maxSizeBytes' must not be negative, but was: %s",
+          maxSizeBytes);
+      this.maxSizeBytes = maxSizeBytes;
+      return this;
+    }
+
+    Builder setClock(ApiClock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /** Creates the QueryCache. */
+    @Nonnull
+    public QueryCache build() {
+      return new QueryCache(this);
+    }
+  }
+}
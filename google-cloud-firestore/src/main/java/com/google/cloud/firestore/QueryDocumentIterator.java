@@ -0,0 +1,202 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import io.grpc.Status;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A blocking iterator over the results of a query that fetches results as they are consumed.
+ *
+ * <p>At most {@code prefetchSize} documents are requested from the backend ahead of the consumer,
+ * so that arbitrarily large result sets can be iterated in constant memory. {@link #hasNext()}
+ * blocks until the next document has arrived. The results of limitToLast() queries can only be
+ * returned once the query has completed and are therefore buffered until then.
+ *
+ * <p>The iterator should be closed if it is not fully consumed, which cancels the underlying
+ * stream. Errors of the underlying stream are thrown from {@link #hasNext()} and {@link #next()}.
+ * Instances of this class are not thread-safe.
+ */
+public final class QueryDocumentIterator implements Iterator<QueryDocumentSnapshot>, AutoCloseable {
+  private final int prefetchSize;
+
+  /** The number of consumed documents after which more documents are requested. */
+  private final int replenishThreshold;
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private final ArrayDeque<QueryDocumentSnapshot> buffer = new ArrayDeque<>();
+
+  @GuardedBy("lock")
+  @Nullable
+  private StreamController controller;
+
+  @GuardedBy("lock")
+  private boolean completed = false;
+
+  @GuardedBy("lock")
+  private boolean closed = false;
+
+  @GuardedBy("lock")
+  @Nullable
+  private Throwable error;
+
+  /** The number of documents consumed since more documents were last requested. */
+  private int consumedSinceRequest = 0;
+
+  QueryDocumentIterator(Query query, int prefetchSize) {
+    this.prefetchSize = prefetchSize;
+    this.replenishThreshold = Math.max(1, prefetchSize / 2);
+
+    query.streamWithFlowControlInternal(
+        new ResponseObserver<QueryDocumentSnapshot>() {
+          @Override
+          public void onStart(StreamController streamController) {
+            streamController.disableAutoInboundFlowControl();
+            streamController.request(QueryDocumentIterator.this.prefetchSize);
+            synchronized (lock) {
+              controller = streamController;
+            }
+          }
+
+          @Override
+          public void onResponse(QueryDocumentSnapshot documentSnapshot) {
+            synchronized (lock) {
+              if (!closed) {
+                buffer.add(documentSnapshot);
+                lock.notifyAll();
+              }
+            }
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            synchronized (lock) {
+              error = throwable;
+              completed = true;
+              lock.notifyAll();
+            }
+          }
+
+          @Override
+          public void onComplete() {
+            synchronized (lock) {
+              completed = true;
+              lock.notifyAll();
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns whether the query has more results, blocking until the next result has arrived or the
+   * query has completed.
+   *
+   * @throws FirestoreException if the query failed or the thread was interrupted while waiting.
+   */
+  @Override
+  public boolean hasNext() {
+    synchronized (lock) {
+      while (!closed && buffer.isEmpty() && !completed) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new FirestoreException(
+              "Interrupted while waiting for query results", Status.CANCELLED);
+        }
+      }
+
+      if (closed) {
+        return false;
+      }
+      if (!buffer.isEmpty()) {
+        return true;
+      }
+      if (error != null) {
+        throw toFirestoreException(error);
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public QueryDocumentSnapshot next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    QueryDocumentSnapshot documentSnapshot;
+    StreamController streamController;
+    synchronized (lock) {
+      documentSnapshot = buffer.poll();
+      streamController = controller;
+    }
+
+    // Request documents in batches rather than one at a time once half of the prefetched
+    // documents have been consumed.
+    if (++consumedSinceRequest >= replenishThreshold) {
+      streamController.request(consumedSinceRequest);
+      consumedSinceRequest = 0;
+    }
+
+    return documentSnapshot;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove");
+  }
+
+  /** Cancels the query if it has not completed yet and discards all buffered results. */
+  @Override
+  public void close() {
+    StreamController streamController;
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      buffer.clear();
+      streamController = completed ? null : controller;
+      lock.notifyAll();
+    }
+
+    if (streamController != null) {
+      streamController.cancel();
+    }
+  }
+
+  private static FirestoreException toFirestoreException(Throwable throwable) {
+    if (throwable instanceof FirestoreException) {
+      return (FirestoreException) throwable;
+    } else if (throwable instanceof ApiException) {
+      return FirestoreException.forApiException((ApiException) throwable);
+    } else {
+      return FirestoreException.forServerRejection(
+          Status.UNKNOWN, throwable, "Query failed: %s", throwable.getMessage());
+    }
+  }
+}
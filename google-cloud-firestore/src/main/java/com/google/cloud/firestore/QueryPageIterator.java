@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiExceptions;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.annotation.Nullable;
+
+/**
+ * Iterates over the results of a query in pages of a fixed size.
+ *
+ * <p>Each page is fetched with a limit query that starts after the last document of the previous
+ * page, so the query's offset only applies to the first page. The next page is requested as soon as
+ * the current page is returned, so that it is fetched while the caller processes the current page.
+ */
+class QueryPageIterator implements Iterator<QuerySnapshot> {
+  private final Query query;
+  private final int pageSize;
+
+  /** The page that is returned next, or null if all pages have been returned. */
+  @Nullable private ApiFuture<QuerySnapshot> nextPage;
+
+  /** The result of {@link #nextPage} once it has been awaited. */
+  @Nullable private QuerySnapshot nextPageResult;
+
+  private boolean isFirstPage = true;
+
+  QueryPageIterator(Query query, int pageSize) {
+    this.query = query;
+    this.pageSize = pageSize;
+    this.nextPage = query.limit(pageSize).get();
+  }
+
+  /**
+   * Returns whether another page is available, waiting for the next page if it has not been fetched
+   * yet.
+   *
+   * @throws com.google.api.gax.rpc.ApiException if the next page cannot be fetched.
+   */
+  @Override
+  public boolean hasNext() {
+    if (nextPageResult == null && nextPage != null) {
+      nextPageResult = ApiExceptions.callAndTranslateApiException(nextPage);
+      nextPage = null;
+    }
+
+    // An empty page is only returned if the query has no results at all.
+    return nextPageResult != null && (isFirstPage || !nextPageResult.isEmpty());
+  }
+
+  @Override
+  public QuerySnapshot next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    QuerySnapshot page = nextPageResult;
+    nextPageResult = null;
+    isFirstPage = false;
+
+    // A page with fewer documents than the page size is the last page.
+    List<QueryDocumentSnapshot> documents = page.getDocuments();
+    if (documents.size() == pageSize) {
+      DocumentSnapshot lastDocument = documents.get(documents.size() - 1);
+      // The cursor already skips the documents of the previous pages, including the offset.
+      nextPage = query.offset(0).limit(pageSize).startAfter(lastDocument).get();
+    }
+
+    return page;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove");
+  }
+}
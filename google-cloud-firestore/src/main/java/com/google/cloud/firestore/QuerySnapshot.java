@@ -209,9 +209,7 @@ public abstract class QuerySnapshot implements Iterable<QueryDocumentSnapshot> {
     List<T> results = new ArrayList<>();
 
     for (DocumentSnapshot documentSnapshot : getDocuments()) {
-      results.add(
-          CustomClassMapper.convertToCustomClass(
-              documentSnapshot.getData(), clazz, documentSnapshot.getReference()));
+      results.add(documentSnapshot.toObject(clazz));
     }
 
     return results;
@@ -18,6 +18,7 @@ package com.google.cloud.firestore;
 
 import com.google.common.base.Preconditions;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A helper that uses the Token Bucket algorithm to rate limit the number of operations that can be
@@ -30,18 +31,60 @@ import java.util.Date;
  * <p>RateLimiter can also implement a gradually increasing rate limit. This is used to enforce the
  * 500/50/5 rule.
  *
+ * <p>In addition, RateLimiter supports additive-increase/multiplicative-decrease (AIMD) congestion
+ * control. Callers report contention via {@link #reduceCapacity}, which cuts the capacity in half,
+ * and successful requests via {@link #increaseCapacity}, which raises the capacity linearly until
+ * it reaches the ramp-up schedule again. The capacity is reduced at most once per congestion
+ * window: contention reported by requests that were sent before the last reduction is ignored,
+ * since those requests were made at the previous rate.
+ *
+ * <p>RateLimiter is thread-safe and does not use locks. Its mutable state is kept in an immutable
+ * snapshot that is swapped with compare-and-set, which allows a single instance to be shared by
+ * many BulkWriter instances and threads.
+ *
  * @see <a href=https://cloud.google.com/datastore/docs/best-practices#ramping_up_traffic>Ramping up
  *     traffic</a>
  */
 class RateLimiter {
+  /** The factor by which the capacity is reduced when contention is reported. */
+  static final double CAPACITY_DECREASE_FACTOR = 0.5;
+
+  /** The number of operations per second by which the capacity grows after a successful request. */
+  static final int CAPACITY_INCREMENT = 1;
+
+  /** An immutable snapshot of the limiter's mutable state. */
+  private static final class State {
+    final int availableTokens;
+    final long lastRefillTimeMillis;
+
+    /**
+     * The maximum number of operations per second as determined by congestion control. Set to
+     * infinity while the limiter follows its ramp-up schedule.
+     */
+    final double congestionCapacity;
+
+    /** The time at which the capacity was last reduced. */
+    final long lastReductionTimeMillis;
+
+    State(
+        int availableTokens,
+        long lastRefillTimeMillis,
+        double congestionCapacity,
+        long lastReductionTimeMillis) {
+      this.availableTokens = availableTokens;
+      this.lastRefillTimeMillis = lastRefillTimeMillis;
+      this.congestionCapacity = congestionCapacity;
+      this.lastReductionTimeMillis = lastReductionTimeMillis;
+    }
+  }
+
   private final int initialCapacity;
   private final double multiplier;
   private final int multiplierMillis;
   private final long startTimeMillis;
   private final int maximumRate;
 
-  private int availableTokens;
-  private long lastRefillTimeMillis;
+  private final AtomicReference<State> state;
 
   RateLimiter(int initialCapacity, double multiplier, int multiplierMillis, int maximumRate) {
     this(initialCapacity, multiplier, multiplierMillis, maximumRate, new Date().getTime());
@@ -68,8 +111,9 @@ class RateLimiter {
     this.maximumRate = maximumRate;
     this.startTimeMillis = startTimeMillis;
 
-    this.availableTokens = initialCapacity;
-    this.lastRefillTimeMillis = startTimeMillis;
+    this.state =
+        new AtomicReference<>(
+            new State(initialCapacity, startTimeMillis, Double.POSITIVE_INFINITY, Long.MIN_VALUE));
   }
 
   public int getInitialCapacity() {
@@ -81,7 +125,7 @@ class RateLimiter {
   }
 
   public boolean tryMakeRequest(int numOperations) {
-    return tryMakeRequest(numOperations, new Date().getTime());
+    return tryMakeRequest(numOperations, new Date().getTime(), /* allowStaleTime= */ true);
   }
 
   /**
@@ -92,12 +136,39 @@ class RateLimiter {
    *     testing the limiter.
    */
   public boolean tryMakeRequest(int numOperations, long requestTimeMillis) {
-    refillTokens(requestTimeMillis);
-    if (numOperations <= availableTokens) {
-      availableTokens -= numOperations;
-      return true;
+    return tryMakeRequest(numOperations, requestTimeMillis, /* allowStaleTime= */ false);
+  }
+
+  /**
+   * @param allowStaleTime Whether a request time before the last token refill time is treated as
+   *     the last refill time. This happens when another thread refills the tokens between the time
+   *     the clock is read and the time the request is made.
+   */
+  private boolean tryMakeRequest(
+      int numOperations, long requestTimeMillis, boolean allowStaleTime) {
+    while (true) {
+      State current = state.get();
+      long time =
+          allowStaleTime
+              ? Math.max(requestTimeMillis, current.lastRefillTimeMillis)
+              : requestTimeMillis;
+      State refilled = refillTokens(current, time);
+      if (numOperations > refilled.availableTokens) {
+        // Persist the refill so that the last refill time only moves forward. If another thread
+        // updated the state in the meantime, its refill is at least as recent.
+        state.compareAndSet(current, refilled);
+        return false;
+      }
+      State updated =
+          new State(
+              refilled.availableTokens - numOperations,
+              refilled.lastRefillTimeMillis,
+              refilled.congestionCapacity,
+              refilled.lastReductionTimeMillis);
+      if (state.compareAndSet(current, updated)) {
+        return true;
+      }
     }
-    return false;
   }
 
   public long getNextRequestDelayMs(int numOperations) {
@@ -113,40 +184,54 @@ class RateLimiter {
    *     testing the limiter.
    */
   public long getNextRequestDelayMs(int numOperations, long requestTimeMillis) {
-    if (numOperations < availableTokens) {
+    State current = state.get();
+    if (numOperations < current.availableTokens) {
       return 0;
     }
 
-    int capacity = calculateCapacity(requestTimeMillis);
+    int capacity = calculateCapacity(current, requestTimeMillis);
     if (capacity < numOperations) {
       return -1;
     }
 
-    int requiredTokens = numOperations - availableTokens;
+    int requiredTokens = numOperations - current.availableTokens;
     return (long) Math.ceil((double) (requiredTokens * 1000) / capacity);
   }
 
   /**
-   * Refills the number of available tokens based on how much time has elapsed since the last time
-   * the tokens were refilled.
+   * Returns the state after refilling the number of available tokens based on how much time has
+   * elapsed since the last time the tokens were refilled.
    *
    * @param requestTimeMillis The time used to calculate the number of available tokens. Used for
    *     testing the limiter.
    */
-  private void refillTokens(long requestTimeMillis) {
+  private State refillTokens(State current, long requestTimeMillis) {
     Preconditions.checkArgument(
-        requestTimeMillis >= lastRefillTimeMillis,
+        requestTimeMillis >= current.lastRefillTimeMillis,
         "Request time should not be before the last token refill time");
-    long elapsedTime = requestTimeMillis - lastRefillTimeMillis;
-    int capacity = calculateCapacity(requestTimeMillis);
+    long elapsedTime = requestTimeMillis - current.lastRefillTimeMillis;
+    int capacity = calculateCapacity(current, requestTimeMillis);
     int tokensToAdd = (int) ((elapsedTime * capacity) / 1000);
     if (tokensToAdd > 0) {
-      availableTokens = Math.min(capacity, availableTokens + tokensToAdd);
-      lastRefillTimeMillis = requestTimeMillis;
+      return new State(
+          Math.min(capacity, current.availableTokens + tokensToAdd),
+          requestTimeMillis,
+          current.congestionCapacity,
+          current.lastReductionTimeMillis);
     }
+    return current;
   }
 
   public int calculateCapacity(long requestTimeMillis) {
+    return calculateCapacity(state.get(), requestTimeMillis);
+  }
+
+  private int calculateCapacity(State current, long requestTimeMillis) {
+    return (int) Math.min(calculateRampCapacity(requestTimeMillis), current.congestionCapacity);
+  }
+
+  /** Returns the capacity according to the ramp-up schedule, ignoring congestion control. */
+  private int calculateRampCapacity(long requestTimeMillis) {
     long millisElapsed = requestTimeMillis - startTimeMillis;
     int operationsPerSecond =
         Math.min(
@@ -155,4 +240,72 @@ class RateLimiter {
             maximumRate);
     return operationsPerSecond;
   }
+
+  public void reduceCapacity(int minimumCapacity, long requestSentTimeMillis) {
+    reduceCapacity(minimumCapacity, requestSentTimeMillis, new Date().getTime());
+  }
+
+  /**
+   * Multiplicatively reduces the capacity in response to contention or overload. Does nothing if
+   * the contended request was sent at or before the last reduction.
+   *
+   * @param minimumCapacity The capacity will not be reduced below this number of operations per
+   *     second.
+   * @param requestSentTimeMillis The time at which the contended request was sent.
+   * @param requestTimeMillis The time used to calculate the current capacity. Used for testing the
+   *     limiter.
+   */
+  public void reduceCapacity(
+      int minimumCapacity, long requestSentTimeMillis, long requestTimeMillis) {
+    while (true) {
+      State current = state.get();
+      if (requestSentTimeMillis <= current.lastReductionTimeMillis) {
+        return;
+      }
+      int capacity = calculateCapacity(current, requestTimeMillis);
+      double congestionCapacity = Math.max(minimumCapacity, capacity * CAPACITY_DECREASE_FACTOR);
+      State updated =
+          new State(
+              (int) Math.min(current.availableTokens, congestionCapacity),
+              current.lastRefillTimeMillis,
+              congestionCapacity,
+              requestTimeMillis);
+      if (state.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
+
+  public void increaseCapacity() {
+    increaseCapacity(new Date().getTime());
+  }
+
+  /**
+   * Additively increases the capacity after a successful request. Once the capacity reaches the
+   * ramp-up schedule, the limiter follows the schedule again.
+   *
+   * @param requestTimeMillis The time used to calculate the current capacity. Used for testing the
+   *     limiter.
+   */
+  public void increaseCapacity(long requestTimeMillis) {
+    while (true) {
+      State current = state.get();
+      if (Double.isInfinite(current.congestionCapacity)) {
+        return;
+      }
+      double congestionCapacity = current.congestionCapacity + CAPACITY_INCREMENT;
+      if (congestionCapacity >= calculateRampCapacity(requestTimeMillis)) {
+        congestionCapacity = Double.POSITIVE_INFINITY;
+      }
+      State updated =
+          new State(
+              current.availableTokens,
+              current.lastRefillTimeMillis,
+              congestionCapacity,
+              current.lastReductionTimeMillis);
+      if (state.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
 }
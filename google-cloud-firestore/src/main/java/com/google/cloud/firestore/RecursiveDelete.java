@@ -0,0 +1,319 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.ApiAsyncFunction;
+import com.google.api.core.ApiFunction;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.firestore.Query.QueryOptions;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Deletes a document or collection and all of its descendants.
+ *
+ * <p>Descendants are found with a kindless all-descendants query that only fetches document names.
+ * The query is split into partitions that are streamed in parallel, and all deletes are sent
+ * through a {@link BulkWriter} as the results arrive.
+ */
+class RecursiveDelete {
+  /** The number of partitions in which the descendants are read. */
+  static final long DEFAULT_PARTITION_COUNT = 16;
+
+  /**
+   * The smallest document ID that can be used in a query boundary. Used to query for all documents
+   * in a collection, including its descendants.
+   */
+  static final String REFERENCE_NAME_MIN_ID = "__id-9223372036854775808__";
+
+  private final FirestoreImpl firestore;
+  private final BulkWriter writer;
+  private final long partitionCount;
+
+  /** The path under which all descendants are found. */
+  private final ResourcePath parentPath;
+
+  /**
+   * The ID of the collection to delete, or null if the descendants of a document are deleted. The
+   * collection is a direct child of {@link #parentPath}.
+   */
+  @Nullable private final String collectionId;
+
+  /** The document to delete after its descendants, or null if a collection is deleted. */
+  @Nullable private final DocumentReference documentReference;
+
+  private final AtomicInteger failedDeletes = new AtomicInteger();
+  @Nullable private volatile Throwable lastError;
+
+  private RecursiveDelete(
+      FirestoreImpl firestore,
+      BulkWriter writer,
+      long partitionCount,
+      ResourcePath parentPath,
+      @Nullable String collectionId,
+      @Nullable DocumentReference documentReference) {
+    this.firestore = firestore;
+    this.writer = writer;
+    this.partitionCount = partitionCount;
+    this.parentPath = parentPath;
+    this.collectionId = collectionId;
+    this.documentReference = documentReference;
+  }
+
+  static RecursiveDelete forCollection(
+      FirestoreImpl firestore,
+      BulkWriter writer,
+      long partitionCount,
+      CollectionReference collectionReference) {
+    ResourcePath path = collectionReference.getResourcePath();
+    return new RecursiveDelete(
+        firestore, writer, partitionCount, path.getParent(), path.getId(), null);
+  }
+
+  static RecursiveDelete forDocument(
+      FirestoreImpl firestore,
+      BulkWriter writer,
+      long partitionCount,
+      DocumentReference documentReference) {
+    return new RecursiveDelete(
+        firestore,
+        writer,
+        partitionCount,
+        documentReference.getResourcePath(),
+        null,
+        documentReference);
+  }
+
+  /**
+   * Deletes all descendants and flushes the BulkWriter. Returns an ApiFuture that fails if any
+   * descendant could not be read or deleted.
+   */
+  ApiFuture<Void> run() {
+    ApiFuture<List<ApiFuture<Void>>> streams =
+        ApiFutures.transform(
+            getPartitions(),
+            new ApiFunction<List<QueryPartition>, List<ApiFuture<Void>>>() {
+              @Override
+              public List<ApiFuture<Void>> apply(List<QueryPartition> partitions) {
+                List<ApiFuture<Void>> streams = new ArrayList<>();
+                for (QueryPartition partition : partitions) {
+                  streams.add(deleteResults(partition));
+                }
+                return streams;
+              }
+            },
+            MoreExecutors.directExecutor());
+
+    ApiFuture<List<Void>> streamed =
+        ApiFutures.transformAsync(
+            streams,
+            new ApiAsyncFunction<List<ApiFuture<Void>>, List<Void>>() {
+              @Override
+              public ApiFuture<List<Void>> apply(List<ApiFuture<Void>> streams) {
+                return ApiFutures.allAsList(streams);
+              }
+            },
+            MoreExecutors.directExecutor());
+
+    final SettableApiFuture<Void> result = SettableApiFuture.create();
+    ApiFutures.addCallback(
+        streamed,
+        new ApiFutureCallback<List<Void>>() {
+          @Override
+          public void onSuccess(List<Void> ignored) {
+            Throwable error = null;
+            if (documentReference != null) {
+              try {
+                trackDelete(writer.delete(documentReference));
+              } catch (RuntimeException e) {
+                error = e;
+              }
+            }
+            flushAndComplete(result, error);
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            flushAndComplete(result, throwable);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return result;
+  }
+
+  /**
+   * Completes the result once all enqueued deletes have been performed, so that no deletes are
+   * pending when the caller is notified, even if the descendants could not be read.
+   */
+  private void flushAndComplete(
+      final SettableApiFuture<Void> result, @Nullable final Throwable error) {
+    ApiFuture<Void> flush;
+    try {
+      flush = writer.flush();
+    } catch (RuntimeException e) {
+      result.setException(error != null ? error : e);
+      return;
+    }
+
+    flush.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            Throwable deleteError = error != null ? error : getDeleteError();
+            if (deleteError != null) {
+              result.setException(deleteError);
+            } else {
+              result.set(null);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Returns the partitions of the descendants. For a collection, the partition points are taken
+   * from a collection group query for its collection ID under the same parent, since the documents
+   * of the collection are split points for the descendants as well. Falls back to a single
+   * partition if the backend cannot partition the query.
+   */
+  private ApiFuture<List<QueryPartition>> getPartitions() {
+    final Query query = getDescendantsQuery();
+    CollectionGroup partitionQuery =
+        new CollectionGroup(firestore, parentPath, collectionId != null ? collectionId : "");
+
+    ApiFuture<List<QueryPartition>> partitions;
+    try {
+      partitions = partitionQuery.getPartitions(partitionCount);
+    } catch (FirestoreException e) {
+      partitions = ApiFutures.immediateFailedFuture(e);
+    }
+
+    return ApiFutures.catching(
+        partitions,
+        Throwable.class,
+        new ApiFunction<Throwable, List<QueryPartition>>() {
+          @Override
+          public List<QueryPartition> apply(Throwable throwable) {
+            return Collections.singletonList(new QueryPartition(query, null, null));
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Returns a query for the names of all descendants, ordered by name. */
+  private Query getDescendantsQuery() {
+    Query query =
+        new Query(
+            firestore,
+            QueryOptions.builder()
+                .setParentPath(parentPath)
+                .setCollectionId("")
+                .setAllDescendants(true)
+                .build());
+
+    if (collectionId != null) {
+      // The kindless query returns all descendants of the parent. Restrict it to the documents
+      // whose names start with the collection's path. A null character sorts directly after the
+      // collection ID and before all other collection IDs that have it as a prefix.
+      query =
+          query
+              .whereGreaterThanOrEqualTo(
+                  FieldPath.documentId(), collectionId + "/" + REFERENCE_NAME_MIN_ID)
+              .whereLessThan(FieldPath.documentId(), collectionId + "\0/" + REFERENCE_NAME_MIN_ID);
+    }
+
+    return query.orderBy(FieldPath.documentId()).select(FieldPath.documentId());
+  }
+
+  /** Streams the descendants in the partition and enqueues a delete for each one. */
+  private ApiFuture<Void> deleteResults(QueryPartition partition) {
+    Query query = getDescendantsQuery();
+    if (partition.getStartAt() != null) {
+      query = query.startAt(partition.getStartAt());
+    }
+    if (partition.getEndBefore() != null) {
+      query = query.endBefore(partition.getEndBefore());
+    }
+
+    final SettableApiFuture<Void> result = SettableApiFuture.create();
+    query.stream(
+        new ApiStreamObserver<DocumentSnapshot>() {
+          @Override
+          public void onNext(DocumentSnapshot documentSnapshot) {
+            trackDelete(writer.delete(documentSnapshot.getReference()));
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            result.setException(throwable);
+          }
+
+          @Override
+          public void onCompleted() {
+            result.set(null);
+          }
+        });
+    return result;
+  }
+
+  private void trackDelete(ApiFuture<WriteResult> delete) {
+    ApiFutures.addCallback(
+        delete,
+        new ApiFutureCallback<WriteResult>() {
+          @Override
+          public void onFailure(Throwable throwable) {
+            failedDeletes.incrementAndGet();
+            lastError = throwable;
+          }
+
+          @Override
+          public void onSuccess(WriteResult writeResult) {}
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Returns an exception that describes the failed deletes, or null if all deletes succeeded. */
+  @Nullable
+  private FirestoreException getDeleteError() {
+    int failures = failedDeletes.get();
+    if (failures == 0) {
+      return null;
+    }
+
+    Throwable error = lastError;
+    Status status =
+        error instanceof BulkWriterException
+            ? ((BulkWriterException) error).getStatus()
+            : Status.UNAVAILABLE;
+    return FirestoreException.forServerRejection(
+        status,
+        error,
+        "%d %s failed. The last delete failed with: %s",
+        failures,
+        failures == 1 ? "delete" : "deletes",
+        error.getMessage());
+  }
+}
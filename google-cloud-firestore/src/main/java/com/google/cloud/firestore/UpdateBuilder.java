@@ -26,6 +26,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.firestore.v1.CommitRequest;
 import com.google.firestore.v1.CommitResponse;
+import com.google.firestore.v1.DocumentTransform.FieldTransform;
+import com.google.firestore.v1.Value;
 import com.google.firestore.v1.Write;
 import com.google.protobuf.ByteString;
 import io.opencensus.trace.AttributeValue;
@@ -35,7 +37,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -132,19 +136,47 @@ public abstract class UpdateBuilder<T> {
     return performCreate(documentReference, fields);
   }
 
-  private T performCreate(
-      @Nonnull DocumentReference documentReference, @Nonnull Map<String, Object> fields) {
+  private T performCreate(@Nonnull DocumentReference documentReference, @Nonnull Object data) {
     verifyNotCommitted();
     Tracing.getTracer().getCurrentSpan().addAnnotation(TraceUtil.SPAN_NAME_CREATEDOCUMENT);
-    DocumentSnapshot documentSnapshot =
-        DocumentSnapshot.fromObject(
-            firestore, documentReference, fields, UserDataConverter.NO_DELETES);
-    DocumentTransform documentTransform =
-        DocumentTransform.fromFieldPathMap(
-            documentReference, convertToFieldPaths(fields, /* splitOnDots= */ false));
+    SortedMap<FieldPath, FieldTransform> transforms = new TreeMap<>();
+    Map<String, Value> fields =
+        CustomClassMapper.encodeDocument(data, UserDataConverter.NO_DELETES, transforms);
+    if (fields == null) {
+      throw FirestoreException.forInvalidArgument(
+          "Can't set a document's data to an array or primitive");
+    }
+    return addDocumentWrite(
+        documentReference, fields, new DocumentTransform(transforms), Precondition.exists(false));
+  }
 
-    Write.Builder write = documentSnapshot.toPb();
-    write.setCurrentDocument(Precondition.exists(false).toPb());
+  /**
+   * Overwrites a document with a Map or a POJO, which is encoded directly into the fields of the
+   * write without first converting it to plain Java types.
+   */
+  private T performOverwrite(@Nonnull DocumentReference documentReference, @Nonnull Object data) {
+    verifyNotCommitted();
+    SortedMap<FieldPath, FieldTransform> transforms = new TreeMap<>();
+    Map<String, Value> fields =
+        CustomClassMapper.encodeDocument(
+            data, SetOptions.OVERWRITE.getEncodingOptions(), transforms);
+    if (fields == null) {
+      throw new IllegalArgumentException("Can't set a document's data to an array or primitive");
+    }
+    return addDocumentWrite(
+        documentReference, fields, new DocumentTransform(transforms), /* precondition= */ null);
+  }
+
+  private T addDocumentWrite(
+      DocumentReference documentReference,
+      Map<String, Value> fields,
+      DocumentTransform documentTransform,
+      @Nullable Precondition precondition) {
+    Write.Builder write = Write.newBuilder();
+    write.getUpdateBuilder().setName(documentReference.getName()).putAllFields(fields);
+    if (precondition != null) {
+      write.setCurrentDocument(precondition.toPb());
+    }
 
     if (!documentTransform.isEmpty()) {
       write.addAllUpdateTransforms(documentTransform.toPb());
@@ -170,12 +202,7 @@ public abstract class UpdateBuilder<T> {
    */
   @Nonnull
   public T create(@Nonnull DocumentReference documentReference, @Nonnull Object pojo) {
-    Object data = CustomClassMapper.convertToPlainJavaTypes(pojo);
-    if (!(data instanceof Map)) {
-      throw FirestoreException.forInvalidArgument(
-          "Can't set a document's data to an array or primitive");
-    }
-    return performCreate(documentReference, (Map<String, Object>) data);
+    return performCreate(documentReference, pojo);
   }
 
   /**
@@ -206,6 +233,9 @@ public abstract class UpdateBuilder<T> {
       @Nonnull DocumentReference documentReference,
       @Nonnull Map<String, Object> fields,
       @Nonnull SetOptions options) {
+    if (!options.isMerge()) {
+      return performOverwrite(documentReference, fields);
+    }
     return performSet(documentReference, fields, options);
   }
 
@@ -237,6 +267,9 @@ public abstract class UpdateBuilder<T> {
       @Nonnull DocumentReference documentReference,
       @Nonnull Object pojo,
       @Nonnull SetOptions options) {
+    if (!options.isMerge()) {
+      return performOverwrite(documentReference, pojo);
+    }
     Object data = CustomClassMapper.convertToPlainJavaTypes(pojo);
     if (!(data instanceof Map)) {
       throw new IllegalArgumentException("Can't set a document's data to an array or primitive");
@@ -16,7 +16,11 @@
 
 package com.google.cloud.firestore;
 
+import com.google.api.core.ApiAsyncFunction;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.BetaApi;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.List;
 import javax.annotation.Nonnull;
 
@@ -41,6 +45,27 @@ public class WriteBatch extends UpdateBuilder<WriteBatch> {
     return super.commit(null);
   }
 
+  /**
+   * Applies the current WriteBatch once the provided write budget has capacity for all of its
+   * writes, and returns an array with WriteResults.
+   *
+   * @param rateLimiter The write budget that is shared with other writers.
+   * @return ApiFuture with a List of WriteResults
+   */
+  @BetaApi
+  @Nonnull
+  public ApiFuture<List<WriteResult>> commit(@Nonnull WriteRateLimiter rateLimiter) {
+    return ApiFutures.transformAsync(
+        rateLimiter.acquire(getMutationsSize(), firestore.getClient().getExecutor()),
+        new ApiAsyncFunction<Void, List<WriteResult>>() {
+          @Override
+          public ApiFuture<List<WriteResult>> apply(Void ignored) {
+            return WriteBatch.super.commit(null);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
   WriteBatch wrapResult(int writeIndex) {
     return this;
   }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.firestore.v1.DocumentMask;
+import com.google.firestore.v1.DocumentTransform.FieldTransform;
+import com.google.firestore.v1.MapValue;
+import com.google.firestore.v1.Precondition;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Write;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+
+/**
+ * Combines two consecutive writes to the same document into a single write that has the same effect
+ * as applying both writes in order.
+ *
+ * <p>Only writes that set or update a document can be combined. Deletes, as well as writes with a
+ * precondition other than 'exists', are never combined since their outcome depends on the state of
+ * the document between the two writes.
+ */
+final class WriteCoalescer {
+
+  private WriteCoalescer() {}
+
+  /**
+   * Returns a write that is equivalent to applying {@code first} and then {@code second}, or null
+   * if the writes cannot be combined.
+   */
+  @Nullable
+  static Write coalesce(Write first, Write second) {
+    if (first.getOperationCase() != Write.OperationCase.UPDATE
+        || second.getOperationCase() != Write.OperationCase.UPDATE) {
+      return null;
+    }
+
+    if (!isCoalescablePrecondition(first.getCurrentDocument())
+        || !isCoalescablePrecondition(second.getCurrentDocument())) {
+      return null;
+    }
+
+    // The document exists once the first write succeeds, which implies an 'exists' precondition on
+    // the second write. The combined write uses the first write's precondition, which must not be
+    // stricter than the second write's since the second write could otherwise succeed on its own.
+    if (first.getCurrentDocument().getExists() && !second.getCurrentDocument().getExists()) {
+      return null;
+    }
+
+    if (!second.hasUpdateMask()) {
+      // The second write replaces the document, including all fields touched by the first write.
+      Write.Builder result = second.toBuilder();
+      if (first.hasCurrentDocument()) {
+        result.setCurrentDocument(first.getCurrentDocument());
+      } else {
+        result.clearCurrentDocument();
+      }
+      return result.build();
+    }
+
+    List<FieldPath> secondPaths = new ArrayList<>();
+    for (String path : second.getUpdateMask().getFieldPathsList()) {
+      secondPaths.add(FieldPath.fromServerFormat(path));
+    }
+
+    List<FieldTransform> transforms = mergeTransforms(first, second, secondPaths);
+    if (transforms == null) {
+      return null;
+    }
+
+    Map<String, Value> fields = new HashMap<>(first.getUpdate().getFieldsMap());
+    Map<String, Value> secondFields = second.getUpdate().getFieldsMap();
+    for (FieldPath path : secondPaths) {
+      setField(fields, path.getSegments(), 0, getField(secondFields, path.getSegments()));
+    }
+
+    Write.Builder result = first.toBuilder();
+    result.getUpdateBuilder().clearFields().putAllFields(fields);
+    result.clearUpdateTransforms().addAllUpdateTransforms(transforms);
+
+    if (first.hasUpdateMask()) {
+      SortedSet<FieldPath> paths = new TreeSet<>(secondPaths);
+      for (String path : first.getUpdateMask().getFieldPathsList()) {
+        paths.add(FieldPath.fromServerFormat(path));
+      }
+      result.setUpdateMask(toDocumentMask(paths));
+    }
+
+    return result.build();
+  }
+
+  /** Only writes without a precondition or with an 'exists' precondition can be combined. */
+  private static boolean isCoalescablePrecondition(Precondition precondition) {
+    switch (precondition.getConditionTypeCase()) {
+      case CONDITIONTYPE_NOT_SET:
+        return true;
+      case EXISTS:
+        return precondition.getExists();
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the transforms of the combined write, or null if the transforms of the two writes
+   * cannot be combined. Transforms of the first write are dropped for fields that are overwritten
+   * by the second write. Increments of the same field by integer values are summed up.
+   */
+  @Nullable
+  private static List<FieldTransform> mergeTransforms(
+      Write first, Write second, List<FieldPath> secondPaths) {
+    List<FieldTransform> transforms = new ArrayList<>();
+    List<FieldPath> transformPaths = new ArrayList<>();
+
+    for (FieldTransform transform : first.getUpdateTransformsList()) {
+      FieldPath path = FieldPath.fromServerFormat(transform.getFieldPath());
+      if (!overlaps(path, secondPaths)) {
+        transforms.add(transform);
+        transformPaths.add(path);
+      }
+    }
+
+    for (FieldTransform transform : second.getUpdateTransformsList()) {
+      FieldPath path = FieldPath.fromServerFormat(transform.getFieldPath());
+      int index = transformPaths.indexOf(path);
+      if (index != -1) {
+        FieldTransform combined = combineIncrements(transforms.get(index), transform);
+        if (combined == null) {
+          return null;
+        }
+        transforms.set(index, combined);
+      } else if (overlaps(path, transformPaths)) {
+        return null;
+      } else {
+        transforms.add(transform);
+        transformPaths.add(path);
+      }
+    }
+
+    return transforms;
+  }
+
+  /** Returns a single increment for two integer increments, or null if they cannot be combined. */
+  @Nullable
+  private static FieldTransform combineIncrements(FieldTransform first, FieldTransform second) {
+    if (!first.hasIncrement()
+        || !second.hasIncrement()
+        || first.getIncrement().getValueTypeCase() != Value.ValueTypeCase.INTEGER_VALUE
+        || second.getIncrement().getValueTypeCase() != Value.ValueTypeCase.INTEGER_VALUE) {
+      // Floating point increments are not combined since the sum may be rounded differently.
+      return null;
+    }
+
+    long a = first.getIncrement().getIntegerValue();
+    long b = second.getIncrement().getIntegerValue();
+    long sum = a + b;
+    if (((a ^ sum) & (b ^ sum)) < 0) {
+      return null;
+    }
+
+    return first.toBuilder().setIncrement(Value.newBuilder().setIntegerValue(sum)).build();
+  }
+
+  /** Returns whether the path is a prefix or child of (or equal to) any of the other paths. */
+  private static boolean overlaps(FieldPath path, List<FieldPath> others) {
+    for (FieldPath other : others) {
+      if (path.isPrefixOf(other) || other.isPrefixOf(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns a mask for the provided paths, omitting paths that are covered by their parents. */
+  private static DocumentMask toDocumentMask(SortedSet<FieldPath> paths) {
+    DocumentMask.Builder mask = DocumentMask.newBuilder();
+    FieldPath lastPath = null;
+    for (FieldPath path : paths) {
+      // Sorting places a path directly before its children.
+      if (lastPath == null || !lastPath.isPrefixOf(path)) {
+        mask.addFieldPaths(path.getEncodedPath());
+        lastPath = path;
+      }
+    }
+    return mask.build();
+  }
+
+  /** Returns the value at the provided path, or null if the field does not exist. */
+  @Nullable
+  private static Value getField(Map<String, Value> fields, List<String> segments) {
+    Value value = null;
+    for (String segment : segments) {
+      if (fields == null) {
+        return null;
+      }
+      value = fields.get(segment);
+      fields = value != null && value.hasMapValue() ? value.getMapValue().getFieldsMap() : null;
+    }
+    return value;
+  }
+
+  /** Sets the value at the provided path, or deletes the field if the value is null. */
+  private static void setField(
+      Map<String, Value> fields, List<String> segments, int index, @Nullable Value value) {
+    String segment = segments.get(index);
+    if (index == segments.size() - 1) {
+      if (value == null) {
+        fields.remove(segment);
+      } else {
+        fields.put(segment, value);
+      }
+      return;
+    }
+
+    Value child = fields.get(segment);
+    boolean isMap = child != null && child.hasMapValue();
+    if (value == null && !isMap) {
+      return;
+    }
+
+    Map<String, Value> childFields =
+        isMap ? new HashMap<>(child.getMapValue().getFieldsMap()) : new HashMap<String, Value>();
+    setField(childFields, segments, index + 1, value);
+    fields.put(
+        segment,
+        Value.newBuilder().setMapValue(MapValue.newBuilder().putAllFields(childFields)).build());
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.BetaApi;
+import com.google.api.core.SettableApiFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+
+/**
+ * A write budget that can be shared by multiple {@link BulkWriter} instances and {@link WriteBatch}
+ * commits.
+ *
+ * <p>Each BulkWriter created without a shared limiter enforces the 500/50/5 rule on its own. When
+ * several writers run in the same process, they can together exceed the rate the backend is ramped
+ * up for. Writers that are configured with the same WriteRateLimiter via {@link
+ * BulkWriterOptions.Builder#setRateLimiter} draw their operations from a single budget instead.
+ *
+ * <p>WriteRateLimiter is thread-safe and does not acquire any locks.
+ *
+ * @see <a href=https://cloud.google.com/datastore/docs/best-practices#ramping_up_traffic>Ramping up
+ *     traffic</a>
+ */
+@BetaApi
+public final class WriteRateLimiter {
+  private final RateLimiter rateLimiter;
+
+  private WriteRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Creates a write budget that starts at 500 operations per second and ramps up as per the
+   * 500/50/5 rule.
+   */
+  @Nonnull
+  public static WriteRateLimiter create() {
+    return create(BulkWriter.DEFAULT_STARTING_MAXIMUM_OPS_PER_SECOND, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a write budget with the provided initial and maximum number of operations per second.
+   *
+   * @param initialOpsPerSecond The initial maximum number of operations per second.
+   * @param maxOpsPerSecond The maximum number of operations per second. The budget does not ramp up
+   *     past the specified operations per second.
+   */
+  @Nonnull
+  public static WriteRateLimiter create(int initialOpsPerSecond, int maxOpsPerSecond) {
+    if (initialOpsPerSecond < 1) {
+      throw FirestoreException.forInvalidArgument(
+          "Value for argument 'initialOpsPerSecond' must be at least 1, but was: "
+              + initialOpsPerSecond);
+    }
+
+    if (maxOpsPerSecond < initialOpsPerSecond) {
+      throw FirestoreException.forInvalidArgument(
+          "'maxOpsPerSecond' cannot be less than 'initialOpsPerSecond'.");
+    }
+
+    return new WriteRateLimiter(
+        new RateLimiter(
+            initialOpsPerSecond,
+            BulkWriter.RATE_LIMITER_MULTIPLIER,
+            BulkWriter.RATE_LIMITER_MULTIPLIER_MILLIS,
+            maxOpsPerSecond));
+  }
+
+  RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Returns an ApiFuture that completes once the budget has granted the provided number of
+   * operations. If the number of operations exceeds the current capacity, the ApiFuture completes
+   * once the full capacity is available.
+   *
+   * @param numOperations The number of operations to draw from the budget.
+   * @param executor The executor used to schedule another attempt if the budget is exhausted.
+   */
+  ApiFuture<Void> acquire(int numOperations, ScheduledExecutorService executor) {
+    SettableApiFuture<Void> result = SettableApiFuture.create();
+    acquire(numOperations, executor, result);
+    return result;
+  }
+
+  private void acquire(
+      final int numOperations,
+      final ScheduledExecutorService executor,
+      final SettableApiFuture<Void> result) {
+    int requestedOperations =
+        Math.min(numOperations, rateLimiter.calculateCapacity(System.currentTimeMillis()));
+    if (rateLimiter.tryMakeRequest(requestedOperations)) {
+      result.set(null);
+      return;
+    }
+
+    long delayMs = Math.max(0, rateLimiter.getNextRequestDelayMs(requestedOperations));
+    executor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            acquire(numOperations, executor, result);
+          }
+        },
+        delayMs,
+        TimeUnit.MILLISECONDS);
+  }
+}
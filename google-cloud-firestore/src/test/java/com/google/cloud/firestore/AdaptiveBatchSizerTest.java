@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AdaptiveBatchSizerTest {
+  private AdaptiveBatchSizer sizer;
+
+  @Before
+  public void before() {
+    sizer = new AdaptiveBatchSizer(/* minimumBatchSize= */ 20, /* maximumBatchSize= */ 50);
+  }
+
+  @Test
+  public void startsAtMinimumBatchSize() {
+    assertEquals(20, sizer.getBatchSize());
+  }
+
+  @Test
+  public void growsWhileLatencyIsStable() {
+    sizer.recordLatency(100);
+    assertEquals(30, sizer.getBatchSize());
+    sizer.recordLatency(120);
+    assertEquals(40, sizer.getBatchSize());
+    sizer.recordLatency(100);
+    assertEquals(50, sizer.getBatchSize());
+
+    // Batch size never exceeds the maximum.
+    sizer.recordLatency(100);
+    assertEquals(50, sizer.getBatchSize());
+  }
+
+  @Test
+  public void shrinksWhenLatencyClimbs() {
+    sizer.recordLatency(100);
+    sizer.recordLatency(100);
+    sizer.recordLatency(100);
+    assertEquals(50, sizer.getBatchSize());
+
+    sizer.recordLatency(200);
+    assertEquals(37, sizer.getBatchSize());
+    sizer.recordLatency(200);
+    assertEquals(27, sizer.getBatchSize());
+
+    // Batch size never drops below the minimum.
+    sizer.recordLatency(200);
+    assertEquals(20, sizer.getBatchSize());
+  }
+}
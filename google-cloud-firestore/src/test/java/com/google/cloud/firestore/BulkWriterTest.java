@@ -19,11 +19,16 @@ package com.google.cloud.firestore;
 import static com.google.cloud.firestore.LocalFirestoreHelper.batchWrite;
 import static com.google.cloud.firestore.LocalFirestoreHelper.create;
 import static com.google.cloud.firestore.LocalFirestoreHelper.delete;
+import static com.google.cloud.firestore.LocalFirestoreHelper.increment;
 import static com.google.cloud.firestore.LocalFirestoreHelper.map;
 import static com.google.cloud.firestore.LocalFirestoreHelper.set;
+import static com.google.cloud.firestore.LocalFirestoreHelper.transform;
 import static com.google.cloud.firestore.LocalFirestoreHelper.update;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doAnswer;
@@ -44,12 +49,14 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.firestore.v1.BatchWriteRequest;
 import com.google.firestore.v1.BatchWriteResponse;
 import com.google.firestore.v1.Value;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.GeneratedMessageV3;
 import com.google.rpc.Code;
 import io.grpc.Status;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -58,6 +65,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nonnull;
 import org.junit.Assert;
 import org.junit.Before;
@@ -381,6 +389,70 @@ public class BulkWriterTest {
     responseStubber.verifyAllRequestsSent();
   }
 
+  @Test
+  public void coalescesWritesToSameDoc() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(
+                    set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")
+                        .toBuilder()
+                        .addAllUpdateTransforms(
+                            transform(
+                                "count", increment(Value.newBuilder().setIntegerValue(3).build())))
+                        .build()),
+                successResponse(1));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(
+            BulkWriterOptions.builder().setWriteCoalescingEnabled(true).build());
+    ApiFuture<WriteResult> result1 = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<WriteResult> result2 = bulkWriter.update(doc1, "count", FieldValue.increment(1));
+    ApiFuture<WriteResult> result3 = bulkWriter.update(doc1, "count", FieldValue.increment(2));
+    bulkWriter.close();
+
+    responseStubber.verifyAllRequestsSent();
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result1.get().getUpdateTime());
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result2.get().getUpdateTime());
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result3.get().getUpdateTime());
+  }
+
+  @Test
+  public void doesNotCoalesceCreate() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                successResponse(1));
+            put(
+                batchWrite(create(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                failedResponse(Code.ALREADY_EXISTS_VALUE));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(
+            BulkWriterOptions.builder().setWriteCoalescingEnabled(true).build());
+    ApiFuture<WriteResult> result1 = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<WriteResult> result2 = bulkWriter.create(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    bulkWriter.close();
+
+    responseStubber.verifyAllRequestsSent();
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result1.get().getUpdateTime());
+    try {
+      result2.get();
+      fail("create() should have failed");
+    } catch (ExecutionException e) {
+      assertEquals(Status.ALREADY_EXISTS, ((BulkWriterException) e.getCause()).getStatus());
+    }
+  }
+
   @Test
   public void sendWritesToDifferentDocsInSameBatch() throws Exception {
     ResponseStubber responseStubber =
@@ -804,6 +876,350 @@ public class BulkWriterTest {
     assertEquals(Timestamp.ofTimeSecondsAndNanos(3, 0), result3.get().getUpdateTime());
   }
 
+  @Test
+  public void sendBatchesWhenByteLimitIsReached() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(
+                    set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1"),
+                    set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc2")),
+                mergeResponses(successResponse(1), successResponse(2)));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    // Send the batch once it holds two writes' worth of bytes.
+    int writeSize =
+        CodedOutputStream.computeMessageSize(
+            BatchWriteRequest.WRITES_FIELD_NUMBER,
+            set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1"));
+    bulkWriter.setMaxBatchSizeBytes(2 * writeSize);
+    ApiFuture<WriteResult> result1 = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<WriteResult> result2 = bulkWriter.set(doc2, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+
+    // The 3rd write should not be sent because it should be in a new batch.
+    bulkWriter.delete(firestoreMock.document("coll/doc3"));
+
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result1.get().getUpdateTime());
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(2, 0), result2.get().getUpdateTime());
+  }
+
+  @Test
+  public void sendsBatchBeforeWriteThatExceedsByteLimit() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                successResponse(1));
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc2")),
+                successResponse(2));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    // The 2nd write does not fit into the batch with the 1st write, which is sent on its own.
+    int writeSize =
+        CodedOutputStream.computeMessageSize(
+            BatchWriteRequest.WRITES_FIELD_NUMBER,
+            set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1"));
+    bulkWriter.setMaxBatchSizeBytes(writeSize + writeSize / 2);
+    ApiFuture<WriteResult> result1 = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<WriteResult> result2 = bulkWriter.set(doc2, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    bulkWriter.close();
+
+    responseStubber.verifyAllRequestsSent();
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result1.get().getUpdateTime());
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(2, 0), result2.get().getUpdateTime());
+  }
+
+  @Test
+  public void adaptiveBatchSizeIsBoundedByRateLimit() throws Exception {
+    assertEquals(null, bulkWriter.getBatchSizer());
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(
+            BulkWriterOptions.builder().setAdaptiveBatchSizingEnabled(true).build());
+    assertEquals(BulkWriter.MAX_BATCH_SIZE, bulkWriter.getBatchSizer().getBatchSize());
+
+    bulkWriter =
+        firestoreMock.bulkWriter(
+            BulkWriterOptions.builder()
+                .setAdaptiveBatchSizingEnabled(true)
+                .setInitialOpsPerSecond(25)
+                .build());
+    for (int i = 0; i < 10; ++i) {
+      bulkWriter.getBatchSizer().recordLatency(100);
+    }
+    assertEquals(25, bulkWriter.getBatchSizer().getBatchSize());
+  }
+
+  @Test
+  public void reducesRateOnContentionWithAdaptiveThrottling() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                failedResponse(Code.RESOURCE_EXHAUSTED_VALUE));
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                successResponse(1));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(
+            BulkWriterOptions.builder()
+                .setAdaptiveThrottlingEnabled(true)
+                .setExecutor(immediateExecutor)
+                .build());
+    bulkWriter.addWriteErrorListener(
+        new WriteErrorCallback() {
+          public boolean onError(BulkWriterException error) {
+            return true;
+          }
+        });
+
+    ApiFuture<WriteResult> result = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    bulkWriter.close();
+
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result.get().getUpdateTime());
+
+    // The rate is halved after the first batch and raised by one after the second batch. The rate
+    // limiter is updated before the results of a batch are delivered.
+    assertEquals(
+        BulkWriter.DEFAULT_STARTING_MAXIMUM_OPS_PER_SECOND / 2 + 1,
+        bulkWriter.getRateLimiter().calculateCapacity(new Date().getTime()));
+  }
+
+  @Test
+  public void reducesRateOnContentionWithAdaptiveBatchSizing() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                failedResponse(Code.RESOURCE_EXHAUSTED_VALUE));
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                successResponse(1));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(
+            BulkWriterOptions.builder()
+                .setAdaptiveThrottlingEnabled(true)
+                .setAdaptiveBatchSizingEnabled(true)
+                .setExecutor(immediateExecutor)
+                .build());
+    bulkWriter.addWriteErrorListener(
+        new WriteErrorCallback() {
+          public boolean onError(BulkWriterException error) {
+            return true;
+          }
+        });
+
+    ApiFuture<WriteResult> result = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    bulkWriter.close();
+
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result.get().getUpdateTime());
+
+    // The maximum adaptive batch size does not prevent the rate from being reduced.
+    assertEquals(
+        BulkWriter.DEFAULT_STARTING_MAXIMUM_OPS_PER_SECOND / 2 + 1,
+        bulkWriter.getRateLimiter().calculateCapacity(new Date().getTime()));
+  }
+
+  @Test
+  public void limitsNumberOfPendingBatches() throws Exception {
+    final List<SettableApiFuture<BatchWriteResponse>> pendingResponses = new ArrayList<>();
+    doAnswer(
+            new Answer<ApiFuture<BatchWriteResponse>>() {
+              public ApiFuture<BatchWriteResponse> answer(InvocationOnMock mock) {
+                SettableApiFuture<BatchWriteResponse> response = SettableApiFuture.create();
+                synchronized (pendingResponses) {
+                  pendingResponses.add(response);
+                }
+                return response;
+              }
+            })
+        .when(firestoreMock)
+        .sendRequest(
+            batchWriteCapture.capture(),
+            Matchers.<UnaryCallable<BatchWriteRequest, BatchWriteResponse>>any());
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setMaxPendingBatches(2).build());
+    bulkWriter.setMaxBatchSize(1);
+
+    List<ApiFuture<WriteResult>> results = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      results.add(
+          bulkWriter.set(
+              firestoreMock.document("coll/doc" + i), LocalFirestoreHelper.SINGLE_FIELD_MAP));
+    }
+
+    // Only two batches should be in flight at a time.
+    assertEquals(2, batchWriteCapture.getAllValues().size());
+
+    ApiFuture<Void> flush = bulkWriter.flush();
+    for (int i = 0; i < 4; ++i) {
+      synchronized (pendingResponses) {
+        pendingResponses.get(i).set(successResponse(i).get());
+      }
+      assertEquals(Timestamp.ofTimeSecondsAndNanos(i, 0), results.get(i).get().getUpdateTime());
+      while (i < 2 && batchWriteCapture.getAllValues().size() < i + 3) {
+        Thread.sleep(1);
+      }
+      assertEquals(Math.min(i + 3, 4), batchWriteCapture.getAllValues().size());
+    }
+    flush.get();
+  }
+
+  @Test
+  public void blocksWhenMaxPendingOperationsIsReached() throws Exception {
+    final List<SettableApiFuture<BatchWriteResponse>> pendingResponses = new ArrayList<>();
+    doAnswer(
+            new Answer<ApiFuture<BatchWriteResponse>>() {
+              public ApiFuture<BatchWriteResponse> answer(InvocationOnMock mock) {
+                SettableApiFuture<BatchWriteResponse> response = SettableApiFuture.create();
+                synchronized (pendingResponses) {
+                  pendingResponses.add(response);
+                }
+                return response;
+              }
+            })
+        .when(firestoreMock)
+        .sendRequest(
+            batchWriteCapture.capture(),
+            Matchers.<UnaryCallable<BatchWriteRequest, BatchWriteResponse>>any());
+
+    final BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setMaxPendingOperations(1).build());
+
+    ApiFuture<WriteResult> result1 =
+        bulkWriter.set(firestoreMock.document("coll/doc1"), LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    assertEquals(0, batchWriteCapture.getAllValues().size());
+
+    final AtomicReference<ApiFuture<WriteResult>> blockedResult = new AtomicReference<>();
+    Thread writer =
+        new Thread(
+            new Runnable() {
+              public void run() {
+                blockedResult.set(
+                    bulkWriter.set(
+                        firestoreMock.document("coll/doc2"),
+                        LocalFirestoreHelper.SINGLE_FIELD_MAP));
+              }
+            });
+    writer.start();
+
+    // The blocked writer sends the pending batch instead of waiting for it to fill up.
+    while (batchWriteCapture.getAllValues().size() < 1) {
+      Thread.sleep(1);
+    }
+    assertTrue(writer.isAlive());
+    assertNull(blockedResult.get());
+
+    synchronized (pendingResponses) {
+      pendingResponses.get(0).set(successResponse(1).get());
+    }
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 0), result1.get().getUpdateTime());
+    writer.join();
+
+    ApiFuture<Void> flush = bulkWriter.flush();
+    synchronized (pendingResponses) {
+      pendingResponses.get(1).set(successResponse(2).get());
+    }
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(2, 0), blockedResult.get().get().getUpdateTime());
+    flush.get();
+  }
+
+  @Test
+  public void listenersCanEnqueueWritesWhenMaxPendingOperationsIsReached() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc1")),
+                successResponse(1));
+            put(
+                batchWrite(
+                    set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc2"),
+                    set(LocalFirestoreHelper.SINGLE_FIELD_PROTO, "coll/doc3")),
+                mergeResponses(successResponse(2), successResponse(3)));
+          }
+        };
+    responseStubber.initializeStub(batchWriteCapture, firestoreMock);
+
+    final BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setMaxPendingOperations(1).build());
+    final List<ApiFuture<WriteResult>> results = new ArrayList<>();
+    ApiFuture<WriteResult> result1 =
+        bulkWriter.set(firestoreMock.document("coll/doc1"), LocalFirestoreHelper.SINGLE_FIELD_MAP);
+
+    // The listener enqueues more writes than the limit allows without blocking.
+    result1.addListener(
+        new Runnable() {
+          public void run() {
+            results.add(
+                bulkWriter.set(
+                    firestoreMock.document("coll/doc2"), LocalFirestoreHelper.SINGLE_FIELD_MAP));
+            results.add(
+                bulkWriter.set(
+                    firestoreMock.document("coll/doc3"), LocalFirestoreHelper.SINGLE_FIELD_MAP));
+          }
+        },
+        MoreExecutors.directExecutor());
+    bulkWriter.flush().get();
+    bulkWriter.close();
+
+    responseStubber.verifyAllRequestsSent();
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(2, 0), results.get(0).get().getUpdateTime());
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(3, 0), results.get(1).get().getUpdateTime());
+  }
+
+  @Test
+  public void awaitCapacityCompletesOncePendingOperationCompletes() throws Exception {
+    final List<SettableApiFuture<BatchWriteResponse>> pendingResponses = new ArrayList<>();
+    doAnswer(
+            new Answer<ApiFuture<BatchWriteResponse>>() {
+              public ApiFuture<BatchWriteResponse> answer(InvocationOnMock mock) {
+                SettableApiFuture<BatchWriteResponse> response = SettableApiFuture.create();
+                synchronized (pendingResponses) {
+                  pendingResponses.add(response);
+                }
+                return response;
+              }
+            })
+        .when(firestoreMock)
+        .sendRequest(
+            batchWriteCapture.capture(),
+            Matchers.<UnaryCallable<BatchWriteRequest, BatchWriteResponse>>any());
+
+    BulkWriter bulkWriter =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setMaxPendingOperations(1).build());
+    assertTrue(bulkWriter.awaitCapacity().isDone());
+
+    bulkWriter.set(firestoreMock.document("coll/doc1"), LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<Void> capacity = bulkWriter.awaitCapacity();
+    assertFalse(capacity.isDone());
+    assertEquals(1, batchWriteCapture.getAllValues().size());
+
+    synchronized (pendingResponses) {
+      pendingResponses.get(0).set(successResponse(1).get());
+    }
+    capacity.get();
+    bulkWriter.close();
+  }
+
   @Test
   public void retriesIndividualWritesThatFailWithAbortedOrUnavailable() throws Exception {
     ResponseStubber responseStubber =
@@ -940,6 +1356,47 @@ public class BulkWriterTest {
     flush.get(100, TimeUnit.MILLISECONDS);
   }
 
+  @Test
+  public void flushDoesNotWaitForWritesEnqueuedAfterIt() throws Exception {
+    final List<SettableApiFuture<BatchWriteResponse>> pendingResponses = new ArrayList<>();
+    doAnswer(
+            new Answer<ApiFuture<BatchWriteResponse>>() {
+              public ApiFuture<BatchWriteResponse> answer(InvocationOnMock mock) {
+                SettableApiFuture<BatchWriteResponse> response = SettableApiFuture.create();
+                synchronized (pendingResponses) {
+                  pendingResponses.add(response);
+                }
+                return response;
+              }
+            })
+        .when(firestoreMock)
+        .sendRequest(
+            batchWriteCapture.capture(),
+            Matchers.<UnaryCallable<BatchWriteRequest, BatchWriteResponse>>any());
+
+    ApiFuture<WriteResult> result1 = bulkWriter.set(doc1, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<Void> flush1 = bulkWriter.flush();
+    ApiFuture<WriteResult> result2 = bulkWriter.set(doc2, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    ApiFuture<Void> flush2 = bulkWriter.flush();
+
+    // Complete the second batch first. The first flush still waits for the first write, and the
+    // second flush waits for all writes that were enqueued before it.
+    synchronized (pendingResponses) {
+      assertEquals(2, pendingResponses.size());
+      pendingResponses.get(1).set(successResponse(2).get());
+    }
+    result2.get();
+    assertFalse(flush1.isDone());
+    assertFalse(flush2.isDone());
+
+    synchronized (pendingResponses) {
+      pendingResponses.get(0).set(successResponse(1).get());
+    }
+    result1.get();
+    flush1.get();
+    flush2.get();
+  }
+
   @Test
   public void doesNotSendBatchesIfDoingSoExceedsRateLimit() throws Exception {
     // This future is completed when the BulkWriter schedules a timeout. This test waits on the
@@ -1118,6 +1575,29 @@ public class BulkWriterTest {
     }
   }
 
+  @Test
+  public void optionsRequiresPositiveMaxPendingBatches() throws Exception {
+    try {
+      firestoreMock.bulkWriter(BulkWriterOptions.builder().setMaxPendingBatches(0).build());
+      fail("bulkWriter() call should have failed");
+    } catch (Exception e) {
+      assertEquals(
+          e.getMessage(), "Value for argument 'maxPendingBatches' must be at least 1, but was: 0");
+    }
+  }
+
+  @Test
+  public void optionsRequiresPositiveMaxPendingOperations() throws Exception {
+    try {
+      firestoreMock.bulkWriter(BulkWriterOptions.builder().setMaxPendingOperations(0).build());
+      fail("bulkWriter() call should have failed");
+    } catch (Exception e) {
+      assertEquals(
+          e.getMessage(),
+          "Value for argument 'maxPendingOperations' must be at least 1, but was: 0");
+    }
+  }
+
   @Test
   public void optionsRequiresMaxGreaterThanInitial() throws Exception {
     try {
@@ -1153,6 +1633,57 @@ public class BulkWriterTest {
           e.getMessage(),
           "Cannot set 'initialOpsPerSecond' or 'maxOpsPerSecond' when 'throttlingEnabled' is set to false.");
     }
+
+    try {
+      firestoreMock.bulkWriter(
+          BulkWriterOptions.builder()
+              .setThrottlingEnabled(false)
+              .setAdaptiveThrottlingEnabled(true)
+              .build());
+      fail("bulkWriter() call should have failed");
+    } catch (Exception e) {
+      assertEquals(
+          e.getMessage(),
+          "Cannot enable 'adaptiveThrottlingEnabled' when 'throttlingEnabled' is set to false.");
+    }
+  }
+
+  @Test
+  public void bulkWritersShareRateLimiter() throws Exception {
+    WriteRateLimiter rateLimiter = WriteRateLimiter.create(10, 100);
+    BulkWriter bulkWriter1 =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setRateLimiter(rateLimiter).build());
+    BulkWriter bulkWriter2 =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setRateLimiter(rateLimiter).build());
+    assertSame(bulkWriter1.getRateLimiter(), bulkWriter2.getRateLimiter());
+    assertEquals(10, bulkWriter1.getRateLimiter().getInitialCapacity());
+    assertEquals(100, bulkWriter1.getRateLimiter().getMaximumRate());
+
+    try {
+      firestoreMock.bulkWriter(
+          BulkWriterOptions.builder()
+              .setRateLimiter(rateLimiter)
+              .setInitialOpsPerSecond(500)
+              .build());
+      fail("bulkWriter() call should have failed");
+    } catch (Exception e) {
+      assertEquals(
+          e.getMessage(),
+          "Cannot set 'rateLimiter' together with 'initialOpsPerSecond', 'maxOpsPerSecond' or "
+              + "'throttlingEnabled'.");
+    }
+  }
+
+  @Test
+  public void rateLimiterRequiresPositiveRate() throws Exception {
+    try {
+      WriteRateLimiter.create(0, 100);
+      fail("create() call should have failed");
+    } catch (Exception e) {
+      assertEquals(
+          e.getMessage(),
+          "Value for argument 'initialOpsPerSecond' must be at least 1, but was: 0");
+    }
   }
 
   @Test
@@ -275,6 +275,7 @@ public class DocumentReferenceTest {
 
     DocumentSnapshot snapshot = documentReference.get().get();
     assertEquals(documentReference, snapshot.getData().get("docRef"));
+    assertEquals(documentReference, snapshot.get("docRef", DocumentReference.class));
     assertEquals(documentReference, snapshot.getReference());
   }
 
@@ -1143,4 +1144,72 @@ public class DocumentReferenceTest {
     assertEquals(FOO_MAP, customMap.fooMap);
     assertEquals(SINGLE_FIELD_OBJECT, customMap.fooMap.get("customMap"));
   }
+
+  @Test
+  public void deserializeOnlyDecodesDeclaredFields() throws Exception {
+    // A value without a type cannot be decoded.
+    doAnswer(
+            getAllResponse(
+                map(
+                    "foo",
+                    Value.newBuilder().setStringValue("bar").build(),
+                    "undeclared",
+                    Value.getDefaultInstance())))
+        .when(firestoreMock)
+        .streamRequest(
+            getAllCapture.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+    DocumentSnapshot snapshot = documentReference.get().get();
+
+    assertEquals(SINGLE_FIELD_OBJECT, snapshot.toObject(LocalFirestoreHelper.SingleField.class));
+    try {
+      snapshot.getData();
+      fail();
+    } catch (FirestoreException e) {
+      assertTrue(e.getMessage().contains("Unknown Value Type"));
+    }
+  }
+
+  @Test
+  public void lazilyDecodesFields() throws Exception {
+    // A value without a type cannot be decoded.
+    doAnswer(
+            getAllResponse(
+                map(
+                    "foo",
+                    string("bar"),
+                    "nested",
+                    object("undecodable", Value.getDefaultInstance()),
+                    "list",
+                    Value.newBuilder()
+                        .setArrayValue(ArrayValue.newBuilder().addValues(string("a")))
+                        .build())))
+        .when(firestoreMock)
+        .streamRequest(
+            getAllCapture.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+    DocumentSnapshot snapshot = documentReference.get().get();
+
+    // Nested maps are only decoded when they are accessed.
+    Map<String, Object> data = snapshot.getData();
+    assertEquals("bar", data.get("foo"));
+    assertEquals("bar", snapshot.getString("foo"));
+    assertTrue(snapshot.contains("nested.undecodable"));
+    try {
+      ((Map<?, ?>) data.get("nested")).get("undecodable");
+      fail();
+    } catch (FirestoreException e) {
+      assertTrue(e.getMessage().contains("Unknown Value Type"));
+    }
+
+    // Decoded values can be modified without affecting later reads.
+    @SuppressWarnings("unchecked")
+    List<Object> list = (List<Object>) data.get("list");
+    list.add("b");
+    assertEquals(Arrays.asList("a", "b"), data.get("list"));
+    assertEquals(Collections.singletonList("a"), snapshot.get("list"));
+    assertEquals(Collections.singletonList("a"), snapshot.getData().get("list"));
+  }
 }
@@ -27,7 +27,9 @@ import static com.google.cloud.firestore.LocalFirestoreHelper.getAllResponse;
 import static com.google.cloud.firestore.LocalFirestoreHelper.transform;
 import static com.google.cloud.firestore.LocalFirestoreHelper.update;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
@@ -35,6 +37,7 @@ import static org.mockito.Mockito.doReturn;
 import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.api.gax.rpc.ServerStreamingCallable;
 import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.spi.v1.FirestoreRpc;
 import com.google.firestore.v1.BatchGetDocumentsRequest;
 import com.google.firestore.v1.CommitRequest;
@@ -152,6 +155,26 @@ public class FirestoreTest {
     assertEquals("foo.bar", request.getMask().getFieldPaths(0));
   }
 
+  @Test
+  public void getAllWithReadTime() throws Exception {
+    doAnswer(getAllResponse(SINGLE_FIELD_PROTO))
+        .when(firestoreMock)
+        .streamRequest(
+            getAllCapture.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    DocumentReference doc1 = firestoreMock.document("coll/doc1");
+    Timestamp readTime = Timestamp.ofTimeSecondsAndNanos(1, 2);
+
+    firestoreMock.getAll(new DocumentReference[] {doc1}, /* fieldMask= */ null, readTime).get();
+
+    BatchGetDocumentsRequest request = getAllCapture.getValue();
+    assertEquals(readTime.toProto(), request.getReadTime());
+    assertFalse(request.hasMask());
+    assertTrue(request.getTransaction().isEmpty());
+  }
+
   @Test
   public void arrayUnionEquals() {
     FieldValue arrayUnion1 = FieldValue.arrayUnion("foo", "bar");
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import com.google.cloud.firestore.annotation.DocumentId;
+import java.util.List;
+
+/**
+ * A class that is mapped by {@link GeneratedMapperBean_FirestoreMapper}, which is the output of the
+ * Firestore annotation processor for this class. FirestoreMapperProcessorTest checks that the
+ * checked-in mapper matches the processor's output.
+ */
+class GeneratedMapperBean {
+  String value;
+  List<String> tags;
+  @DocumentId DocumentReference docRef;
+
+  public String getValue() {
+    return value;
+  }
+
+  public List<String> getTags() {
+    return tags;
+  }
+
+  public DocumentReference getDocRef() {
+    return docRef;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Generated by com.google.cloud.firestore.processor.FirestoreMapperProcessor. Do not edit.
+package com.google.cloud.firestore;
+
+public final class GeneratedMapperBean_FirestoreMapper
+    extends com.google.cloud.firestore.GeneratedMapper<
+        com.google.cloud.firestore.GeneratedMapperBean> {
+  private static final java.util.List<
+          com.google.cloud.firestore.GeneratedMapper.Property<
+              com.google.cloud.firestore.GeneratedMapperBean>>
+      PROPERTIES =
+          java.util.Arrays
+              .<com.google.cloud.firestore.GeneratedMapper.Property<
+                      com.google.cloud.firestore.GeneratedMapperBean>>
+                  asList(
+                      new com.google.cloud.firestore.GeneratedMapper.Property<
+                          com.google.cloud.firestore.GeneratedMapperBean>(
+                          "value", java.lang.String.class, false, false) {
+                        @java.lang.Override
+                        public java.lang.Object get(
+                            com.google.cloud.firestore.GeneratedMapperBean instance)
+                            throws java.lang.Exception {
+                          return instance.getValue();
+                        }
+
+                        @java.lang.Override
+                        public void set(
+                            com.google.cloud.firestore.GeneratedMapperBean instance,
+                            java.lang.Object value)
+                            throws java.lang.Exception {
+                          instance.value = (java.lang.String) value;
+                        }
+                      },
+                      new com.google.cloud.firestore.GeneratedMapper.Property<
+                          com.google.cloud.firestore.GeneratedMapperBean>(
+                          "tags",
+                          parameterizedType(java.util.List.class, java.lang.String.class),
+                          false,
+                          false) {
+                        @java.lang.Override
+                        public java.lang.Object get(
+                            com.google.cloud.firestore.GeneratedMapperBean instance)
+                            throws java.lang.Exception {
+                          return instance.getTags();
+                        }
+
+                        @java.lang.Override
+                        @java.lang.SuppressWarnings("unchecked")
+                        public void set(
+                            com.google.cloud.firestore.GeneratedMapperBean instance,
+                            java.lang.Object value)
+                            throws java.lang.Exception {
+                          instance.tags = (java.util.List<java.lang.String>) value;
+                        }
+                      },
+                      new com.google.cloud.firestore.GeneratedMapper.Property<
+                          com.google.cloud.firestore.GeneratedMapperBean>(
+                          "docRef",
+                          com.google.cloud.firestore.DocumentReference.class,
+                          false,
+                          true) {
+                        @java.lang.Override
+                        public java.lang.Object get(
+                            com.google.cloud.firestore.GeneratedMapperBean instance)
+                            throws java.lang.Exception {
+                          return instance.getDocRef();
+                        }
+
+                        @java.lang.Override
+                        public void set(
+                            com.google.cloud.firestore.GeneratedMapperBean instance,
+                            java.lang.Object value)
+                            throws java.lang.Exception {
+                          instance.docRef = (com.google.cloud.firestore.DocumentReference) value;
+                        }
+                      });
+
+  @java.lang.Override
+  public java.lang.Class<com.google.cloud.firestore.GeneratedMapperBean> getMappedClass() {
+    return com.google.cloud.firestore.GeneratedMapperBean.class;
+  }
+
+  @java.lang.Override
+  public com.google.cloud.firestore.GeneratedMapperBean newInstance() {
+    return new com.google.cloud.firestore.GeneratedMapperBean();
+  }
+
+  @java.lang.Override
+  public boolean throwOnExtraProperties() {
+    return false;
+  }
+
+  @java.lang.Override
+  public boolean ignoreExtraProperties() {
+    return false;
+  }
+
+  @java.lang.Override
+  public java.util.List<
+          com.google.cloud.firestore.GeneratedMapper.Property<
+              com.google.cloud.firestore.GeneratedMapperBean>>
+      getProperties() {
+    return PROPERTIES;
+  }
+}
@@ -19,6 +19,7 @@ package com.google.cloud.firestore;
 import static com.google.cloud.firestore.LocalFirestoreHelper.fromSingleQuotedString;
 import static com.google.cloud.firestore.LocalFirestoreHelper.mapAnyType;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -26,10 +27,13 @@ import static org.junit.Assert.fail;
 import com.google.cloud.firestore.annotation.DocumentId;
 import com.google.cloud.firestore.annotation.Exclude;
 import com.google.cloud.firestore.annotation.PropertyName;
+import com.google.cloud.firestore.annotation.ServerTimestamp;
 import com.google.cloud.firestore.annotation.ThrowOnExtraProperties;
 import com.google.cloud.firestore.spi.v1.FirestoreRpc;
 import com.google.common.collect.ImmutableList;
 import com.google.firestore.v1.DatabaseRootName;
+import com.google.firestore.v1.DocumentTransform.FieldTransform;
+import com.google.firestore.v1.Value;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.util.ArrayList;
@@ -42,6 +46,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
@@ -946,6 +952,24 @@ public class MapperTest {
     }
   }
 
+  private static class EncodedBean {
+    public String string = "foo";
+    public long number = 1;
+    public ComplexEnum complexEnum = ComplexEnum.THREE;
+    public List<Object> list = Arrays.<Object>asList("bar", new StringBean());
+    public Map<String, Object> map = Collections.<String, Object>singletonMap("a.b", 2.0);
+    public Map<String, Object> emptyMap = new HashMap<>();
+    public Map<String, Object> transformOnlyMap =
+        Collections.<String, Object>singletonMap("time", FieldValue.serverTimestamp());
+    public Object nullValue = null;
+    @ServerTimestamp public Date timestamp;
+    @DocumentId public String docId;
+  }
+
+  private static class SentinelInArrayBean {
+    public List<Object> list = Collections.<Object>singletonList(FieldValue.serverTimestamp());
+  }
+
   private static <T> T deserialize(String jsonString, Class<T> clazz) {
     return deserialize(jsonString, clazz, /*docRef=*/ null);
   }
@@ -981,6 +1005,41 @@ public class MapperTest {
     return CustomClassMapper.convertToCustomClass(object, clazz, null);
   }
 
+  @Test
+  public void encodeDocumentMatchesEncodedPlainJavaTypes() {
+    EncodedBean bean = new EncodedBean();
+    SortedMap<FieldPath, FieldTransform> transforms = new TreeMap<>();
+    Map<String, Value> fields =
+        CustomClassMapper.encodeDocument(bean, UserDataConverter.NO_DELETES, transforms);
+
+    Value expected =
+        UserDataConverter.encodeValue(
+            FieldPath.empty(), serialize(bean), UserDataConverter.NO_DELETES);
+    assertEquals(expected.getMapValue().getFieldsMap(), fields);
+    assertEquals(
+        Arrays.asList(FieldPath.of("timestamp"), FieldPath.of("transformOnlyMap", "time")),
+        new ArrayList<>(transforms.keySet()));
+
+    assertNull(
+        CustomClassMapper.encodeDocument(
+            "foo", UserDataConverter.NO_DELETES, new TreeMap<FieldPath, FieldTransform>()));
+  }
+
+  @Test
+  public void encodeDocumentRejectsSentinelsInArrays() {
+    assertExceptionContains(
+        "FieldValue.serverTimestamp() is not supported inside of an array.",
+        new Runnable() {
+          @Override
+          public void run() {
+            CustomClassMapper.encodeDocument(
+                new SentinelInArrayBean(),
+                UserDataConverter.NO_DELETES,
+                new TreeMap<FieldPath, FieldTransform>());
+          }
+        });
+  }
+
   @Test
   public void primitiveDeserializeString() {
     StringBean bean = deserialize("{'value': 'foo'}", StringBean.class);
@@ -2834,4 +2893,27 @@ public class MapperTest {
           }
         });
   }
+
+  @Test
+  public void usesGeneratedMapper() {
+    DocumentReference ref =
+        new DocumentReference(
+            firestoreMock,
+            ResourcePath.create(
+                DatabaseRootName.of("test-project", "(default)"),
+                ImmutableList.of("coll", "doc123")));
+    assertNotNull(GeneratedMapper.forClass(GeneratedMapperBean.class));
+
+    GeneratedMapperBean bean = new GeneratedMapperBean();
+    bean.value = "foo";
+    bean.tags = Arrays.asList("a", "b");
+    bean.docRef = ref;
+    assertJson("{'value': 'foo', 'tags': ['a', 'b']}", serialize(bean));
+
+    GeneratedMapperBean deserialized =
+        deserialize("{'value': 'bar', 'tags': ['c']}", GeneratedMapperBean.class, ref);
+    assertEquals("bar", deserialized.value);
+    assertEquals(Collections.singletonList("c"), deserialized.tags);
+    assertEquals(ref, deserialized.docRef);
+  }
 }
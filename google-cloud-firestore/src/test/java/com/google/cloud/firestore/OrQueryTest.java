@@ -0,0 +1,304 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.ServerStreamingCallable;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.spi.v1.FirestoreRpc;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.RunQueryResponse;
+import com.google.firestore.v1.Value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OrQueryTest {
+
+  @Spy
+  private final FirestoreImpl firestoreMock =
+      new FirestoreImpl(
+          FirestoreOptions.newBuilder().setProjectId("test-project").build(),
+          Mockito.mock(FirestoreRpc.class));
+
+  @Captor private ArgumentCaptor<RunQueryRequest> runQuery;
+
+  @Captor private ArgumentCaptor<ResponseObserver<RunQueryResponse>> responseObserverCapture;
+
+  private Query query;
+
+  @Before
+  public void before() {
+    query = firestoreMock.collection("coll");
+  }
+
+  private static RunQueryResponse documentResponse(String documentName) {
+    return RunQueryResponse.newBuilder()
+        .setDocument(Document.newBuilder().setName(documentName))
+        .setReadTime(com.google.protobuf.Timestamp.newBuilder().setSeconds(1).setNanos(2))
+        .build();
+  }
+
+  private static RunQueryResponse documentResponse(String documentName, long value) {
+    return RunQueryResponse.newBuilder()
+        .setDocument(
+            Document.newBuilder()
+                .setName(documentName)
+                .putFields("a", Value.newBuilder().setIntegerValue(value).build()))
+        .setReadTime(com.google.protobuf.Timestamp.newBuilder().setSeconds(1).setNanos(2))
+        .build();
+  }
+
+  /** Returns an answer that streams documents based on the field of the query's filter. */
+  private static Answer<Void> branchResponses() {
+    return new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        RunQueryRequest request = (RunQueryRequest) invocation.getArguments()[0];
+        ResponseObserver<RunQueryResponse> observer =
+            (ResponseObserver<RunQueryResponse>) invocation.getArguments()[1];
+        String field =
+            request.getStructuredQuery().getWhere().getFieldFilter().getField().getFieldPath();
+
+        observer.onStart(Mockito.mock(StreamController.class));
+        List<String> documentIds =
+            field.equals("foo") ? Arrays.asList("1", "3") : Arrays.asList("2", "3");
+        for (String documentId : documentIds) {
+          observer.onResponse(documentResponse(DOCUMENT_NAME + documentId));
+        }
+        observer.onComplete();
+        return null;
+      }
+    };
+  }
+
+  @Test
+  public void mergesResultsInOrder() throws Exception {
+    doAnswer(branchResponses())
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            Matchers.<ResponseObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QuerySnapshot snapshot =
+        query.whereEqualTo("foo", 1).or(query.whereEqualTo("bar", 2)).get().get();
+
+    // The second query runs at the read time of the first query.
+    assertEquals(2, runQuery.getAllValues().size());
+    assertFalse(runQuery.getAllValues().get(0).hasReadTime());
+    assertEquals(
+        Timestamp.ofTimeSecondsAndNanos(1, 2).toProto(),
+        runQuery.getAllValues().get(1).getReadTime());
+    List<String> documentIds = new ArrayList<>();
+    for (QueryDocumentSnapshot document : snapshot) {
+      documentIds.add(document.getId());
+    }
+    assertEquals(Arrays.asList("doc1", "doc2", "doc3"), documentIds);
+  }
+
+  @Test
+  public void getWithReadTime() throws Exception {
+    doAnswer(branchResponses())
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            Matchers.<ResponseObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+
+    Timestamp readTime = Timestamp.ofTimeSecondsAndNanos(1, 2);
+    QuerySnapshot snapshot =
+        query.whereEqualTo("foo", 1).or(query.whereEqualTo("bar", 2)).get(readTime).get();
+
+    assertEquals(2, runQuery.getAllValues().size());
+    for (RunQueryRequest request : runQuery.getAllValues()) {
+      assertEquals(readTime.toProto(), request.getReadTime());
+    }
+    assertEquals(readTime, snapshot.getReadTime());
+    assertEquals(3, snapshot.size());
+  }
+
+  @Test
+  public void mergesResultsInImplicitOrder() throws Exception {
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) {
+                RunQueryRequest request = (RunQueryRequest) invocation.getArguments()[0];
+                ResponseObserver<RunQueryResponse> observer =
+                    (ResponseObserver<RunQueryResponse>) invocation.getArguments()[1];
+                String field =
+                    request
+                        .getStructuredQuery()
+                        .getWhere()
+                        .getCompositeFilter()
+                        .getFilters(1)
+                        .getFieldFilter()
+                        .getField()
+                        .getFieldPath();
+
+                // Both branches are ordered by 'a' and then by document name.
+                observer.onStart(Mockito.mock(StreamController.class));
+                if (field.equals("foo")) {
+                  observer.onResponse(documentResponse(DOCUMENT_NAME + "3", 1));
+                  observer.onResponse(documentResponse(DOCUMENT_NAME + "4", 4));
+                } else {
+                  observer.onResponse(documentResponse(DOCUMENT_NAME + "1", 2));
+                  observer.onResponse(documentResponse(DOCUMENT_NAME + "2", 3));
+                }
+                observer.onComplete();
+                return null;
+              }
+            })
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            Matchers.<ResponseObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+
+    Query inequality = query.whereGreaterThan("a", 0);
+    QuerySnapshot snapshot =
+        inequality
+            .whereEqualTo("foo", 1)
+            .limit(2)
+            .or(inequality.whereEqualTo("bar", 2).limit(2))
+            .get()
+            .get();
+
+    assertEquals(2, snapshot.size());
+    assertEquals("doc3", snapshot.getDocuments().get(0).getId());
+    assertEquals("doc1", snapshot.getDocuments().get(1).getId());
+  }
+
+  @Test
+  public void appliesOffsetAndLimitAfterMerge() throws Exception {
+    doAnswer(branchResponses())
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            Matchers.<ResponseObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QuerySnapshot snapshot =
+        query
+            .whereEqualTo("foo", 1)
+            .offset(1)
+            .limit(1)
+            .or(query.whereEqualTo("bar", 2).offset(1).limit(1))
+            .get()
+            .get();
+
+    for (RunQueryRequest request : runQuery.getAllValues()) {
+      assertEquals(2, request.getStructuredQuery().getLimit().getValue());
+      assertEquals(0, request.getStructuredQuery().getOffset());
+    }
+    assertEquals(1, snapshot.size());
+    assertEquals("doc2", snapshot.getDocuments().get(0).getId());
+  }
+
+  @Test
+  public void cancelsQueriesOnceLimitIsReached() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    final List<String> documentIds = new ArrayList<>();
+    query.whereEqualTo("foo", 1).limit(2).or(query.whereEqualTo("bar", 2).limit(2)).stream(
+        new ApiStreamObserver<DocumentSnapshot>() {
+          @Override
+          public void onNext(DocumentSnapshot documentSnapshot) {
+            documentIds.add(documentSnapshot.getId());
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            fail();
+          }
+
+          @Override
+          public void onCompleted() {
+            documentIds.add("complete");
+          }
+        });
+
+    // The second query is started once the read time of the first query is known.
+    assertEquals(1, responseObserverCapture.getAllValues().size());
+    StreamController first = Mockito.mock(StreamController.class);
+    responseObserverCapture.getValue().onStart(first);
+    responseObserverCapture.getValue().onResponse(documentResponse(DOCUMENT_NAME + "1"));
+
+    List<ResponseObserver<RunQueryResponse>> observers = responseObserverCapture.getAllValues();
+    assertEquals(2, observers.size());
+    StreamController second = Mockito.mock(StreamController.class);
+    observers.get(1).onStart(second);
+
+    // The first result is only known to be next once the second query has returned a result.
+    assertTrue(documentIds.isEmpty());
+    observers.get(1).onResponse(documentResponse(DOCUMENT_NAME + "2"));
+    assertEquals(Arrays.asList("doc1"), documentIds);
+
+    observers.get(0).onResponse(documentResponse(DOCUMENT_NAME + "3"));
+    assertEquals(Arrays.asList("doc1", "doc2", "complete"), documentIds);
+    Mockito.verify(first).cancel();
+    Mockito.verify(second).cancel();
+  }
+
+  @Test
+  public void requiresQueriesThatOnlyDifferInFilters() {
+    List<Query> invalidAlternatives =
+        Arrays.asList(
+            query.whereEqualTo("bar", 2).limit(1),
+            query.whereEqualTo("bar", 2).orderBy("bar"),
+            query.whereGreaterThan("bar", 2),
+            firestoreMock.collection("other").whereEqualTo("bar", 2));
+
+    for (Query alternative : invalidAlternatives) {
+      try {
+        query.whereEqualTo("foo", 1).or(alternative);
+        fail("or() should have failed");
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage().startsWith("Queries combined with or() must"));
+      }
+    }
+  }
+}
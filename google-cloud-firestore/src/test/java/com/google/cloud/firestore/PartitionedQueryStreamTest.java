@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_ROOT;
+import static com.google.cloud.firestore.LocalFirestoreHelper.SINGLE_FIELD_PROTO;
+import static com.google.cloud.firestore.LocalFirestoreHelper.queryResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doAnswer;
+
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.api.gax.rpc.ServerStreamingCallable;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Query.QuerySnapshotObserver;
+import com.google.cloud.firestore.spi.v1.FirestoreRpc;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.RunQueryResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PartitionedQueryStreamTest {
+
+  @Spy
+  private final FirestoreImpl firestoreMock =
+      new FirestoreImpl(
+          FirestoreOptions.newBuilder().setProjectId("test-project").build(),
+          Mockito.mock(FirestoreRpc.class));
+
+  /** The response observers of all started partition queries, in the order they were started. */
+  private final List<ApiStreamObserver<RunQueryResponse>> partitionStreams = new ArrayList<>();
+
+  private final List<String> results = new ArrayList<>();
+  private Throwable error;
+  private Timestamp completedReadTime;
+  private int completions;
+
+  private final QuerySnapshotObserver observer =
+      new QuerySnapshotObserver() {
+        @Override
+        public void onNext(QueryDocumentSnapshot documentSnapshot) {
+          results.add(documentSnapshot.getId());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          error = throwable;
+        }
+
+        @Override
+        public void onCompleted() {
+          completedReadTime = getReadTime();
+          ++completions;
+        }
+      };
+
+  @Before
+  public void before() {
+    doAnswer(
+            new Answer<Void>() {
+              @Override
+              public Void answer(InvocationOnMock invocation) {
+                partitionStreams.add(
+                    (ApiStreamObserver<RunQueryResponse>) invocation.getArguments()[1]);
+                return null;
+              }
+            })
+        .when(firestoreMock)
+        .streamRequest(
+            Matchers.<RunQueryRequest>any(),
+            Matchers.<ApiStreamObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+  }
+
+  private PartitionedQueryStream startStream(int partitionCount, boolean ordered) {
+    return startStream(partitionCount, ordered, /* partitionReadTime= */ null);
+  }
+
+  private PartitionedQueryStream startStream(
+      int partitionCount, boolean ordered, @Nullable Timestamp partitionReadTime) {
+    List<Query> queries = new ArrayList<>();
+    for (int i = 0; i < partitionCount; ++i) {
+      queries.add(firestoreMock.collection("coll"));
+    }
+    PartitionedQueryStream stream =
+        new PartitionedQueryStream(queries, ordered, partitionReadTime, observer);
+    stream.start();
+    assertEquals(partitionCount, partitionStreams.size());
+    return stream;
+  }
+
+  private void sendDocument(int partition, String documentId, long readTimeSeconds) {
+    partitionStreams
+        .get(partition)
+        .onNext(
+            RunQueryResponse.newBuilder()
+                .setDocument(
+                    Document.newBuilder()
+                        .setName(DOCUMENT_ROOT + "coll/" + documentId)
+                        .putAllFields(SINGLE_FIELD_PROTO))
+                .setReadTime(com.google.protobuf.Timestamp.newBuilder().setSeconds(readTimeSeconds))
+                .build());
+  }
+
+  @Test
+  public void forwardsResultsInPartitionOrder() {
+    startStream(3, /* ordered= */ true);
+
+    sendDocument(2, "e", 1);
+    sendDocument(0, "a", 1);
+    sendDocument(1, "c", 3);
+    sendDocument(1, "d", 3);
+    sendDocument(0, "b", 2);
+    assertEquals(Arrays.asList("a", "b"), results);
+
+    partitionStreams.get(2).onCompleted();
+    partitionStreams.get(0).onCompleted();
+    assertEquals(Arrays.asList("a", "b", "c", "d"), results);
+    assertEquals(0, completions);
+
+    partitionStreams.get(1).onCompleted();
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e"), results);
+    assertEquals(1, completions);
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(3, 0), completedReadTime);
+  }
+
+  @Test
+  public void forwardsResultsAsTheyArriveIfUnordered() {
+    startStream(2, /* ordered= */ false);
+
+    sendDocument(1, "c", 1);
+    sendDocument(0, "a", 1);
+    sendDocument(1, "d", 1);
+    assertEquals(Arrays.asList("c", "a", "d"), results);
+
+    partitionStreams.get(1).onCompleted();
+    partitionStreams.get(0).onCompleted();
+    assertEquals(1, completions);
+  }
+
+  @Test
+  public void stopsAfterFirstError() {
+    startStream(2, /* ordered= */ true);
+    Exception exception = new Exception("Mock runQuery failed in test");
+
+    sendDocument(0, "a", 1);
+    sendDocument(1, "c", 1);
+    partitionStreams.get(1).onError(exception);
+    partitionStreams.get(0).onError(new Exception("Second failure"));
+    sendDocument(0, "b", 1);
+    partitionStreams.get(0).onCompleted();
+
+    assertSame(exception, error);
+    assertEquals(Arrays.asList("a"), results);
+    assertEquals(0, completions);
+  }
+
+  @Test
+  public void readsAllPartitionsAtReadTime() {
+    Timestamp readTime = Timestamp.ofTimeSecondsAndNanos(5, 0);
+    startStream(2, /* ordered= */ true, readTime);
+
+    ArgumentCaptor<RunQueryRequest> requests = ArgumentCaptor.forClass(RunQueryRequest.class);
+    Mockito.verify(firestoreMock, Mockito.times(2))
+        .streamRequest(
+            requests.capture(),
+            Matchers.<ApiStreamObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+    for (RunQueryRequest request : requests.getAllValues()) {
+      assertEquals(readTime.toProto(), request.getReadTime());
+    }
+  }
+
+  @Test
+  public void completesWithoutPartitions() {
+    startStream(0, /* ordered= */ true);
+    assertEquals(1, completions);
+    assertNull(error);
+  }
+
+  @Test
+  public void getPartitionedReturnsAllResults() throws Exception {
+    doAnswer(queryResponse(DOCUMENT_ROOT + "coll/doc1", DOCUMENT_ROOT + "coll/doc2"))
+        .when(firestoreMock)
+        .streamRequest(
+            Matchers.<RunQueryRequest>any(),
+            Matchers.<ApiStreamObserver>any(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QuerySnapshot snapshot = firestoreMock.collectionGroup("coll").getPartitioned(1).get();
+    assertEquals(2, snapshot.size());
+    assertEquals("doc1", snapshot.getDocuments().get(0).getId());
+    assertEquals("doc2", snapshot.getDocuments().get(1).getId());
+    assertEquals(Timestamp.ofTimeSecondsAndNanos(1, 2), snapshot.getReadTime());
+  }
+}
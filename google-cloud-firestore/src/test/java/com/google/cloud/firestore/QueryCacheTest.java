@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_NAME;
+import static com.google.cloud.firestore.LocalFirestoreHelper.queryResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+
+import com.google.api.core.ApiClock;
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.api.gax.rpc.ServerStreamingCallable;
+import com.google.cloud.firestore.spi.v1.FirestoreRpc;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.RunQueryResponse;
+import io.grpc.Status;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryCacheTest {
+
+  @Spy
+  private final FirestoreImpl firestoreMock =
+      new FirestoreImpl(
+          FirestoreOptions.newBuilder().setProjectId("test-project").build(),
+          Mockito.mock(FirestoreRpc.class));
+
+  @Captor private ArgumentCaptor<RunQueryRequest> runQuery;
+
+  @Captor private ArgumentCaptor<ApiStreamObserver<RunQueryResponse>> streamObserverCapture;
+
+  private long nanoTime = 0;
+
+  private final ApiClock clock =
+      new ApiClock() {
+        @Override
+        public long nanoTime() {
+          return nanoTime;
+        }
+
+        @Override
+        public long millisTime() {
+          return TimeUnit.NANOSECONDS.toMillis(nanoTime);
+        }
+      };
+
+  private QueryCache cache;
+
+  @Before
+  public void before() {
+    cache =
+        QueryCache.newBuilder()
+            .setMaxStaleness(10, TimeUnit.SECONDS)
+            .setMaxSizeBytes(1024)
+            .setClock(clock)
+            .build();
+  }
+
+  private void stubQueryResponse() {
+    doAnswer(queryResponse(DOCUMENT_NAME + "1", DOCUMENT_NAME + "2"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+  }
+
+  @Test
+  public void returnsCachedResultsUntilStale() throws Exception {
+    stubQueryResponse();
+
+    QuerySnapshot snapshot =
+        cache.get(firestoreMock.collection("coll").whereEqualTo("foo", 1)).get();
+    assertEquals(2, snapshot.size());
+
+    nanoTime = TimeUnit.SECONDS.toNanos(10);
+    // An identical query that is created separately uses the same cache entry.
+    assertSame(snapshot, cache.get(firestoreMock.collection("coll").whereEqualTo("foo", 1)).get());
+    assertEquals(1, runQuery.getAllValues().size());
+
+    nanoTime = TimeUnit.SECONDS.toNanos(11);
+    assertEquals(
+        2, cache.get(firestoreMock.collection("coll").whereEqualTo("foo", 1)).get().size());
+    assertEquals(2, runQuery.getAllValues().size());
+  }
+
+  @Test
+  public void sharesConcurrentQueries() throws Exception {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    Query query = firestoreMock.collection("coll");
+    ApiFuture<QuerySnapshot> first = cache.get(query);
+    ApiFuture<QuerySnapshot> second = cache.get(query);
+    assertEquals(1, runQuery.getAllValues().size());
+    assertFalse(first.isDone());
+
+    streamObserverCapture.getValue().onCompleted();
+    assertSame(first.get(), second.get());
+  }
+
+  @Test
+  public void doesNotCacheFailures() throws Exception {
+    doAnswer(
+            queryResponse(
+                FirestoreException.forServerRejection(Status.PERMISSION_DENIED, "Test failure")))
+        .doAnswer(queryResponse(DOCUMENT_NAME + "1"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    Query query = firestoreMock.collection("coll");
+    try {
+      cache.get(query).get();
+      fail("Expected exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof FirestoreException);
+    }
+    assertEquals(1, cache.get(query).get().size());
+    assertEquals(2, runQuery.getAllValues().size());
+  }
+
+  @Test
+  public void failsQueriesThatCannotBeSent() throws Exception {
+    // limitToLast() queries without an orderBy() clause fail before they are sent.
+    Query query = firestoreMock.collection("coll").limitToLast(1);
+    for (int i = 0; i < 2; ++i) {
+      try {
+        cache.get(query).get(1, TimeUnit.SECONDS);
+        fail("Expected exception");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedResults() throws Exception {
+    stubQueryResponse();
+
+    Query first = firestoreMock.collection("coll").whereEqualTo("foo", 1);
+    Query second = firestoreMock.collection("coll").whereEqualTo("foo", 2);
+    cache.get(first).get();
+    long resultSize = cache.getSizeBytes();
+    assertTrue(resultSize > 0);
+
+    cache =
+        QueryCache.newBuilder()
+            .setMaxStaleness(10, TimeUnit.SECONDS)
+            .setMaxSizeBytes(2 * resultSize)
+            .setClock(clock)
+            .build();
+    cache.get(first).get();
+    cache.get(second).get();
+    cache.get(first).get();
+    assertEquals(3, runQuery.getAllValues().size());
+
+    // The third result evicts the second query, which was used least recently.
+    cache.get(firestoreMock.collection("coll").whereEqualTo("foo", 3)).get();
+    assertEquals(2 * resultSize, cache.getSizeBytes());
+    cache.get(first).get();
+    assertEquals(4, runQuery.getAllValues().size());
+    cache.get(second).get();
+    assertEquals(5, runQuery.getAllValues().size());
+  }
+
+  @Test
+  public void invalidateRemovesResults() throws Exception {
+    stubQueryResponse();
+
+    Query query = firestoreMock.collection("coll");
+    cache.get(query).get();
+    cache.invalidate(query);
+    assertEquals(0, cache.getSizeBytes());
+    cache.get(query).get();
+    assertEquals(2, runQuery.getAllValues().size());
+  }
+}
@@ -17,8 +17,10 @@
 package com.google.cloud.firestore;
 
 import static com.google.cloud.firestore.LocalFirestoreHelper.COLLECTION_ID;
+import static com.google.cloud.firestore.LocalFirestoreHelper.DATABASE_NAME;
 import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_NAME;
 import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_PATH;
+import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_ROOT;
 import static com.google.cloud.firestore.LocalFirestoreHelper.SINGLE_FIELD_SNAPSHOT;
 import static com.google.cloud.firestore.LocalFirestoreHelper.endAt;
 import static com.google.cloud.firestore.LocalFirestoreHelper.filter;
@@ -37,18 +39,29 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.api.gax.rpc.ResponseObserver;
 import com.google.api.gax.rpc.ServerStreamingCallable;
+import com.google.api.gax.rpc.StreamController;
+import com.google.api.gax.rpc.UnaryCallable;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.Query.ComparisonFilter;
 import com.google.cloud.firestore.Query.FieldFilter;
 import com.google.cloud.firestore.spi.v1.FirestoreRpc;
+import com.google.cloud.firestore.v1.FirestoreClient.PartitionQueryPagedResponse;
 import com.google.common.io.BaseEncoding;
 import com.google.firestore.v1.ArrayValue;
+import com.google.firestore.v1.Cursor;
+import com.google.firestore.v1.Document;
+import com.google.firestore.v1.MapValue;
+import com.google.firestore.v1.PartitionQueryRequest;
 import com.google.firestore.v1.RunQueryRequest;
 import com.google.firestore.v1.RunQueryResponse;
 import com.google.firestore.v1.StructuredQuery;
+import com.google.firestore.v1.StructuredQuery.CollectionSelector;
 import com.google.firestore.v1.StructuredQuery.Direction;
 import com.google.firestore.v1.StructuredQuery.FieldFilter.Operator;
 import com.google.firestore.v1.Value;
@@ -57,6 +70,7 @@ import io.grpc.Status;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -87,6 +101,10 @@ public class QueryTest {
 
   @Captor private ArgumentCaptor<ApiStreamObserver> streamObserverCapture;
 
+  @Captor private ArgumentCaptor<PartitionQueryRequest> partitionRequest;
+
+  @Captor private ArgumentCaptor<ResponseObserver<RunQueryResponse>> responseObserverCapture;
+
   private Query query;
 
   @Before
@@ -94,6 +112,13 @@ public class QueryTest {
     query = firestoreMock.collection(COLLECTION_ID);
   }
 
+  private static RunQueryResponse documentResponse(String documentName) {
+    return RunQueryResponse.newBuilder()
+        .setDocument(Document.newBuilder().setName(documentName))
+        .setReadTime(com.google.protobuf.Timestamp.newBuilder().setSeconds(1).setNanos(2))
+        .build();
+  }
+
   @Test
   public void withLimit() throws Exception {
     doAnswer(queryResponse())
@@ -179,23 +204,134 @@ public class QueryTest {
   }
 
   @Test
-  public void limitToLastRejectsStream() {
-    doAnswer(queryResponse())
+  public void getWithReadTime() throws Exception {
+    doAnswer(queryResponse(DOCUMENT_NAME + "1"))
         .when(firestoreMock)
         .streamRequest(
             runQuery.capture(),
             streamObserverCapture.capture(),
             Matchers.<ServerStreamingCallable>any());
 
-    try {
-      query.orderBy("foo").limitToLast(1).stream(null);
-      fail("Expected exception");
-    } catch (IllegalStateException e) {
-      assertEquals(
-          e.getMessage(),
-          "Query results for queries that include limitToLast() constraints cannot be streamed. "
-              + "Use Query.get() instead.");
-    }
+    Timestamp readTime = Timestamp.ofTimeSecondsAndNanos(1, 2);
+    QuerySnapshot snapshot = query.get(readTime).get();
+
+    assertEquals(1, snapshot.size());
+    assertEquals(readTime.toProto(), runQuery.getValue().getReadTime());
+    assertTrue(runQuery.getValue().getTransaction().isEmpty());
+  }
+
+  @Test
+  public void limitToLastStreamsResultsInOrder() throws Exception {
+    doAnswer(queryResponse(DOCUMENT_NAME + "3", DOCUMENT_NAME + "2", DOCUMENT_NAME + "1"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    final List<String> documentIds = new ArrayList<>();
+    query.orderBy("foo").limitToLast(3).stream(
+        new ApiStreamObserver<DocumentSnapshot>() {
+          @Override
+          public void onNext(DocumentSnapshot documentSnapshot) {
+            documentIds.add(documentSnapshot.getId());
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            fail();
+          }
+
+          @Override
+          public void onCompleted() {
+            documentIds.add("complete");
+          }
+        });
+
+    assertEquals(Arrays.asList("doc1", "doc2", "doc3", "complete"), documentIds);
+  }
+
+  @Test
+  public void limitToLastStreamsWithFlowControlOnceCompleted() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    final List<String> documentIds = new ArrayList<>();
+    final StreamController[] downstream = new StreamController[1];
+    query
+        .orderBy("foo")
+        .limitToLast(2)
+        .streamWithFlowControl(
+            new ResponseObserver<DocumentSnapshot>() {
+              @Override
+              public void onStart(StreamController controller) {
+                downstream[0] = controller;
+                controller.disableAutoInboundFlowControl();
+                controller.request(1);
+              }
+
+              @Override
+              public void onResponse(DocumentSnapshot documentSnapshot) {
+                documentIds.add(documentSnapshot.getId());
+              }
+
+              @Override
+              public void onError(Throwable throwable) {
+                fail();
+              }
+
+              @Override
+              public void onComplete() {
+                documentIds.add("complete");
+              }
+            });
+
+    // All results are fetched, since the first result arrives last.
+    StreamController upstream = Mockito.mock(StreamController.class);
+    ResponseObserver<RunQueryResponse> responseObserver = responseObserverCapture.getValue();
+    responseObserver.onStart(upstream);
+    Mockito.verifyZeroInteractions(upstream);
+
+    responseObserver.onResponse(documentResponse(DOCUMENT_NAME + "2"));
+    responseObserver.onResponse(documentResponse(DOCUMENT_NAME + "1"));
+    assertTrue(documentIds.isEmpty());
+
+    responseObserver.onComplete();
+    assertEquals(Arrays.asList("doc1"), documentIds);
+
+    downstream[0].request(1);
+    assertEquals(Arrays.asList("doc1", "doc2", "complete"), documentIds);
+  }
+
+  @Test
+  public void limitToLastResumesBeforeLastReceivedDocument() throws Exception {
+    doAnswer(
+            queryResponse(
+                FirestoreException.forServerRejection(
+                    Status.DEADLINE_EXCEEDED, "Simulated test failure"),
+                DOCUMENT_NAME + "2"))
+        .doAnswer(queryResponse(DOCUMENT_NAME + "1"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QuerySnapshot querySnapshot = query.orderBy("foo").limitToLast(2).get().get();
+
+    assertEquals(2, querySnapshot.size());
+    assertEquals("doc1", querySnapshot.getDocuments().get(0).getId());
+    assertEquals("doc2", querySnapshot.getDocuments().get(1).getId());
+
+    // The backend streams the results in reverse order, so the query resumes in reverse order.
+    StructuredQuery retry = runQuery.getAllValues().get(1).getStructuredQuery();
+    assertEquals(Direction.DESCENDING, retry.getOrderBy(0).getDirection());
+    assertTrue(retry.hasStartAt());
+    assertFalse(retry.getStartAt().getBefore());
   }
 
   @Test
@@ -1035,12 +1171,566 @@ public class QueryTest {
     assertEquals(1, runQuery.getAllValues().size());
   }
 
+  @Test
+  public void streamWithFlowControlForwardsDemand() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    final List<String> documentIds = new ArrayList<>();
+    final StreamController[] downstream = new StreamController[1];
+    query.streamWithFlowControl(
+        new ResponseObserver<DocumentSnapshot>() {
+          @Override
+          public void onStart(StreamController controller) {
+            downstream[0] = controller;
+            controller.disableAutoInboundFlowControl();
+            controller.request(2);
+          }
+
+          @Override
+          public void onResponse(DocumentSnapshot documentSnapshot) {
+            documentIds.add(documentSnapshot.getId());
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            fail();
+          }
+
+          @Override
+          public void onComplete() {
+            documentIds.add("complete");
+          }
+        });
+
+    StreamController upstream = Mockito.mock(StreamController.class);
+    ResponseObserver<RunQueryResponse> responseObserver = responseObserverCapture.getValue();
+    responseObserver.onStart(upstream);
+    Mockito.verify(upstream).disableAutoInboundFlowControl();
+    Mockito.verify(upstream).request(2);
+
+    // Responses without a document are replaced by requesting another response.
+    responseObserver.onResponse(
+        RunQueryResponse.newBuilder()
+            .setReadTime(com.google.protobuf.Timestamp.newBuilder().setSeconds(1))
+            .build());
+    Mockito.verify(upstream).request(1);
+
+    responseObserver.onResponse(documentResponse(DOCUMENT_NAME + "1"));
+    downstream[0].request(3);
+    Mockito.verify(upstream).request(3);
+    Mockito.verifyNoMoreInteractions(upstream);
+
+    responseObserver.onComplete();
+    assertEquals(Arrays.asList("doc1", "complete"), documentIds);
+  }
+
+  @Test
+  public void streamWithFlowControlRetriesWithOutstandingDemand() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    final List<String> documentIds = new ArrayList<>();
+    query.streamWithFlowControl(
+        new ResponseObserver<DocumentSnapshot>() {
+          @Override
+          public void onStart(StreamController controller) {
+            controller.disableAutoInboundFlowControl();
+            controller.request(5);
+          }
+
+          @Override
+          public void onResponse(DocumentSnapshot documentSnapshot) {
+            documentIds.add(documentSnapshot.getId());
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            fail();
+          }
+
+          @Override
+          public void onComplete() {}
+        });
+
+    StreamController firstStream = Mockito.mock(StreamController.class);
+    responseObserverCapture.getValue().onStart(firstStream);
+    responseObserverCapture.getValue().onResponse(documentResponse(DOCUMENT_NAME + "1"));
+    responseObserverCapture.getValue().onResponse(documentResponse(DOCUMENT_NAME + "2"));
+    responseObserverCapture
+        .getValue()
+        .onError(
+            FirestoreException.forServerRejection(
+                Status.DEADLINE_EXCEEDED, "Simulated test failure"));
+
+    StreamController secondStream = Mockito.mock(StreamController.class);
+    responseObserverCapture.getValue().onStart(secondStream);
+    Mockito.verify(secondStream).request(3);
+    responseObserverCapture.getValue().onResponse(documentResponse(DOCUMENT_NAME + "3"));
+
+    assertEquals(Arrays.asList("doc1", "doc2", "doc3"), documentIds);
+    List<RunQueryRequest> requests = runQuery.getAllValues();
+    assertEquals(2, requests.size());
+    assertEquals(
+        DOCUMENT_NAME + "2",
+        requests.get(1).getStructuredQuery().getStartAt().getValues(0).getReferenceValue());
+  }
+
+  @Test
+  public void iterateFetchesResultsAsTheyAreConsumed() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QueryDocumentIterator iterator = query.iterate(4);
+
+    StreamController upstream = Mockito.mock(StreamController.class);
+    ResponseObserver<RunQueryResponse> responseObserver = responseObserverCapture.getValue();
+    responseObserver.onStart(upstream);
+    Mockito.verify(upstream).request(4);
+
+    for (int i = 1; i <= 4; ++i) {
+      responseObserver.onResponse(documentResponse(DOCUMENT_NAME + i));
+    }
+
+    assertEquals("doc1", iterator.next().getId());
+    Mockito.verify(upstream, Mockito.never()).request(2);
+    assertEquals("doc2", iterator.next().getId());
+    Mockito.verify(upstream).request(2);
+
+    responseObserver.onResponse(documentResponse(DOCUMENT_NAME + "5"));
+    responseObserver.onComplete();
+
+    List<String> remaining = new ArrayList<>();
+    while (iterator.hasNext()) {
+      remaining.add(iterator.next().getId());
+    }
+    assertEquals(Arrays.asList("doc3", "doc4", "doc5"), remaining);
+  }
+
+  @Test
+  public void iterateThrowsQueryErrors() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QueryDocumentIterator iterator = query.iterate(2);
+    responseObserverCapture.getValue().onStart(Mockito.mock(StreamController.class));
+    responseObserverCapture.getValue().onResponse(documentResponse(DOCUMENT_NAME + "1"));
+    responseObserverCapture
+        .getValue()
+        .onError(
+            FirestoreException.forServerRejection(
+                Status.PERMISSION_DENIED, "Simulated test failure"));
+
+    assertEquals("doc1", iterator.next().getId());
+    try {
+      iterator.hasNext();
+      fail("hasNext() should have failed");
+    } catch (FirestoreException e) {
+      assertEquals(Status.PERMISSION_DENIED, e.getStatus());
+    }
+  }
+
+  @Test
+  public void closingIteratorCancelsQuery() {
+    doNothing()
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            responseObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    QueryDocumentIterator iterator = query.iterate(2);
+    StreamController upstream = Mockito.mock(StreamController.class);
+    responseObserverCapture.getValue().onStart(upstream);
+    responseObserverCapture.getValue().onResponse(documentResponse(DOCUMENT_NAME + "1"));
+
+    iterator.close();
+    Mockito.verify(upstream).cancel();
+    assertFalse(iterator.hasNext());
+  }
+
+  private QueryDocumentSnapshot nestedFieldSnapshot(String id, Value value) {
+    return QueryDocumentSnapshot.fromDocument(
+        firestoreMock,
+        Timestamp.now(),
+        Document.newBuilder()
+            .setName(DOCUMENT_ROOT + "coll/" + id)
+            .putFields(
+                "a",
+                Value.newBuilder().setMapValue(MapValue.newBuilder().putFields("b", value)).build())
+            .build());
+  }
+
+  @Test
+  public void comparatorOrdersByFieldsAndDocumentName() {
+    List<QueryDocumentSnapshot> documents =
+        Arrays.asList(
+            nestedFieldSnapshot("doc1", string("foo")),
+            nestedFieldSnapshot("doc3", string("bar")),
+            nestedFieldSnapshot("doc2", string("bar")));
+    List<QueryDocumentSnapshot> sorted = new ArrayList<>(documents);
+
+    // Documents with equal fields are ordered by name, in the direction of the last ordering.
+    Collections.sort(sorted, query.orderBy("a.b", Query.Direction.DESCENDING).comparator());
+    assertEquals(Arrays.asList(documents.get(0), documents.get(1), documents.get(2)), sorted);
+
+    Collections.sort(sorted, query.orderBy("a.b").comparator());
+    assertEquals(Arrays.asList(documents.get(2), documents.get(1), documents.get(0)), sorted);
+
+    try {
+      query.orderBy("a.c").comparator().compare(documents.get(0), documents.get(1));
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().startsWith("Can only compare fields that exist"));
+    }
+  }
+
+  @Test
+  public void paginatePrefetchesNextPage() {
+    final Iterator<Answer<RunQueryResponse>> responses =
+        Arrays.asList(
+                queryResponse(DOCUMENT_NAME + "1", DOCUMENT_NAME + "2"),
+                queryResponse(DOCUMENT_NAME + "3", DOCUMENT_NAME + "4"),
+                queryResponse(DOCUMENT_NAME + "5"))
+            .iterator();
+    doAnswer(
+            new Answer<RunQueryResponse>() {
+              public RunQueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                return responses.next().answer(invocation);
+              }
+            })
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    Iterator<QuerySnapshot> pages = query.paginate(2).iterator();
+    assertEquals(1, runQuery.getAllValues().size());
+
+    QuerySnapshot page = pages.next();
+    assertEquals(2, page.size());
+    // The second page is requested before the first page is processed.
+    assertEquals(2, runQuery.getAllValues().size());
+
+    assertEquals("doc3", pages.next().getDocuments().get(0).getId());
+    assertEquals("doc5", pages.next().getDocuments().get(0).getId());
+    assertFalse(pages.hasNext());
+
+    List<RunQueryRequest> requests = runQuery.getAllValues();
+    assertEquals(3, requests.size());
+    assertEquals(query(limit(2)), requests.get(0));
+    StructuredQuery secondPage = requests.get(1).getStructuredQuery();
+    assertEquals(2, secondPage.getLimit().getValue());
+    assertFalse(secondPage.getStartAt().getBefore());
+    assertEquals(DOCUMENT_NAME + "2", secondPage.getStartAt().getValues(0).getReferenceValue());
+  }
+
+  @Test
+  public void paginateAppliesOffsetToFirstPageOnly() {
+    final Iterator<Answer<RunQueryResponse>> responses =
+        Arrays.asList(
+                queryResponse(DOCUMENT_NAME + "4", DOCUMENT_NAME + "5"),
+                queryResponse(DOCUMENT_NAME + "6"))
+            .iterator();
+    doAnswer(
+            new Answer<RunQueryResponse>() {
+              public RunQueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                return responses.next().answer(invocation);
+              }
+            })
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    Iterator<QuerySnapshot> pages = query.offset(3).paginate(2).iterator();
+    assertEquals("doc4", pages.next().getDocuments().get(0).getId());
+    assertEquals("doc6", pages.next().getDocuments().get(0).getId());
+    assertFalse(pages.hasNext());
+
+    List<RunQueryRequest> requests = runQuery.getAllValues();
+    assertEquals(2, requests.size());
+    assertEquals(query(limit(2), offset(3)), requests.get(0));
+    StructuredQuery secondPage = requests.get(1).getStructuredQuery();
+    assertEquals(0, secondPage.getOffset());
+    assertEquals(DOCUMENT_NAME + "5", secondPage.getStartAt().getValues(0).getReferenceValue());
+  }
+
+  @Test
+  public void splitsOversizedDisjunctions() throws Exception {
+    doAnswer(
+            new Answer<RunQueryResponse>() {
+              public RunQueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                RunQueryRequest request = (RunQueryRequest) invocation.getArguments()[0];
+                int valueCount =
+                    request
+                        .getStructuredQuery()
+                        .getWhere()
+                        .getFieldFilter()
+                        .getValue()
+                        .getArrayValue()
+                        .getValuesCount();
+                return valueCount == 10
+                    ? queryResponse(DOCUMENT_NAME + "3", DOCUMENT_NAME + "1").answer(invocation)
+                    : queryResponse(DOCUMENT_NAME + "1", DOCUMENT_NAME + "2").answer(invocation);
+              }
+            })
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    List<Object> values = new ArrayList<>();
+    for (int i = 0; i < 15; ++i) {
+      values.add(i);
+    }
+    QuerySnapshot snapshot = query.whereIn("foo", values).limit(2).get().get();
+
+    List<RunQueryRequest> requests = runQuery.getAllValues();
+    assertEquals(2, requests.size());
+    for (RunQueryRequest request : requests) {
+      assertEquals(2, request.getStructuredQuery().getLimit().getValue());
+    }
+
+    assertEquals(2, snapshot.size());
+    assertEquals("doc1", snapshot.getDocuments().get(0).getId());
+    assertEquals("doc2", snapshot.getDocuments().get(1).getId());
+  }
+
+  @Test
+  public void sortsOversizedDisjunctionsByImplicitOrder() throws Exception {
+    doAnswer(
+            new Answer<RunQueryResponse>() {
+              public RunQueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                RunQueryRequest request = (RunQueryRequest) invocation.getArguments()[0];
+                StructuredQuery.Filter inFilter =
+                    request.getStructuredQuery().getWhere().getCompositeFilter().getFilters(0);
+                int valueCount =
+                    inFilter.getFieldFilter().getValue().getArrayValue().getValuesCount();
+                return valueCount == 10
+                    ? orderedResponse("doc3", 1, "doc4", 4).answer(invocation)
+                    : orderedResponse("doc1", 2, "doc2", 3).answer(invocation);
+              }
+            })
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    List<Object> values = new ArrayList<>();
+    for (int i = 0; i < 15; ++i) {
+      values.add(i);
+    }
+    QuerySnapshot snapshot =
+        query.whereIn("foo", values).whereGreaterThan("a", 0).limit(2).get().get();
+
+    assertEquals(2, runQuery.getAllValues().size());
+    assertEquals(2, snapshot.size());
+    assertEquals("doc3", snapshot.getDocuments().get(0).getId());
+    assertEquals("doc1", snapshot.getDocuments().get(1).getId());
+  }
+
+  /** Returns documents with the given ids and values for field 'a', in the given order. */
+  private static Answer<RunQueryResponse> orderedResponse(
+      String id1, long value1, String id2, long value2) {
+    RunQueryResponse[] responses = new RunQueryResponse[2];
+    String[] ids = {id1, id2};
+    long[] values = {value1, value2};
+    for (int i = 0; i < 2; ++i) {
+      responses[i] =
+          RunQueryResponse.newBuilder()
+              .setDocument(
+                  Document.newBuilder()
+                      .setName(DOCUMENT_ROOT + "coll/" + ids[i])
+                      .putFields("a", Value.newBuilder().setIntegerValue(values[i]).build()))
+              .setReadTime(com.google.protobuf.Timestamp.newBuilder().setSeconds(1).setNanos(2))
+              .build();
+    }
+    return LocalFirestoreHelper.streamingResponse(responses, /* throwable= */ null);
+  }
+
   @Test
   public void equalsTest() {
     assertEquals(query.limit(42).offset(1337), query.offset(1337).limit(42));
     assertEquals(query.limit(42).offset(1337).hashCode(), query.offset(1337).limit(42).hashCode());
   }
 
+  @Test
+  public void partitionsCollectionQuery() throws Exception {
+    PartitionQueryPagedResponse response = Mockito.mock(PartitionQueryPagedResponse.class);
+    Mockito.when(response.iterateAll())
+        .thenReturn(
+            Arrays.asList(
+                Cursor.newBuilder().addValues(reference(DOCUMENT_ROOT + "coll/b")).build(),
+                // Partition points in subcollections are mapped to their ancestor in the
+                // collection.
+                Cursor.newBuilder().addValues(reference(DOCUMENT_ROOT + "coll/b/coll/x")).build(),
+                Cursor.newBuilder().addValues(reference(DOCUMENT_ROOT + "coll/c/coll/y")).build()));
+    Mockito.doReturn(ApiFutures.immediateFuture(response))
+        .when(firestoreMock)
+        .sendRequest(partitionRequest.capture(), Matchers.<UnaryCallable>any());
+
+    Query filteredQuery = query.whereEqualTo("foo", "bar");
+    List<QueryPartition> partitions = filteredQuery.getPartitions(5).get();
+
+    PartitionQueryRequest request = partitionRequest.getValue();
+    assertEquals(DATABASE_NAME + "/documents", request.getParent());
+    assertEquals(4, request.getPartitionCount());
+    assertEquals(
+        CollectionSelector.newBuilder().setCollectionId("coll").setAllDescendants(true).build(),
+        request.getStructuredQuery().getFrom(0));
+    assertFalse(request.getStructuredQuery().hasWhere());
+
+    DocumentReference b = firestoreMock.document("coll/b");
+    DocumentReference c = firestoreMock.document("coll/c");
+    Query partitionQuery = filteredQuery.orderBy(FieldPath.documentId());
+    assertEquals(
+        Arrays.asList(
+            new QueryPartition(partitionQuery, null, new Object[] {b}),
+            new QueryPartition(partitionQuery, new Object[] {b}, new Object[] {c}),
+            new QueryPartition(partitionQuery, new Object[] {c}, null)),
+        partitions);
+    assertEquals(
+        partitionQuery.startAt(b).endBefore(c).toProto(),
+        partitions.get(1).createQuery().toProto());
+  }
+
+  @Test
+  public void keysOnlyReadsDocumentNamesAndOrderFields() throws Exception {
+    doAnswer(queryResponse(DOCUMENT_NAME + "1", DOCUMENT_NAME + "2"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    List<DocumentReference> keys = query.whereGreaterThan("foo", "bar").keys().get();
+
+    assertEquals(
+        Arrays.asList(firestoreMock.document("coll/doc1"), firestoreMock.document("coll/doc2")),
+        keys);
+    StructuredQuery.Projection projection = runQuery.getValue().getStructuredQuery().getSelect();
+    assertEquals(2, projection.getFieldsCount());
+    assertEquals("__name__", projection.getFields(0).getFieldPath());
+    assertEquals("foo", projection.getFields(1).getFieldPath());
+  }
+
+  @Test
+  public void countResumesWithRemainingLimit() throws Exception {
+    doAnswer(
+            queryResponse(
+                FirestoreException.forServerRejection(
+                    Status.DEADLINE_EXCEEDED, "Simulated test failure"),
+                DOCUMENT_NAME + "1"))
+        .doAnswer(queryResponse(DOCUMENT_NAME + "2"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    assertEquals(2L, (long) query.offset(1).limit(3).countAsync().get());
+
+    List<RunQueryRequest> requests = runQuery.getAllValues();
+    assertEquals(2, requests.size());
+    assertEquals(1, requests.get(0).getStructuredQuery().getOffset());
+    assertEquals(0, requests.get(1).getStructuredQuery().getOffset());
+    assertEquals(2, requests.get(1).getStructuredQuery().getLimit().getValue());
+    assertTrue(requests.get(1).getStructuredQuery().hasStartAt());
+  }
+
+  @Test
+  public void countScansPartitionsInParallel() throws Exception {
+    PartitionQueryPagedResponse response = Mockito.mock(PartitionQueryPagedResponse.class);
+    Mockito.when(response.iterateAll())
+        .thenReturn(
+            Collections.singletonList(
+                Cursor.newBuilder().addValues(reference(DOCUMENT_ROOT + "coll/b")).build()));
+    Mockito.doReturn(ApiFutures.immediateFuture(response))
+        .when(firestoreMock)
+        .sendRequest(partitionRequest.capture(), Matchers.<UnaryCallable>any());
+    doAnswer(queryResponse(DOCUMENT_NAME + "1", DOCUMENT_NAME + "2"))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+
+    assertEquals(4L, (long) query.countAsync(2).get());
+    assertEquals(2, runQuery.getAllValues().size());
+  }
+
+  @Test
+  public void partitionsDropPointsInCollectionsWithTheSameIdUnderOtherParents() throws Exception {
+    PartitionQueryPagedResponse response = Mockito.mock(PartitionQueryPagedResponse.class);
+    Mockito.when(response.iterateAll())
+        .thenReturn(
+            Arrays.asList(
+                Cursor.newBuilder().addValues(reference(DOCUMENT_ROOT + "coll/b")).build(),
+                Cursor.newBuilder().addValues(reference(DOCUMENT_ROOT + "other/o/coll/x")).build(),
+                Cursor.newBuilder()
+                    .addValues(reference(DOCUMENT_ROOT + "users/u1/coll/y"))
+                    .build()));
+    Mockito.doReturn(ApiFutures.immediateFuture(response))
+        .when(firestoreMock)
+        .sendRequest(partitionRequest.capture(), Matchers.<UnaryCallable>any());
+
+    List<QueryPartition> partitions = query.getPartitions(4).get();
+
+    DocumentReference b = firestoreMock.document("coll/b");
+    Query partitionQuery = query.orderBy(FieldPath.documentId());
+    assertEquals(
+        Arrays.asList(
+            new QueryPartition(partitionQuery, null, new Object[] {b}),
+            new QueryPartition(partitionQuery, new Object[] {b}, null)),
+        partitions);
+    for (QueryPartition partition : partitions) {
+      partition.createQuery();
+    }
+  }
+
+  @Test
+  public void partitionsRequireEqualityFilters() {
+    List<Query> invalidQueries =
+        Arrays.asList(
+            query.whereGreaterThan("foo", "bar"),
+            query.whereNotEqualTo("foo", "bar"),
+            query.orderBy("foo"),
+            query.orderBy(FieldPath.documentId(), Query.Direction.DESCENDING),
+            query.limit(1),
+            query.offset(1),
+            query.orderBy(FieldPath.documentId()).startAt("foo"));
+
+    for (Query invalidQuery : invalidQueries) {
+      try {
+        invalidQuery.getPartitions(2);
+        fail("getPartitions() should have failed");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage().startsWith("Cannot partition a query"));
+      }
+    }
+  }
+
   @Test
   public void serializationTest() {
     assertSerialization(query);
@@ -21,7 +21,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -113,4 +116,90 @@ public class RateLimiterTest {
     // Check that maximum rate limit is enforced.
     assertEquals(1000000, limiter.calculateCapacity(new Date(1000 * 60 * 1000).getTime()));
   }
+
+  @Test
+  public void reducesCapacityMultiplicatively() {
+    long timestamp = new Date(0).getTime();
+    limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp, timestamp);
+    assertEquals(250, limiter.calculateCapacity(timestamp));
+
+    // Available tokens are capped at the reduced capacity.
+    assertFalse(limiter.tryMakeRequest(251, timestamp));
+    assertTrue(limiter.tryMakeRequest(250, timestamp));
+
+    limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp + 1, timestamp + 1);
+    assertEquals(125, limiter.calculateCapacity(timestamp + 1));
+
+    // Capacity never drops below the provided minimum.
+    for (int i = 2; i < 12; ++i) {
+      limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp + i, timestamp + i);
+    }
+    assertEquals(20, limiter.calculateCapacity(timestamp + 12));
+  }
+
+  @Test
+  public void reducesCapacityOncePerCongestionWindow() {
+    long timestamp = new Date(0).getTime();
+
+    // Requests that were sent before the first reduction do not reduce the capacity again.
+    limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp, timestamp + 100);
+    for (int i = 0; i < 10; ++i) {
+      limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp + i, timestamp + 100 + i);
+    }
+    assertEquals(250, limiter.calculateCapacity(timestamp + 200));
+
+    // A request that was sent after the reduction reduces the capacity.
+    limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp + 101, timestamp + 200);
+    assertEquals(125, limiter.calculateCapacity(timestamp + 200));
+  }
+
+  @Test
+  public void increasesCapacityAdditively() {
+    long timestamp = new Date(0).getTime();
+
+    // Increasing capacity has no effect while following the ramp-up schedule.
+    limiter.increaseCapacity(timestamp);
+    assertEquals(500, limiter.calculateCapacity(timestamp));
+
+    limiter.reduceCapacity(/* minimumCapacity= */ 20, timestamp, timestamp);
+    limiter.increaseCapacity(timestamp);
+    assertEquals(251, limiter.calculateCapacity(timestamp));
+
+    // Capacity never exceeds the ramp-up schedule.
+    for (int i = 0; i < 1000; ++i) {
+      limiter.increaseCapacity(timestamp);
+    }
+    assertEquals(500, limiter.calculateCapacity(timestamp));
+
+    // Once caught up, the limiter follows the ramp-up schedule again.
+    assertEquals(750, limiter.calculateCapacity(new Date(5 * 60 * 1000).getTime()));
+  }
+
+  @Test
+  public void grantsTokensToConcurrentRequestsExactlyOnce() throws Exception {
+    final long timestamp = new Date(0).getTime();
+    final AtomicInteger grantedOperations = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; ++i) {
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int j = 0; j < 100; ++j) {
+                    if (limiter.tryMakeRequest(1, timestamp)) {
+                      grantedOperations.incrementAndGet();
+                    }
+                  }
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(500, grantedOperations.get());
+  }
 }
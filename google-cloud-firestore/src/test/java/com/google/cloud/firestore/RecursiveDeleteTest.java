@@ -0,0 +1,235 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static com.google.cloud.firestore.LocalFirestoreHelper.DATABASE_NAME;
+import static com.google.cloud.firestore.LocalFirestoreHelper.DOCUMENT_ROOT;
+import static com.google.cloud.firestore.LocalFirestoreHelper.batchWrite;
+import static com.google.cloud.firestore.LocalFirestoreHelper.delete;
+import static com.google.cloud.firestore.LocalFirestoreHelper.queryResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.api.gax.rpc.ServerStreamingCallable;
+import com.google.cloud.firestore.LocalFirestoreHelper.ResponseStubber;
+import com.google.cloud.firestore.spi.v1.FirestoreRpc;
+import com.google.firestore.v1.BatchWriteResponse;
+import com.google.firestore.v1.PartitionQueryRequest;
+import com.google.firestore.v1.RunQueryRequest;
+import com.google.firestore.v1.StructuredQuery;
+import com.google.firestore.v1.StructuredQuery.CollectionSelector;
+import com.google.firestore.v1.StructuredQuery.Direction;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.Message;
+import io.grpc.Status;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RecursiveDeleteTest {
+
+  @Spy
+  private final FirestoreImpl firestoreMock =
+      new FirestoreImpl(
+          FirestoreOptions.newBuilder().setProjectId("test-project").build(),
+          Mockito.mock(FirestoreRpc.class));
+
+  @Captor private ArgumentCaptor<Message> requestCapture;
+
+  @Captor private ArgumentCaptor<RunQueryRequest> runQuery;
+
+  @Captor private ArgumentCaptor<ApiStreamObserver> streamObserverCapture;
+
+  private BulkWriter bulkWriter;
+
+  @Before
+  public void before() {
+    bulkWriter =
+        firestoreMock.bulkWriter(BulkWriterOptions.builder().setThrottlingEnabled(false).build());
+  }
+
+  private static ApiFuture<BatchWriteResponse> batchWriteResponse(int... codes) {
+    BatchWriteResponse.Builder response = BatchWriteResponse.newBuilder();
+    for (int code : codes) {
+      response.addWriteResultsBuilder().getUpdateTimeBuilder().setSeconds(1);
+      response.addStatusBuilder().setCode(code);
+    }
+    return ApiFutures.immediateFuture(response.build());
+  }
+
+  private void stubQueryResponse(Throwable throwable, String... documentPaths) {
+    String[] documentNames = new String[documentPaths.length];
+    for (int i = 0; i < documentPaths.length; ++i) {
+      documentNames[i] = DOCUMENT_ROOT + documentPaths[i];
+    }
+    doAnswer(queryResponse(throwable, documentNames))
+        .when(firestoreMock)
+        .streamRequest(
+            runQuery.capture(),
+            streamObserverCapture.capture(),
+            Matchers.<ServerStreamingCallable>any());
+  }
+
+  @Test
+  public void deletesCollectionAndDescendants() throws Exception {
+    final PartitionQueryRequest partitionRequest =
+        PartitionQueryRequest.newBuilder()
+            .setParent(DATABASE_NAME + "/documents")
+            .setStructuredQuery(
+                StructuredQuery.newBuilder()
+                    .addFrom(
+                        CollectionSelector.newBuilder()
+                            .setCollectionId("coll")
+                            .setAllDescendants(true))
+                    .addOrderBy(
+                        StructuredQuery.Order.newBuilder()
+                            .setField(
+                                StructuredQuery.FieldReference.newBuilder()
+                                    .setFieldPath("__name__"))
+                            .setDirection(Direction.ASCENDING)))
+            .setPartitionCount(RecursiveDelete.DEFAULT_PARTITION_COUNT - 1)
+            .build();
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            // Falls back to a single partition if the query cannot be partitioned.
+            put(
+                partitionRequest,
+                ApiFutures.<GeneratedMessageV3>immediateFailedFuture(
+                    new ApiException(
+                        new IllegalStateException("Mock partitionQuery failed in test"),
+                        GrpcStatusCode.of(Status.Code.INVALID_ARGUMENT),
+                        false)));
+            put(
+                batchWrite(delete("coll/doc1"), delete("coll/doc1/sub/doc2")),
+                batchWriteResponse(Status.Code.OK.value(), Status.Code.OK.value()));
+          }
+        };
+    responseStubber.initializeStub(requestCapture, firestoreMock);
+    stubQueryResponse(null, "coll/doc1", "coll/doc1/sub/doc2");
+
+    firestoreMock.recursiveDelete(firestoreMock.collection("coll"), bulkWriter).get();
+    responseStubber.verifyAllRequestsSent();
+
+    StructuredQuery query = runQuery.getValue().getStructuredQuery();
+    assertEquals(DATABASE_NAME + "/documents", runQuery.getValue().getParent());
+    assertEquals(CollectionSelector.newBuilder().setAllDescendants(true).build(), query.getFrom(0));
+    assertEquals("__name__", query.getSelect().getFields(0).getFieldPath());
+    assertEquals(2, query.getWhere().getCompositeFilter().getFiltersCount());
+    assertEquals(
+        DOCUMENT_ROOT + "coll/" + RecursiveDelete.REFERENCE_NAME_MIN_ID,
+        query
+            .getWhere()
+            .getCompositeFilter()
+            .getFilters(0)
+            .getFieldFilter()
+            .getValue()
+            .getReferenceValue());
+  }
+
+  @Test
+  public void deletesDocumentAndDescendants() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(delete("coll/doc/sub/doc1"), delete("coll/doc")),
+                batchWriteResponse(Status.Code.OK.value(), Status.Code.OK.value()));
+          }
+        };
+    responseStubber.initializeStub(requestCapture, firestoreMock);
+    stubQueryResponse(null, "coll/doc/sub/doc1");
+
+    RecursiveDelete.forDocument(
+            firestoreMock, bulkWriter, /* partitionCount= */ 1, firestoreMock.document("coll/doc"))
+        .run()
+        .get();
+    responseStubber.verifyAllRequestsSent();
+
+    assertEquals(DOCUMENT_ROOT + "coll/doc", runQuery.getValue().getParent());
+    assertEquals(
+        0,
+        runQuery.getValue().getStructuredQuery().getWhere().getCompositeFilter().getFiltersCount());
+  }
+
+  @Test
+  public void failsIfDeletesFail() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(
+                batchWrite(delete("coll/doc1"), delete("coll/doc2")),
+                batchWriteResponse(Status.Code.OK.value(), Status.Code.PERMISSION_DENIED.value()));
+          }
+        };
+    responseStubber.initializeStub(requestCapture, firestoreMock);
+    stubQueryResponse(null, "coll/doc1", "coll/doc2");
+
+    try {
+      RecursiveDelete.forCollection(
+              firestoreMock, bulkWriter, /* partitionCount= */ 1, firestoreMock.collection("coll"))
+          .run()
+          .get();
+      fail("recursiveDelete() should have failed");
+    } catch (ExecutionException e) {
+      FirestoreException error = (FirestoreException) e.getCause();
+      assertEquals(Status.PERMISSION_DENIED, error.getStatus());
+      assertTrue(error.getMessage().startsWith("1 delete failed."));
+    }
+  }
+
+  @Test
+  public void failsIfQueryFails() throws Exception {
+    ResponseStubber responseStubber =
+        new ResponseStubber() {
+          {
+            put(batchWrite(delete("coll/doc1")), batchWriteResponse(Status.Code.OK.value()));
+          }
+        };
+    responseStubber.initializeStub(requestCapture, firestoreMock);
+    Exception queryError = new Exception("Mock runQuery failed in test");
+    stubQueryResponse(queryError, "coll/doc1");
+
+    try {
+      RecursiveDelete.forCollection(
+              firestoreMock, bulkWriter, /* partitionCount= */ 1, firestoreMock.collection("coll"))
+          .run()
+          .get();
+      fail("recursiveDelete() should have failed");
+    } catch (ExecutionException e) {
+      assertEquals(queryError, e.getCause());
+    }
+
+    // Deletes that were enqueued before the query failed are still sent.
+    responseStubber.verifyAllRequestsSent();
+  }
+}
@@ -26,6 +26,7 @@ import static com.google.cloud.firestore.LocalFirestoreHelper.map;
 import static com.google.cloud.firestore.LocalFirestoreHelper.set;
 import static com.google.cloud.firestore.LocalFirestoreHelper.update;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Mockito.doReturn;
 
 import com.google.api.gax.rpc.UnaryCallable;
@@ -113,6 +114,23 @@ public class WriteBatchTest {
     assertEquals(commit(writes.toArray(new Write[] {})), commitRequest);
   }
 
+  @Test
+  public void commitDrawsFromWriteBudget() throws Exception {
+    doReturn(commitResponse(2, 0))
+        .when(firestoreMock)
+        .sendRequest(
+            commitCapture.capture(), Matchers.<UnaryCallable<CommitRequest, CommitResponse>>any());
+
+    WriteRateLimiter rateLimiter = WriteRateLimiter.create(2, 2);
+
+    batch.set(documentReference, LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    batch.set(firestoreMock.document("coll/doc2"), LocalFirestoreHelper.SINGLE_FIELD_MAP);
+    assertEquals(2, batch.commit(rateLimiter).get().size());
+
+    // Both operations were drawn from the shared budget.
+    assertFalse(rateLimiter.getRateLimiter().tryMakeRequest(1));
+  }
+
   @Test
   public void updateDocumentWithPOJO() throws Exception {
     doReturn(commitResponse(1, 0))
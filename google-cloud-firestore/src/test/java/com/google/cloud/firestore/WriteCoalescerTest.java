@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.firestore;
+
+import static com.google.cloud.firestore.LocalFirestoreHelper.UPDATE_PRECONDITION;
+import static com.google.cloud.firestore.LocalFirestoreHelper.create;
+import static com.google.cloud.firestore.LocalFirestoreHelper.delete;
+import static com.google.cloud.firestore.LocalFirestoreHelper.increment;
+import static com.google.cloud.firestore.LocalFirestoreHelper.map;
+import static com.google.cloud.firestore.LocalFirestoreHelper.serverTimestamp;
+import static com.google.cloud.firestore.LocalFirestoreHelper.set;
+import static com.google.cloud.firestore.LocalFirestoreHelper.transform;
+import static com.google.cloud.firestore.LocalFirestoreHelper.update;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.firestore.v1.MapValue;
+import com.google.firestore.v1.Value;
+import com.google.firestore.v1.Write;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WriteCoalescerTest {
+
+  private static Value string(String value) {
+    return Value.newBuilder().setStringValue(value).build();
+  }
+
+  private static Value integer(long value) {
+    return Value.newBuilder().setIntegerValue(value).build();
+  }
+
+  private static Write withIncrement(Write write, String fieldPath, Value increment) {
+    return write
+        .toBuilder()
+        .addAllUpdateTransforms(transform(fieldPath, increment(increment)))
+        .build();
+  }
+
+  @Test
+  public void laterSetReplacesEarlierWrite() {
+    Write setWrite = set(map("b", string("2")));
+    assertEquals(setWrite, WriteCoalescer.coalesce(set(map("a", string("1"))), setWrite));
+  }
+
+  @Test
+  public void mergesUpdatesIntoSet() {
+    Write first = set(map("a", string("1"), "b", string("2")));
+    Write second =
+        update(
+            map("b", string("3"), "c", string("4")),
+            Arrays.asList("b", "c", "d"),
+            UPDATE_PRECONDITION);
+
+    assertEquals(
+        set(map("a", string("1"), "b", string("3"), "c", string("4"))),
+        WriteCoalescer.coalesce(first, second));
+  }
+
+  @Test
+  public void mergesNestedFieldMasks() {
+    Value nested =
+        Value.newBuilder().setMapValue(MapValue.newBuilder().putFields("x", string("1"))).build();
+    Write first = update(map("a", nested), Arrays.asList("a.x"));
+    Write second = update(map("a", nested, "b.c", string("2")), Arrays.asList("a", "`b.c`"));
+
+    assertEquals(
+        update(map("a", nested, "b.c", string("2")), Arrays.asList("a", "`b.c`")),
+        WriteCoalescer.coalesce(first, second));
+  }
+
+  @Test
+  public void sumsIntegerIncrements() {
+    Write first = withIncrement(set(map("a", string("1"))), "count", integer(1));
+    Write second =
+        withIncrement(
+            update(Collections.<String, Value>emptyMap(), Collections.<String>emptyList()),
+            "count",
+            integer(2));
+
+    assertEquals(
+        withIncrement(set(map("a", string("1"))), "count", integer(3)),
+        WriteCoalescer.coalesce(first, second));
+  }
+
+  @Test
+  public void dropsTransformsOfOverwrittenFields() {
+    Write first = withIncrement(set(map("a", string("1"))), "count", integer(1));
+    Write second = update(map("count", integer(5)), Arrays.asList("count"));
+
+    assertEquals(
+        set(map("a", string("1"), "count", integer(5))), WriteCoalescer.coalesce(first, second));
+  }
+
+  @Test
+  public void doesNotCombineIncompatibleWrites() {
+    Write setWrite = set(map("a", string("1")));
+    Write updateWrite = update(map("a", string("1")), Arrays.asList("a"));
+
+    assertNull(WriteCoalescer.coalesce(setWrite, delete()));
+    assertNull(WriteCoalescer.coalesce(delete(), setWrite));
+    assertNull(WriteCoalescer.coalesce(setWrite, create(map("a", string("1")))));
+    assertNull(WriteCoalescer.coalesce(create(map("a", string("1"))), updateWrite));
+    // The set would succeed on its own if the document does not exist.
+    assertNull(WriteCoalescer.coalesce(updateWrite, setWrite));
+    // Floating point increments are not summed up.
+    assertNull(
+        WriteCoalescer.coalesce(
+            withIncrement(setWrite, "count", Value.newBuilder().setDoubleValue(0.1).build()),
+            withIncrement(updateWrite, "count", Value.newBuilder().setDoubleValue(0.2).build())));
+    assertNull(
+        WriteCoalescer.coalesce(
+            setWrite.toBuilder().addAllUpdateTransforms(transform("b", serverTimestamp())).build(),
+            withIncrement(updateWrite, "b", integer(1))));
+  }
+}